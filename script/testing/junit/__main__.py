@@ -25,14 +25,29 @@ JUNIT_TEST_CMD_TRACE = "ant test-trace"
 JUNIT_OPTION_DIR = os.path.join(JUNIT_TEST_DIR, "out")
 JUNIT_OPTION_XML = os.path.join(JUNIT_OPTION_DIR, "options.xml")
 
+TRACEFILE_RESULTS_FILE = "/tmp/noisepage-tracefile_results.txt"
+
 REPO_TRACE_DIR = os.path.join("junit", "traces")
 TESTFILES_SUFFIX = ".test"
 
 DEFAULT_PREPARE_THRESHOLD = 5
 DEFAULT_QUERY_MODE = "simple"
+DEFAULT_TRACE_PARALLELISM = 1
+DEFAULT_TRACE_BATCH_SIZE = 1
+DEFAULT_TRACE_PROTOCOLS = ""
+DEFAULT_TRACE_PARAMETERIZE = False
+DEFAULT_TRACE_FETCH_SIZE = 0
 
 # Reserved environment variables used by the testing infrastructure
-RESERVED_VARS = ["NOISEPAGE_QUERY_MODE", "NOISEPAGE_PREPARE_THRESHOLD"]
+RESERVED_VARS = [
+    "NOISEPAGE_QUERY_MODE",
+    "NOISEPAGE_PREPARE_THRESHOLD",
+    "NOISEPAGE_TRACE_PARALLELISM",
+    "NOISEPAGE_TRACE_BATCH_SIZE",
+    "NOISEPAGE_TRACE_PROTOCOLS",
+    "NOISEPAGE_TRACE_PARAMETERIZE",
+    "NOISEPAGE_TRACE_FETCH_SIZE",
+]
 
 # -----------------------------------------------------------------------------
 # Globals
@@ -123,6 +138,36 @@ def parse_arguments() -> Dict:
         type=int,
         help="Threshold under the 'extended' query mode.",
     )
+    parser.add_argument(
+        "--trace-parallelism",
+        default=None,
+        type=int,
+        help="Number of tracefiles to run concurrently, each in its own database.",
+    )
+    parser.add_argument(
+        "--trace-batch-size",
+        default=None,
+        type=int,
+        help="Maximum number of consecutive 'statement ok' DML records to run as one batch.",
+    )
+    parser.add_argument(
+        "--trace-protocols",
+        default=None,
+        type=str,
+        help="Run each tracefile under each of these comma-separated query protocols "
+        "(simple, extended, extended-binary, prepared, or 'all') and compare them.",
+    )
+    parser.add_argument(
+        "--trace-parameterize",
+        action="store_true",
+        help="Lift the literals of tracefile records into parameters of shared prepared statements.",
+    )
+    parser.add_argument(
+        "--trace-fetch-size",
+        default=None,
+        type=int,
+        help="Stream query results through a cursor, this many rows per round trip (0 disables streaming).",
+    )
     parser.add_argument(
         "--tracefile-test",
         type=str,
@@ -207,7 +252,7 @@ def run_junit_tests(test_server, args: Dict) -> List:
 def run_tracefile_test(path: str, test_server, args: Dict) -> int:
     """
     Run an invidual tracefile test.
-    :param path The path to the tracefile
+    :param path The path to the tracefile, or to a directory of tracefiles
     :param test_server The test server instance
     :param args The dictionary of script arguments
     :return A tuple of
@@ -239,6 +284,10 @@ def run_tracefile_test(path: str, test_server, args: Dict) -> int:
 def run_tracefile_tests(test_server, args: Dict) -> List:
     """
     Run all tracefiles in the trace file directory.
+
+    All tracefiles are run by a single `ant test-trace` invocation, so the
+    JVM, ant and the classpath scan are only paid for once. TracefileTest
+    writes the per-tracefile results to TRACEFILE_RESULTS_FILE.
     :param test_server The TestServer instance
     :param args The dictionary of script arguments
     :return A list of tuples of test results
@@ -247,17 +296,32 @@ def run_tracefile_tests(test_server, args: Dict) -> List:
     base_path = os.path.dirname(os.path.dirname(os.path.realpath(__file__)))
     trace_dir = os.path.join(base_path, REPO_TRACE_DIR)
 
-    # Locate all trace files in the trace directory; remove those without expected extension
-    filenames = [
-        name
-        for name in os.listdir(trace_dir)
-        if name.endswith(TESTFILES_SUFFIX)
-    ]
-    # Construct the complete relative path to each trace file
-    paths = sorted([os.path.join(trace_dir, filename) for filename in filenames])
+    old_env_var = os.environ.get("NOISEPAGE_TRACE_RESULTS", None)
+    os.environ["NOISEPAGE_TRACE_RESULTS"] = TRACEFILE_RESULTS_FILE
+    if os.path.exists(TRACEFILE_RESULTS_FILE):
+        os.remove(TRACEFILE_RESULTS_FILE)
+
+    try:
+        _, errcode = run_tracefile_test(trace_dir, test_server, args)
+    finally:
+        if old_env_var is None:
+            del os.environ["NOISEPAGE_TRACE_RESULTS"]
+        else:
+            os.environ["NOISEPAGE_TRACE_RESULTS"] = old_env_var
 
-    # Execute each test and return a collection of the results
-    return [run_tracefile_test(path, test_server, args) for path in paths]
+    # Without per-tracefile results (e.g., the JVM did not get that far),
+    # all we can report is the outcome of the run as a whole
+    if not os.path.exists(TRACEFILE_RESULTS_FILE):
+        return [("tracefiles", errcode)]
+
+    # Each line is "NAME RECORDS FAILURES"
+    results = []
+    with open(TRACEFILE_RESULTS_FILE) as results_file:
+        for line in results_file:
+            name, _, failures = line.split()
+            failed = int(failures) > 0
+            results.append((name, ErrorCode.ERROR if failed else ErrorCode.SUCCESS))
+    return results if results else [("tracefiles", errcode)]
 
 
 # -----------------------------------------------------------------------------
@@ -277,6 +341,21 @@ def set_env_vars(args: Dict):
         "NOISEPAGE_PREPARE_THRESHOLD": str(
             args.get("prepare_threshold", DEFAULT_PREPARE_THRESHOLD)
         ),
+        "NOISEPAGE_TRACE_PARALLELISM": str(
+            args.get("trace_parallelism", DEFAULT_TRACE_PARALLELISM)
+        ),
+        "NOISEPAGE_TRACE_BATCH_SIZE": str(
+            args.get("trace_batch_size", DEFAULT_TRACE_BATCH_SIZE)
+        ),
+        "NOISEPAGE_TRACE_PROTOCOLS": args.get(
+            "trace_protocols", DEFAULT_TRACE_PROTOCOLS
+        ),
+        "NOISEPAGE_TRACE_PARAMETERIZE": str(
+            args.get("trace_parameterize", DEFAULT_TRACE_PARAMETERIZE)
+        ).lower(),
+        "NOISEPAGE_TRACE_FETCH_SIZE": str(
+            args.get("trace_fetch_size", DEFAULT_TRACE_FETCH_SIZE)
+        ),
     }
     for var in RESERVED_VARS:
         original_env[var] = os.environ.get(var, None)
@@ -0,0 +1,44 @@
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import moglib.*;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MogUtilBenchmark measures the helpers of MogUtil. bytesToHex() formats the MD5 digest of every hashed query; the
+ * larger input shows its cost per byte.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MogUtilBenchmark {
+    @Param({"16", "1024"})
+    public int numBytes;
+
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        bytes = new byte[numBytes];
+        new Random(0).nextBytes(bytes);
+    }
+
+    @Benchmark
+    public String bytesToHex() {
+        return MogUtil.bytesToHex(bytes);
+    }
+}
@@ -0,0 +1,90 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.sql.rowset.CachedRowSet;
+
+import moglib.*;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ResultBenchmark measures the work done on the results of a query once the server has returned them: reading and
+ * sorting them, hashing them and checking them against the expected results. The results are synthetic (see
+ * SyntheticData) and read from an in-memory result set, so only the harness is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int numRows;
+
+    @Param({"nosort", "rowsort"})
+    public String sortMode;
+
+    private CachedRowSet rs;
+    private List<String> values;
+    private List<String> expectedValues;
+    private ResultBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException {
+        rs = SyntheticData.resultSet(0, numRows);
+        values = MogSqlite.processResults(rs, sortMode);
+        expectedValues = new ArrayList<>(values);
+        rs.beforeFirst();
+        buffer = new ResultBuffer();
+        MogSqlite.readResults(rs, sortMode, buffer);
+    }
+
+    /**
+     * Read all values of the result set and sort them as the sort mode asks.
+     */
+    @Benchmark
+    public List<String> processResults() throws SQLException {
+        rs.beforeFirst();
+        return MogSqlite.processResults(rs, sortMode);
+    }
+
+    /**
+     * Read, sort and hash the result set as it arrives, as done for the queries whose results are hashed.
+     */
+    @Benchmark
+    public String hashResults() throws SQLException {
+        rs.beforeFirst();
+        ResultHasher hasher = new ResultHasher();
+        hasher.addResults(rs, sortMode);
+        return hasher.getHash();
+    }
+
+    /**
+     * Hash values that were already read.
+     */
+    @Benchmark
+    public String getHashFromDb() {
+        return TestUtility.getHashFromDb(values);
+    }
+
+    /**
+     * Compare values with the expected values, as done for the queries whose results are listed.
+     */
+    @Benchmark
+    public ResultBuffer checkResultSets() {
+        TracefileRunner.checkResultSets(buffer, expectedValues);
+        return buffer;
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+
+import moglib.*;
+
+/**
+ * SyntheticData generates the traces and result sets the benchmarks run on, so that their size can be chosen freely
+ * and no database is needed. The data is random but deterministic for a given seed.
+ * <p>
+ * Rows have three columns, an integer, a short string and a decimal, like most of the tables of the traces.
+ */
+final class SyntheticData {
+    static final int NUM_COLS = 3;
+    private static final String[] NAMES = {"Bob", "Billy", "Alice", "Mallory", "Trent", "Peggy", "Victor", "Walter"};
+
+    private SyntheticData() {
+    }
+
+    /**
+     * @return The values of a row of the given number, as the server would return them.
+     */
+    static String[] row(Random random, int i) {
+        return new String[]{
+                Integer.toString(i),
+                NAMES[random.nextInt(NAMES.length)],
+                String.format(Locale.ROOT, "%.2f", random.nextInt(400) / 100.0)
+        };
+    }
+
+    /**
+     * @return The values of the given number of rows, row by row.
+     */
+    static List<String> values(long seed, int numRows) {
+        Random random = new Random(seed);
+        List<String> values = new ArrayList<>(numRows * NUM_COLS);
+        for (int i = 0; i < numRows; ++i) {
+            Collections.addAll(values, row(random, i));
+        }
+        return values;
+    }
+
+    /**
+     * Build an in-memory result set, which is read like the result set of a query.
+     *
+     * @param seed    The seed of the values.
+     * @param numRows The number of rows.
+     * @return The result set, positioned before the first row.
+     */
+    static CachedRowSet resultSet(long seed, int numRows) throws SQLException {
+        RowSetMetaDataImpl metaData = new RowSetMetaDataImpl();
+        metaData.setColumnCount(NUM_COLS);
+        for (int i = 1; i <= NUM_COLS; ++i) {
+            metaData.setColumnName(i, "c" + i);
+            metaData.setColumnType(i, Types.VARCHAR);
+        }
+        CachedRowSet rs = RowSetProvider.newFactory().createCachedRowSet();
+        rs.setMetaData(metaData);
+        Random random = new Random(seed);
+        for (int i = 0; i < numRows; ++i) {
+            String[] row = row(random, i);
+            rs.moveToInsertRow();
+            for (int j = 0; j < NUM_COLS; ++j) {
+                rs.updateString(j + 1, row[j]);
+            }
+            rs.insertRow();
+            rs.moveToCurrentRow();
+        }
+        rs.beforeFirst();
+        return rs;
+    }
+
+    /**
+     * Write a trace of statements and queries, like the traces generated from PostgreSQL by GenerateTrace: an INSERT
+     * per row and, after every ninth row, a query of the rows inserted since the previous query, with its results
+     * hashed by every other query and listed by the others.
+     *
+     * @param file       The trace file to write.
+     * @param numRecords The number of records.
+     * @param seed       The seed of the values.
+     */
+    static void writeTrace(File file, int numRecords, long seed) throws IOException {
+        final int queryEvery = 10;
+        Random random = new Random(seed);
+        List<String> values = new ArrayList<>();
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            writer.println("statement ok");
+            writer.println("CREATE TABLE t (id INT PRIMARY KEY, name VARCHAR(32), score DECIMAL)");
+            writer.println();
+            for (int i = 1; i < numRecords; ++i) {
+                if (i % queryEvery != 0) {
+                    String[] row = row(random, i);
+                    Collections.addAll(values, row);
+                    writer.println("statement ok");
+                    writer.printf("INSERT INTO t VALUES (%s, '%s', %s)%n", row[0], row[1], row[2]);
+                    writer.println();
+                    continue;
+                }
+                writer.println("query ITR rowsort");
+                writer.printf("SELECT id, name, score FROM t WHERE id > %d AND id < %d%n", i - queryEvery, i);
+                writer.println("----");
+                if (i % (2 * queryEvery) == 0) {
+                    writer.printf("%d values hashing to %s%n", values.size(), ResultHasher.hash(values));
+                } else {
+                    values.forEach(writer::println);
+                }
+                writer.println();
+                values.clear();
+            }
+        }
+    }
+}
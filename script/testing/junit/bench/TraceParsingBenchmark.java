@@ -0,0 +1,93 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import moglib.*;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * TraceParsingBenchmark measures how long MogSqlite takes to read all records of a synthetic trace (see
+ * SyntheticData), with each of its parsers: the BufferedReader-based one, the memory-mapped one, and a compiled trace.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TraceParsingBenchmark {
+    @Param({"1000", "100000"})
+    public int numRecords;
+
+    @Param({"buffered", "mapped", "compiled"})
+    public String parser;
+
+    private File dir;
+    private File traceFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("trace-bench").toFile();
+        traceFile = new File(dir, "synthetic" + Constants.TRACE_SUFFIX);
+        SyntheticData.writeTrace(traceFile, numRecords, 0);
+        if (parser.equals("compiled")) {
+            TraceCompiler.compile(traceFile, CompiledTrace.compiledFileFor(traceFile));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Parse the whole trace. The memory-mapped parser and compiled traces leave the SQL and results undecoded.
+     */
+    @Benchmark
+    public int parse(Blackhole blackhole) throws IOException {
+        MogSqlite mog = new MogSqlite(traceFile, parser.equals("mapped"));
+        int count = 0;
+        TraceRecord record;
+        while (null != (record = mog.nextRecord())) {
+            blackhole.consume(record);
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Parse the whole trace and decode the SQL and results of every record, as running all of them does.
+     */
+    @Benchmark
+    public int parseAndDecode(Blackhole blackhole) throws IOException {
+        MogSqlite mog = new MogSqlite(traceFile, parser.equals("mapped"));
+        int count = 0;
+        TraceRecord record;
+        while (null != (record = mog.nextRecord())) {
+            blackhole.consume(record.getSql());
+            blackhole.consume(record.getExpectedResults());
+            ++count;
+        }
+        return count;
+    }
+}
@@ -17,7 +17,7 @@ public class FilterTrace {
         String path = args[0];
         File file = new File(path);
         System.out.println("File path: " + path);
-        MogSqlite mog = new MogSqlite(file);
+        MogSqlite mog = new MogSqlite(file, true);
         // create output file
         File outputFile = new File(Constants.DEST_DIR, args[5]);
         FileWriter writer = new FileWriter(outputFile);
@@ -26,23 +26,21 @@ public class FilterTrace {
             System.out.println(i);
         }
         boolean skip_flag = false;
-        // open connection to postgresql database with jdbc
+        // open connection to postgresql database with jdbc, on the first statement that is not in the reference cache,
+        // if one is given; the existing tables are removed when connecting
         MogDb db = new MogDb(args[1], args[2], args[3]);
-        Connection conn = db.getDbTest().newConn();
-        List<String> tab = getAllExistingTableName(mog,conn);
-        removeExistingTable(tab,conn);
+        File cacheFile = args.length > 6 && !args[6].isEmpty() ? new File(args[6]) : null;
+        ReferenceCache reference = new ReferenceCache(cacheFile, db.getDbTest());
 
-        while (mog.next()) {
-            String cur_sql = mog.sql.trim();
-            for(int i=0; i<mog.comments.size();i++){
-                if(mog.comments.get(i).contains(Constants.SKIPIF)||mog.comments.get(i).contains(Constants.ONLYIF)){
-                    skip_flag = true;
-                    break;
-                }
+        TraceRecord record;
+        while (null != (record = mog.nextRecord())) {
+            String cur_sql = record.getSql().trim();
+            if(!record.getConditions().isEmpty()){
+                skip_flag = true;
             }
             // filter out nested SELECT statements
             if(getFrequency(cur_sql, "SELECT")>1){
-                mog.comments.clear();
+                skip_flag = false;
                 continue;
             }
             // the code below remove the queries that contain any skip keyword
@@ -54,26 +52,28 @@ public class FilterTrace {
             }
             if(skip_flag){
                 skip_flag = false;
-                mog.comments.clear();
                 continue;
             }
-            writeToFile(writer, mog.queryFirstLine);
+            if(record.isBenched()){
+                writeToFile(writer, record.getBenchDirective());
+            }
+            writeToFile(writer, record.getFirstLine());
             writeToFile(writer, cur_sql);
-            if(mog.queryFirstLine.contains(Constants.QUERY)){
+            if(record.isQuery()){
                 writeToFile(writer, Constants.SEPARATION);
                 try{
-                    Statement statement = conn.createStatement();
-                    statement.execute(cur_sql);
-                    ResultSet rs = statement.getResultSet();
-                    List<String> res = mog.processResults(rs);
-                    if(res.size()>0){
-                        if(res.size()<Constants.DISPLAY_RESULT_SIZE) {
-                            for(String i:mog.queryResults){
+                    ReferenceCache.Result result = reference.run(cur_sql, record.getSortMode(), false);
+                    if(!result.isOk()){
+                        throw new SQLException(result.getError());
+                    }
+                    int num_values = result.getNumValues();
+                    if(num_values>0){
+                        if(num_values<Constants.DISPLAY_RESULT_SIZE) {
+                            for(String i:record.getExpectedResults()){
                                 writeToFile(writer, i);
                             }
                         }else {
-                            String hash = TestUtility.getHashFromDb(res);
-                            String queryResult = res.size() + " values hashing to " + hash;
+                            String queryResult = num_values + " values hashing to " + result.getHash();
                             writeToFile(writer, queryResult);
                         }
                     }
@@ -82,18 +82,21 @@ public class FilterTrace {
                 }
             }else{
                 try{
-                    Statement statement = conn.createStatement();
-                    statement.execute(cur_sql);
+                    ReferenceCache.Result result = reference.run(cur_sql, null, false);
+                    if(!result.isOk()){
+                        throw new SQLException(result.getError());
+                    }
                 }catch(Throwable e){
                     throw new Throwable(e.getMessage() + ": " + cur_sql);
                 }
             }
             writer.write('\n');
-            mog.comments.clear();
-            mog.queryResults.clear();
         }
         writer.close();
-        conn.close();
+        reference.close();
+        if (null != cacheFile) {
+            System.out.printf("Reference cache: %d hits, %d misses%n", reference.getNumHits(), reference.getNumMisses());
+        }
     }
     public static int getFrequency(String sql, String keyword){
         int num = 0;
@@ -117,12 +120,12 @@ public class FilterTrace {
             st.execute(sql);
         }
     }
-    public static List<String> getAllExistingTableName(MogSqlite mog,Connection connection) throws SQLException {
+    public static List<String> getAllExistingTableName(Connection connection) throws SQLException {
         Statement st = connection.createStatement();
         String getTableName = "SELECT tablename FROM pg_tables WHERE schemaname = 'public';";
         st.execute(getTableName);
         ResultSet rs = st.getResultSet();
-        List<String> res = mog.processResults(rs);
+        List<String> res = MogSqlite.processResults(rs, "nosort");
         return res;
     }
 }
@@ -21,17 +21,14 @@ public class GenerateTrace {
         String path = args[0];
         File file = new File(path);
         System.out.println("File path: " + path);
-        MogSqlite mog = new MogSqlite(file);
-        // open connection to postgresql database with jdbc
+        // open connection to postgresql database with jdbc, on the first statement that is not in the reference cache,
+        // if one is given; the existing tables are removed when connecting
         MogDb db = new MogDb(args[1], args[2], args[3]);
-        Connection conn = db.getDbTest().newConn();
-        // remove existing table name
-        List<String> tab = getAllExistingTableName(mog,conn);
-        removeExistingTable(tab,conn);
+        File cacheFile = args.length > 5 && !args[5].isEmpty() ? new File(args[5]) : null;
+        ReferenceCache reference = new ReferenceCache(cacheFile, db.getDbTest());
 
         String line;
         String label;
-        Statement statement = null;
         BufferedReader br = new BufferedReader(new FileReader(file));
         // create output file
         FileWriter writer = new FileWriter(new File(Constants.DEST_DIR, args[4]));
@@ -39,25 +36,38 @@ public class GenerateTrace {
         boolean include_result = false;
         while (null != (line = br.readLine())) {
             line = line.trim();
+            boolean is_query = line.startsWith("SELECT") || line.toLowerCase().startsWith("with");
+            String sortOption;
+            if (line.contains("ORDER BY")) {
+                // These rows are already sorted by the SQL and need to match exactly
+                sortOption = "nosort";
+            } else {
+                // Need to create a canonical ordering...
+                sortOption = "rowsort";
+            }
             // execute sql statement
+            ReferenceCache.Result result = null;
             try{
-                statement = conn.createStatement();
-                statement.execute(line);
-                label = Constants.STATEMENT_OK;
+                result = reference.run(line, is_query ? sortOption : null, include_result);
+                if (result.isOk()) {
+                    label = Constants.STATEMENT_OK;
+                } else {
+                    System.err.println("Error executing SQL Statement: '" + line + "'; " + result.getError());
+                    label = Constants.STATEMENT_ERROR;
+                }
             } catch (SQLException e) {
                 System.err.println("Error executing SQL Statement: '" + line + "'; " + e.getMessage());
                 label = Constants.STATEMENT_ERROR;
             } catch (Throwable e) {
                 label = Constants.STATEMENT_ERROR;
             }
+            long update_count = null == result ? -1 : result.getUpdateCount();
 
-            if(line.startsWith("SELECT") || line.toLowerCase().startsWith("with")) {
-                ResultSet rs = statement.getResultSet();
-                if (line.toLowerCase().startsWith("with") && null == rs) {
-                    // We might have a query that begins with `WITH` that has a null result set
-                    int updateCount = statement.getUpdateCount();
+            if(is_query) {
+                if (null == result || !result.hasResultSet()) {
+                    // We might have a query that begins with `WITH` that has a null result set, or a query that failed
                     // check if expected number is equal to update count
-                    if(expected_result_num>=0 && expected_result_num!=updateCount){
+                    if(expected_result_num>=0 && expected_result_num!=update_count){
                         label = Constants.STATEMENT_ERROR;
                     }
                     writeToFile(writer, label);
@@ -67,10 +77,8 @@ public class GenerateTrace {
                     continue;
                 }
 
-                ResultSetMetaData rsmd = rs.getMetaData();
                 String typeString = "";
-                for (int i = 1; i <= rsmd.getColumnCount(); ++i) {
-                    String colTypeName = rsmd.getColumnTypeName(i);
+                for (String colTypeName : result.getColumnTypes()) {
                     MogDb.DbColumnType colType = db.getDbTest().getDbColumnType(colTypeName);
                     if(colType==MogDb.DbColumnType.FLOAT){
                         typeString += "R";
@@ -83,23 +91,14 @@ public class GenerateTrace {
                     }
                 }
 
-                String sortOption;
-                if (line.contains("ORDER BY")) {
-                    // These rows are already sorted by the SQL and need to match exactly
-                    sortOption = "nosort";
-                    mog.sortMode = "nosort";
-                } else {
-                    // Need to create a canonical ordering...
-                    sortOption = "rowsort";
-                    mog.sortMode = "rowsort";
-                }
                 String query_sort = Constants.QUERY + " " + typeString + " " + sortOption;
                 writeToFile(writer, query_sort);
                 writeToFile(writer, line);
                 writeToFile(writer, Constants.SEPARATION);
-                List<String> res = mog.processResults(rs);
-                // compute the hash
-                String hash = TestUtility.getHashFromDb(res);
+                // the values are only kept if they are few or include_result is set
+                List<String> res = result.getValues();
+                int num_values = result.getNumValues();
+                String hash = result.getHash();
                 String queryResult = "";
                 // when include_result is true, set queryResult to be exact result instead of hash
                 if(include_result){
@@ -113,13 +112,13 @@ public class GenerateTrace {
                     if(expected_result_num>=0){
                         queryResult = "Expected " + expected_result_num + " values hashing to " + hash;
                     }else{
-                        if(res.size()>0){
+                        if(num_values>0){
                             // set queryResult to format x values hashing to xxx
-                            queryResult = res.size() + " values hashing to " + hash;
+                            queryResult = num_values + " values hashing to " + hash;
                         }
                         // set queryResult to be exact result instead of hash when
                         // result size is smaller than Constants.DISPLAY_RESULT_SIZE
-                        if(res.size() < Constants.DISPLAY_RESULT_SIZE){
+                        if(num_values < Constants.DISPLAY_RESULT_SIZE){
                             queryResult = "";
                             for(String i:res){
                                 queryResult += i;
@@ -130,7 +129,7 @@ public class GenerateTrace {
                     }
                 }
                 writeToFile(writer, queryResult);
-                if(res.size()>0){
+                if(num_values>0){
                     writer.write('\n');
                 }
                 include_result = false;
@@ -150,9 +149,8 @@ public class GenerateTrace {
                 }
             } else{
                 // other sql statements
-                int rs = statement.getUpdateCount();
                 // check if expected number is equal to update count
-                if(expected_result_num>=0 && expected_result_num!=rs){
+                if(expected_result_num>=0 && expected_result_num!=update_count){
                     label = Constants.STATEMENT_ERROR;
                 }
                 writeToFile(writer, label);
@@ -163,6 +161,10 @@ public class GenerateTrace {
         }
         writer.close();
         br.close();
+        reference.close();
+        if (null != cacheFile) {
+            System.out.printf("Reference cache: %d hits, %d misses%n", reference.getNumHits(), reference.getNumMisses());
+        }
     }
 
     public static void writeToFile(FileWriter writer, String str) throws IOException {
@@ -177,12 +179,12 @@ public class GenerateTrace {
             st.execute(sql);
         }
     }
-    public static List<String> getAllExistingTableName(MogSqlite mog,Connection connection) throws SQLException {
+    public static List<String> getAllExistingTableName(Connection connection) throws SQLException {
         Statement st = connection.createStatement();
         String getTableName = "SELECT tablename FROM pg_tables WHERE schemaname = 'public';";
         st.execute(getTableName);
         ResultSet rs = st.getResultSet();
-        List<String> res = mog.processResults(rs);
+        List<String> res = MogSqlite.processResults(rs, "nosort");
         return res;
     }
 }
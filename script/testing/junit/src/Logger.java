@@ -0,0 +1,28 @@
+/**
+ * The Logger class implements a dummy logger that,
+ * for the time being, just prints to standard output.
+ */
+final class Logger {
+    /**
+     * Construct a new Logger instance.
+     */
+    Logger() {
+
+    }
+
+    /**
+     * Log a standard mesasge.
+     * @param message The message
+     */
+    public void log(final String message) {
+        System.out.println(message);
+    }
+
+    /**
+     * Log an error message.
+     * @param message The message
+     */
+    public void error(final String message) {
+        System.err.println(message);
+    }
+}
@@ -0,0 +1,267 @@
+import java.io.File;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.DynamicContainer;
+import org.junit.jupiter.api.DynamicNode;
+import org.junit.jupiter.api.DynamicTest;
+
+/**
+ * The ParallelTracefileRunner class runs several tracefiles concurrently
+ * against the NoisePage DBMS server. Each worker runs one tracefile at a
+ * time, over its own connection, in a database of its own that is
+ * created up front, so that tracefiles creating tables of the same name
+ * do not collide.
+ *
+ * JUnit 5.1 runs dynamic tests one after the other, so the tracefiles are
+ * run to completion first and the outcome of each record is then replayed
+ * as a DynamicTest, grouped per tracefile.
+ */
+final class ParallelTracefileRunner {
+    // ------------------------------------------------------------------------
+    // Constants
+    // ------------------------------------------------------------------------
+
+    /**
+     * Prefix of the names of the per-worker databases.
+     */
+    private static final String DATABASE_PREFIX = "noisepage_trace_";
+
+    /**
+     * The logger instance.
+     */
+    private static final Logger LOGGER = new Logger();
+
+    // ------------------------------------------------------------------------
+    // Members
+    // ------------------------------------------------------------------------
+
+    /**
+     * The input tracefiles.
+     */
+    private final List<File> files;
+
+    /**
+     * The number of tracefiles to run concurrently.
+     */
+    private final int parallelism;
+
+    /**
+     * The runners of the tracefiles, in the order of the tracefiles.
+     */
+    private final List<TracefileRunner> runners = new ArrayList<>();
+
+    /**
+     * Construct a new ParallelTracefileRunner instance.
+     * @param files The input tracefiles
+     * @param parallelism The number of tracefiles to run concurrently
+     */
+    ParallelTracefileRunner(final List<File> files, final int parallelism) {
+        this.files = files;
+        this.parallelism = Math.min(parallelism, files.size());
+    }
+
+    /**
+     * @return The runners of the tracefiles run so far
+     */
+    List<TracefileRunner> getRunners() {
+        return runners;
+    }
+
+    // ------------------------------------------------------------------------
+    // Execution
+    // ------------------------------------------------------------------------
+
+    /**
+     * Run all tracefiles and collect the outcome of each record.
+     * @return One DynamicContainer per tracefile, in the order of the
+     * tracefiles, holding one DynamicTest per record that replays its
+     * outcome
+     * @throws SQLException if the per-worker databases cannot be created
+     * @throws InterruptedException if interrupted while waiting for the
+     * workers
+     */
+    List<DynamicNode> run() throws SQLException, InterruptedException {
+        final List<String> names = new ArrayList<>();
+        for (int i = 0; i < parallelism; ++i) {
+            names.add(DATABASE_PREFIX + i);
+        }
+        final BlockingQueue<String> databases
+            = new ArrayBlockingQueue<>(parallelism, false, names);
+
+        createDatabases(names);
+        final long start = System.nanoTime();
+        final ExecutorService executor
+            = Executors.newFixedThreadPool(parallelism);
+        final List<Future<List<DynamicTest>>> futures = new ArrayList<>();
+        try {
+            for (final File file : files) {
+                futures.add(executor.submit(() -> {
+                    // A worker holds on to a database for a whole tracefile
+                    final String database = databases.take();
+                    try {
+                        return runFile(file, database);
+                    } finally {
+                        databases.add(database);
+                    }
+                }));
+            }
+
+            final List<DynamicNode> containers = new ArrayList<>();
+            for (int i = 0; i < files.size(); ++i) {
+                containers.add(DynamicContainer.dynamicContainer(
+                    files.get(i).getName(), collect(futures.get(i))));
+            }
+            return containers;
+        } finally {
+            executor.shutdownNow();
+            StringBuilder builder = new StringBuilder();
+            builder.append("Ran ");
+            builder.append(files.size());
+            builder.append(" tracefiles with parallelism ");
+            builder.append(parallelism);
+            builder.append(" in ");
+            builder.append((System.nanoTime() - start) / 1000000);
+            builder.append(" ms");
+            LOGGER.log(builder.toString());
+            TestUtility.getConnectionPools()
+                .forEach(pool -> LOGGER.log(pool.toString()));
+            // Workers may still hold databases if the run was cut short
+            dropDatabases(names);
+        }
+    }
+
+    /**
+     * Run a single tracefile, executing each of its records right away.
+     * @param file The tracefile
+     * @param database The database to run the tracefile in
+     * @return One DynamicTest per record that replays its outcome
+     */
+    private List<DynamicTest> runFile(final File file, final String database) {
+        final TracefileRunner runner = new TracefileRunner(file, null, database);
+        synchronized (runners) {
+            runners.add(runner);
+        }
+
+        final List<DynamicTest> outcomes = new ArrayList<>();
+        try (Stream<DynamicTest> tests = runner.dynamicTests()) {
+            tests.forEachOrdered(test -> outcomes.add(
+                replay(test.getDisplayName(), execute(test))));
+        } catch (Throwable e) {
+            // The tracefile could not be started
+            outcomes.add(replay("Setup", e));
+        }
+        return outcomes;
+    }
+
+    /**
+     * Wait for a tracefile to finish.
+     * @param future The result of running the tracefile
+     * @return The replayed outcomes of its records
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static List<DynamicTest> collect(
+        final Future<List<DynamicTest>> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final List<DynamicTest> outcomes = new ArrayList<>();
+            outcomes.add(replay("Setup", e.getCause()));
+            return outcomes;
+        }
+    }
+
+    /**
+     * Execute a test case.
+     * @param test The test case
+     * @return The failure of the test case, or null if it passed
+     */
+    private static Throwable execute(final DynamicTest test) {
+        try {
+            test.getExecutable().execute();
+            return null;
+        } catch (Throwable e) {
+            return e;
+        }
+    }
+
+    /**
+     * Create a test case that replays an outcome.
+     * @param name The name of the test case
+     * @param failure The failure to rethrow, or null if it passed
+     * @return A DynamicTest instance that represents the test case
+     */
+    private static DynamicTest replay(
+        final String name,
+        final Throwable failure) {
+        return DynamicTest.dynamicTest(name, () -> {
+            if (failure != null) {
+                throw failure;
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    // Database Management
+    // ------------------------------------------------------------------------
+
+    /**
+     * Create the per-worker databases, dropping any left over from an
+     * earlier run first.
+     * @param databases The names of the databases
+     * @throws SQLException if a database cannot be created
+     */
+    private static void createDatabases(final Iterable<String> databases)
+        throws SQLException {
+        try (Connection conn = TestUtility.makeDefaultConnection()) {
+            for (final String database : databases) {
+                dropDatabase(conn, database);
+                try (Statement statement = conn.createStatement()) {
+                    statement.execute("CREATE DATABASE " + database);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the per-worker databases.
+     * @param databases The names of the databases
+     */
+    private static void dropDatabases(final Iterable<String> databases) {
+        try (Connection conn = TestUtility.makeDefaultConnection()) {
+            for (final String database : databases) {
+                // Idle pooled connections would keep the database in use
+                TestUtility.closeConnectionPools(database);
+                dropDatabase(conn, database);
+            }
+        } catch (SQLException e) {
+            LOGGER.error("Failed to drop databases: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drop a database, if it exists.
+     * @param conn The connection to the default database
+     * @param database The name of the database
+     */
+    private static void dropDatabase(
+        final Connection conn,
+        final String database) {
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("DROP DATABASE " + database);
+        } catch (SQLException e) {
+            // The database does not exist
+        }
+    }
+}
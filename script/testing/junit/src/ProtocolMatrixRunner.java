@@ -0,0 +1,230 @@
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.DynamicContainer;
+import org.junit.jupiter.api.DynamicNode;
+
+import moglib.LatencyHistogram;
+import moglib.RecordTimings;
+import moglib.TraceRecord;
+
+/**
+ * The ProtocolMatrixRunner class runs each tracefile once per query
+ * protocol configuration (see QueryProtocol), one after the other, within
+ * a single JVM, and reports the outcome and latency of each
+ * configuration side by side. This shows where server-prepared
+ * statements pay off and where they regress or fail.
+ *
+ * Each tracefile yields a DynamicContainer holding one DynamicContainer
+ * per configuration, which holds the DynamicTests of the records as run
+ * by a TracefileRunner of its own.
+ */
+final class ProtocolMatrixRunner {
+    // ------------------------------------------------------------------------
+    // Constants
+    // ------------------------------------------------------------------------
+
+    /**
+     * The logger instance.
+     */
+    private static final Logger LOGGER = new Logger();
+
+    /**
+     * The phases that are spent on the server or on the wire, as opposed
+     * to local processing.
+     */
+    private static final RecordTimings.Phase[] SERVER_PHASES = {
+        RecordTimings.Phase.EXECUTE,
+        RecordTimings.Phase.FIRST_ROW,
+        RecordTimings.Phase.FETCH};
+
+    // ------------------------------------------------------------------------
+    // Members
+    // ------------------------------------------------------------------------
+
+    /**
+     * The input tracefiles.
+     */
+    private final List<File> files;
+
+    /**
+     * The query protocol configurations to run each tracefile under.
+     */
+    private final List<QueryProtocol> protocols;
+
+    /**
+     * The runners created so far, per tracefile in the order of the
+     * configurations.
+     */
+    private final List<TracefileRunner> runners = new ArrayList<>();
+
+    /**
+     * Construct a new ProtocolMatrixRunner instance.
+     * @param files The input tracefiles
+     * @param protocols The query protocol configurations
+     */
+    ProtocolMatrixRunner(
+        final List<File> files,
+        final List<QueryProtocol> protocols) {
+        this.files = files;
+        this.protocols = protocols;
+    }
+
+    /**
+     * @return The runners created so far
+     */
+    List<TracefileRunner> getRunners() {
+        return runners;
+    }
+
+    // ------------------------------------------------------------------------
+    // Test Generation
+    // ------------------------------------------------------------------------
+
+    /**
+     * Generate the test cases of all tracefiles under all configurations.
+     * The returned stream is lazy; each runner opens its connection when
+     * its first record is pulled. Closing the stream closes the
+     * connections of all runners.
+     * @return One DynamicContainer per tracefile
+     */
+    Stream<DynamicNode> dynamicTests() {
+        return files.stream()
+            .map(file -> (DynamicNode) DynamicContainer.dynamicContainer(
+                file.getName(),
+                protocols.stream().map(protocol -> {
+                    final TracefileRunner runner
+                        = new TracefileRunner(file, null, null, protocol);
+                    runners.add(runner);
+                    return DynamicContainer.dynamicContainer(
+                        protocol.getName(), runner.dynamicTests());
+                })))
+            .onClose(() -> runners.forEach(TracefileRunner::close));
+    }
+
+    // ------------------------------------------------------------------------
+    // Reporting
+    // ------------------------------------------------------------------------
+
+    /**
+     * Log a table with a row per tracefile and, per configuration, the
+     * number of failed records, the time spent on the server, relative to
+     * the first configuration, and the p50 and p99 latency of the
+     * queries. The records that fail under some configurations but not
+     * under others are listed below the table.
+     */
+    void report() {
+        StringBuilder header = new StringBuilder();
+        header.append(String.format("%-28s", "Tracefile"));
+        for (final QueryProtocol protocol : protocols) {
+            header.append(String.format(" | %-36s", protocol.getName()));
+        }
+        LOGGER.log(header.toString());
+        StringBuilder columns = new StringBuilder();
+        columns.append(String.format("%-28s", ""));
+        for (int i = 0; i < protocols.size(); ++i) {
+            columns.append(String.format(" | %5s %9s %6s %6s %6s",
+                "fail", "server_ms", "rel", "p50_us", "p99_us"));
+        }
+        LOGGER.log(columns.toString());
+
+        final List<RecordTimings> totals = new ArrayList<>();
+        final int[] totalFailures = new int[protocols.size()];
+        for (int i = 0; i < protocols.size(); ++i) {
+            totals.add(new RecordTimings());
+        }
+        final List<String> divergences = new ArrayList<>();
+        for (int row = 0; row * protocols.size() < runners.size(); ++row) {
+            final int first = row * protocols.size();
+            final int last = Math.min(first + protocols.size(), runners.size());
+            final List<TracefileRunner> cells = runners.subList(first, last);
+            for (int i = 0; i < cells.size(); ++i) {
+                totals.get(i).add(cells.get(i).getTimings());
+                totalFailures[i] += cells.get(i).getNumFailures();
+            }
+            logRow(cells.get(0).getFile().getName(),
+                cells.stream()
+                    .mapToInt(TracefileRunner::getNumFailures)
+                    .toArray(),
+                cells.stream()
+                    .map(TracefileRunner::getTimings)
+                    .toArray(RecordTimings[]::new));
+            divergences.addAll(findDivergences(cells));
+        }
+        logRow("TOTAL", totalFailures,
+            totals.toArray(new RecordTimings[0]));
+
+        divergences.forEach(LOGGER::log);
+    }
+
+    /**
+     * Log a row of the table.
+     * @param name The name of the row
+     * @param failures The number of failed records per configuration
+     * @param timings The timings per configuration
+     */
+    private static void logRow(
+        final String name,
+        final int[] failures,
+        final RecordTimings[] timings) {
+        final double baseNanos = getServerNanos(timings[0]);
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%-28s", name));
+        for (int i = 0; i < timings.length; ++i) {
+            final double serverNanos = getServerNanos(timings[i]);
+            final LatencyHistogram queries = timings[i].get(
+                TraceRecord.Kind.QUERY, RecordTimings.Phase.TOTAL);
+            builder.append(String.format(" | %5d %9.1f %5.0f%% %6.0f %6.0f",
+                failures[i],
+                serverNanos / 1e6,
+                baseNanos > 0 ? 100 * serverNanos / baseNanos : 100,
+                queries.getPercentile(50) / 1e3,
+                queries.getPercentile(99) / 1e3));
+        }
+        LOGGER.log(builder.toString());
+    }
+
+    /**
+     * @param timings The timings of a tracefile
+     * @return The total time spent on the server, in nanoseconds
+     */
+    private static double getServerNanos(final RecordTimings timings) {
+        double nanos = 0;
+        for (final RecordTimings.Phase phase : SERVER_PHASES) {
+            final LatencyHistogram histogram = timings.getAll(phase);
+            nanos += histogram.getMean() * histogram.getCount();
+        }
+        return nanos;
+    }
+
+    /**
+     * Find the records of a tracefile whose outcome depends on the
+     * configuration.
+     * @param cells The runners of the tracefile, one per configuration
+     * @return One line per such record, naming the configurations it
+     * failed under
+     */
+    private List<String> findDivergences(final List<TracefileRunner> cells) {
+        final Map<Integer, List<String>> failedUnder = new TreeMap<>();
+        for (int i = 0; i < cells.size(); ++i) {
+            for (final int line : cells.get(i).getFailedLines()) {
+                failedUnder.computeIfAbsent(line, key -> new ArrayList<>())
+                    .add(protocols.get(i).getName());
+            }
+        }
+        final List<String> divergences = new ArrayList<>();
+        failedUnder.forEach((line, names) -> {
+            if (names.size() < cells.size()) {
+                divergences.add("Protocol-dependent outcome: "
+                    + cells.get(0).getFile().getName() + " line " + line
+                    + " fails under " + String.join(", ", names));
+            }
+        });
+        return divergences;
+    }
+}
@@ -0,0 +1,121 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The QueryProtocol class names a configuration of the pgjdbc query
+ * protocol that tracefiles can be run under; see ProtocolMatrixRunner.
+ */
+final class QueryProtocol {
+    // ------------------------------------------------------------------------
+    // Constants
+    // ------------------------------------------------------------------------
+
+    /**
+     * The pgjdbc prepareThreshold that pgjdbc uses by default: statements
+     * are prepared on the server, and their results transferred in binary,
+     * from their fifth execution on.
+     */
+    private static final int DEFAULT_PREPARE_THRESHOLD = 5;
+
+    /**
+     * All configurations, in the order they are reported in:
+     *  - simple: the simple query protocol
+     *  - extended: the extended query protocol with unnamed statements,
+     *    i.e., parsed and planned on every execution
+     *  - extended-binary: the extended query protocol, switching to
+     *    server-prepared statements and binary transfer after
+     *    DEFAULT_PREPARE_THRESHOLD executions of the same SQL
+     *  - prepared: server-prepared statements and binary transfer from the
+     *    first execution on
+     */
+    static final List<QueryProtocol> ALL = List.of(
+        new QueryProtocol("simple", "simple", 0),
+        new QueryProtocol("extended", "extended", 0),
+        new QueryProtocol("extended-binary", "extended",
+            DEFAULT_PREPARE_THRESHOLD),
+        new QueryProtocol("prepared", "extended", -1));
+
+    // ------------------------------------------------------------------------
+    // Members
+    // ------------------------------------------------------------------------
+
+    /**
+     * The name of the configuration.
+     */
+    private final String name;
+
+    /**
+     * The pgjdbc preferQueryMode.
+     */
+    private final String preferQueryMode;
+
+    /**
+     * The pgjdbc prepareThreshold.
+     */
+    private final int prepareThreshold;
+
+    /**
+     * Construct a new QueryProtocol instance.
+     * @param name The name of the configuration
+     * @param preferQueryMode The pgjdbc preferQueryMode
+     * @param prepareThreshold The pgjdbc prepareThreshold
+     */
+    private QueryProtocol(
+        final String name,
+        final String preferQueryMode,
+        final int prepareThreshold) {
+        this.name = name;
+        this.preferQueryMode = preferQueryMode;
+        this.prepareThreshold = prepareThreshold;
+    }
+
+    /**
+     * Parse a list of configurations.
+     * @param names The names of the configurations separated by ',', or
+     * "all" for all of them
+     * @return The configurations, in the given order
+     * @throws IllegalArgumentException if a name is unknown
+     */
+    static List<QueryProtocol> parse(final String names) {
+        if (names.trim().equals("all")) {
+            return ALL;
+        }
+        final List<QueryProtocol> protocols = new ArrayList<>();
+        for (final String name : names.split(",")) {
+            protocols.add(ALL.stream()
+                .filter(protocol -> protocol.name.equals(name.trim()))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException(
+                    "Unknown query protocol: " + name)));
+        }
+        return protocols;
+    }
+
+    /**
+     * @return The name of the configuration
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Connect to a database on the default server under this
+     * configuration.
+     * @param database The database; null for the default database
+     * @return The connection
+     * @throws SQLException if the connection cannot be made
+     */
+    Connection connect(final String database) throws SQLException {
+        return TestUtility.makeDefaultConnection(
+            database == null ? "" : database,
+            preferQueryMode,
+            prepareThreshold);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,284 @@
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import moglib.*;
+
+/**
+ * ReplayTrace uses a trace file as a workload: N concurrent clients replay its query records against a database and
+ * the throughput and latency percentiles are reported per query template (see QueryTemplate).
+ *
+ * Usage: ReplayTrace PATH DB_URL DB_USER DB_PASSWORD [OPTION=VALUE]...
+ *   clients=N         number of concurrent clients, each with its own connection (default 1)
+ *   duration=S        seconds to measure for (default 10)
+ *   warmup=S          seconds to run before measuring (default 0)
+ *   rate=R            open loop: start R queries per second in total, at fixed intervals; latencies are measured from
+ *                     the intended start, so they include any time spent queued behind a slow query. If 0, each client
+ *                     starts its next query as soon as the previous one finishes (closed loop). (default 0)
+ *   mix=MIX           sequential: each client replays the query records in order, starting at its own offset;
+ *                     records: pick query records at random, so templates are weighted by how often they occur;
+ *                     templates: pick a template at random, then one of its records (default sequential)
+ *   setup=BOOL        drop all tables and run the statement records once before starting the clients (default true)
+ *   seed=N            seed for the random mixes (default 0)
+ *
+ * Queries that fail are counted as errors; their latency is not recorded.
+ */
+public class ReplayTrace {
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    /**
+     * A query record along with its template.
+     */
+    private static class Query {
+        final String sql;
+        final String template;
+
+        Query(String sql) {
+            this.sql = sql;
+            this.template = QueryTemplate.normalize(sql);
+        }
+    }
+
+    /**
+     * Statistics of a single template.
+     */
+    private static class TemplateStats {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        long numErrors;
+
+        void add(TemplateStats other) {
+            latencies.add(other.latencies);
+            numErrors += other.numErrors;
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        if (args.length < 4) {
+            System.err.println("Usage: ReplayTrace PATH DB_URL DB_USER DB_PASSWORD [OPTION=VALUE]...");
+            System.exit(1);
+        }
+        final String url = args[1];
+        final String user = args[2];
+        final String password = args[3];
+        Map<String, String> options = new HashMap<>();
+        for (int i = 4; i < args.length; ++i) {
+            String[] option = args[i].split("=", 2);
+            if (option.length != 2) {
+                throw new IllegalArgumentException("Expected OPTION=VALUE: " + args[i]);
+            }
+            options.put(option[0], option[1]);
+        }
+        final int numClients = Integer.parseInt(options.getOrDefault("clients", "1"));
+        final double duration = Double.parseDouble(options.getOrDefault("duration", "10"));
+        final double warmup = Double.parseDouble(options.getOrDefault("warmup", "0"));
+        final double rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+        final String mix = options.getOrDefault("mix", "sequential");
+        final boolean setup = Boolean.parseBoolean(options.getOrDefault("setup", "true"));
+        final long seed = Long.parseLong(options.getOrDefault("seed", "0"));
+        if (!mix.equals("sequential") && !mix.equals("records") && !mix.equals("templates")) {
+            throw new IllegalArgumentException("Unknown mix: " + mix);
+        }
+
+        List<TraceRecord> records;
+        try (Stream<TraceRecord> stream = new MogSqlite(new File(args[0]), true).stream()) {
+            records = stream.collect(Collectors.toList());
+        }
+        List<Query> queries = records.stream()
+                .filter(TraceRecord::isQuery)
+                .map(record -> new Query(record.getSql().trim()))
+                .collect(Collectors.toList());
+        if (queries.isEmpty()) {
+            throw new IllegalArgumentException("No query records in " + args[0]);
+        }
+        Map<String, List<Query>> byTemplate = queries.stream()
+                .collect(Collectors.groupingBy(query -> query.template, LinkedHashMap::new, Collectors.toList()));
+        List<List<Query>> templates = new ArrayList<>(byTemplate.values());
+
+        if (setup) {
+            try (Connection conn = DriverManager.getConnection(url, user, password)) {
+                runSetup(conn, records);
+            }
+        }
+
+        System.out.printf("Replaying %d queries (%d templates) with %d clients, %s, mix %s\n", queries.size(),
+                templates.size(), numClients, rate > 0 ? String.format("open loop at %.1f queries/s", rate)
+                        : "closed loop", mix);
+
+        final long start = System.nanoTime();
+        final long measureStart = start + (long) (warmup * NANOS_PER_SECOND);
+        final long end = measureStart + (long) (duration * NANOS_PER_SECOND);
+        ExecutorService executor = Executors.newFixedThreadPool(numClients);
+        List<Future<Map<String, TemplateStats>>> futures = new ArrayList<>();
+        for (int i = 0; i < numClients; ++i) {
+            final int client = i;
+            futures.add(executor.submit(() -> {
+                try (Connection conn = DriverManager.getConnection(url, user, password)) {
+                    return runClient(conn, client, numClients, queries, templates, mix, rate, seed,
+                            start, measureStart, end);
+                }
+            }));
+        }
+        Map<String, TemplateStats> stats = new LinkedHashMap<>();
+        for (List<Query> template : templates) {
+            stats.put(template.get(0).template, new TemplateStats());
+        }
+        try {
+            for (Future<Map<String, TemplateStats>> future : futures) {
+                future.get().forEach((template, clientStats) -> stats.get(template).add(clientStats));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        report(stats, duration);
+    }
+
+    /**
+     * Drop all tables and run the statement records, so that the queries have data to work on.
+     */
+    private static void runSetup(Connection conn, List<TraceRecord> records) throws SQLException {
+        GenerateTrace.removeExistingTable(GenerateTrace.getAllExistingTableName(conn), conn);
+        int numStatements = 0;
+        int numUnexpected = 0;
+        for (TraceRecord record : records) {
+            if (!record.isStatement()) {
+                continue;
+            }
+            ++numStatements;
+            boolean failed = false;
+            try (Statement statement = conn.createStatement()) {
+                statement.execute(record.getSql().trim());
+            } catch (SQLException e) {
+                failed = true;
+            }
+            if (failed != (record.getKind() == TraceRecord.Kind.STATEMENT_ERROR)) {
+                ++numUnexpected;
+            }
+        }
+        System.out.printf("Setup ran %d statements, %d with an unexpected outcome\n", numStatements, numUnexpected);
+    }
+
+    /**
+     * Replay queries over a single connection until the end of the run.
+     *
+     * @return The statistics of the client, per template.
+     */
+    private static Map<String, TemplateStats> runClient(Connection conn, int client, int numClients,
+                                                        List<Query> queries, List<List<Query>> templates,
+                                                        String mix, double rate, long seed, long start,
+                                                        long measureStart, long end) {
+        Map<String, TemplateStats> stats = new HashMap<>();
+        Random random = new Random(seed + client);
+        int next = (int) ((long) queries.size() * client / numClients);
+
+        /* In the open loop, each client takes an equal share of the rate, staggered across the clients. */
+        final long interval = rate > 0 ? (long) (numClients * NANOS_PER_SECOND / rate) : 0;
+        long intended = start + interval * client / numClients;
+
+        while (true) {
+            long now = System.nanoTime();
+            if (interval > 0) {
+                if (intended >= end || now >= end) {
+                    break;
+                }
+                if (now < intended) {
+                    LockSupport.parkNanos(intended - now);
+                    continue;
+                }
+            } else {
+                if (now >= end) {
+                    break;
+                }
+                intended = now;
+            }
+
+            Query query;
+            if (mix.equals("sequential")) {
+                query = queries.get(next);
+                next = (next + 1) % queries.size();
+            } else if (mix.equals("records")) {
+                query = queries.get(random.nextInt(queries.size()));
+            } else {
+                List<Query> template = templates.get(random.nextInt(templates.size()));
+                query = template.get(random.nextInt(template.size()));
+            }
+
+            boolean failed = false;
+            try (Statement statement = conn.createStatement()) {
+                if (statement.execute(query.sql)) {
+                    drain(statement.getResultSet());
+                }
+            } catch (SQLException e) {
+                failed = true;
+            }
+            long finished = System.nanoTime();
+
+            if (intended >= measureStart && finished <= end) {
+                TemplateStats templateStats = stats.computeIfAbsent(query.template, key -> new TemplateStats());
+                if (failed) {
+                    ++templateStats.numErrors;
+                } else {
+                    templateStats.latencies.record(finished - intended);
+                }
+            }
+            intended += interval;
+        }
+        return stats;
+    }
+
+    /**
+     * Read all values of a result set, as a client would.
+     */
+    private static void drain(ResultSet rs) throws SQLException {
+        final int numCols = rs.getMetaData().getColumnCount();
+        while (rs.next()) {
+            for (int i = 1; i <= numCols; ++i) {
+                rs.getString(i);
+            }
+        }
+    }
+
+    /**
+     * Print the throughput and latency percentiles per template, busiest template first, and in total.
+     */
+    private static void report(Map<String, TemplateStats> stats, double duration) {
+        TemplateStats total = new TemplateStats();
+        stats.values().forEach(total::add);
+
+        System.out.printf("%10s %8s %10s %9s %9s %9s %9s %9s  %s\n", "queries", "errors", "queries/s", "mean ms",
+                "p50 ms", "p90 ms", "p99 ms", "max ms", "template");
+        stats.entrySet().stream()
+                .filter(entry -> entry.getValue().latencies.getCount() + entry.getValue().numErrors > 0)
+                .sorted((a, b) -> Long.compare(b.getValue().latencies.getCount(), a.getValue().latencies.getCount()))
+                .forEach(entry -> printRow(entry.getValue(), duration, abbreviate(entry.getKey())));
+        printRow(total, duration, "TOTAL");
+    }
+
+    private static void printRow(TemplateStats stats, double duration, String label) {
+        LatencyHistogram latencies = stats.latencies;
+        System.out.printf("%10d %8d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f  %s\n", latencies.getCount(),
+                stats.numErrors, latencies.getCount() / duration, latencies.getMean() / NANOS_PER_MILLI,
+                latencies.getPercentile(50) / NANOS_PER_MILLI, latencies.getPercentile(90) / NANOS_PER_MILLI,
+                latencies.getPercentile(99) / NANOS_PER_MILLI, latencies.getMax() / NANOS_PER_MILLI, label);
+    }
+
+    private static String abbreviate(String template) {
+        final int maxLength = 80;
+        return template.length() <= maxLength ? template : template.substring(0, maxLength - 3) + "...";
+    }
+}
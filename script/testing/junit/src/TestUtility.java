@@ -3,14 +3,13 @@
  * Base class (helper functions) for prepared statement tests
  */
 
-import moglib.MogUtil;
+import moglib.ConnectionPool;
+import moglib.ResultHasher;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -18,39 +17,138 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.ResultSetMetaData;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import static org.junit.Assert.assertEquals;
 
 public class TestUtility {
+    /**
+     * Connection pools, keyed by URL and connection properties.
+     */
+    private static final Map<String, ConnectionPool> POOLS = new ConcurrentHashMap<>();
+
     public static Connection makeDefaultConnection() throws SQLException {
         return makeConnection("localhost", 15721, "noisepage");
     }
 
+    /**
+     * Open a connection to the default database that bypasses the connection pool,
+     * for tests that depend on closing the connection actually disconnecting it.
+     */
+    public static Connection makeDirectConnection() throws SQLException {
+        Properties props = makeProperties("noisepage");
+        return DriverManager.getConnection(makeUrl("localhost", 15721, ""), props);
+    }
+
+    /**
+     * Connect to a database other than the default one on the default server.
+     *
+     * @param database name of the database to connect to
+     */
+    public static Connection makeDefaultConnection(String database) throws SQLException {
+        return makeConnection("localhost", 15721, "noisepage", database);
+    }
+
+    /**
+     * Connect to a database on the default server with explicit query protocol settings,
+     * rather than those of the NOISEPAGE_QUERY_MODE and NOISEPAGE_PREPARE_THRESHOLD environment variables.
+     *
+     * @param database         name of the database to connect to; empty for the default database
+     * @param preferQueryMode  the pgjdbc preferQueryMode, e.g., "simple" or "extended"
+     * @param prepareThreshold the pgjdbc prepareThreshold; 0 never prepares statements on the server,
+     *                         -1 prepares them on their first execution and forces binary transfer
+     */
+    public static Connection makeDefaultConnection(String database, String preferQueryMode, int prepareThreshold)
+            throws SQLException {
+        return makeConnection("localhost", 15721, "noisepage", database, preferQueryMode, prepareThreshold);
+    }
+
     public static Connection makeConnection(String host, int port, String username) throws SQLException {
-        Properties props = new Properties();
-        props.setProperty("user", username);
-        props.setProperty("prepareThreshold", "0"); // suppress switchover to binary protocol
+        return makeConnection(host, port, username, "");
+    }
+
+    /**
+     * Borrow a connection from the pool of the given database and settings.
+     * Closing the connection returns it to the pool, which resets its session state or, if the server cannot, only reuses
+     * it if the session state was left alone.
+     */
+    public static Connection makeConnection(String host, int port, String username, String database)
+            throws SQLException {
+        return borrow(makeUrl(host, port, database), makeProperties(username));
+    }
 
+    /**
+     * Borrow a connection from the pool of the given database and explicit query protocol settings.
+     * See makeDefaultConnection(String, String, int).
+     */
+    public static Connection makeConnection(String host, int port, String username, String database,
+                                            String preferQueryMode, int prepareThreshold) throws SQLException {
+        return borrow(makeUrl(host, port, database),
+                makeProperties(username, preferQueryMode, Integer.toString(prepareThreshold)));
+    }
+
+    private static Connection borrow(String url, Properties props) throws SQLException {
+        ConnectionPool pool = POOLS.computeIfAbsent(url + " " + props, key -> new ConnectionPool(
+                () -> DriverManager.getConnection(url, props), ConnectionPool.DEFAULT_MAX_SIZE,
+                ConnectionPool.POSTGRES_RESET, ConnectionPool.POSTGRES_FALLBACK_RESET));
+        return pool.borrow();
+    }
+
+    /**
+     * @return the connection pools created so far, e.g., to report their checkout wait times
+     */
+    public static Collection<ConnectionPool> getConnectionPools() {
+        return POOLS.values();
+    }
+
+    /**
+     * Close the connection pools of a database, e.g., before dropping it.
+     *
+     * @param database name of the database
+     */
+    public static void closeConnectionPools(String database) {
+        POOLS.entrySet().removeIf(entry -> {
+            String url = entry.getKey().substring(0, entry.getKey().indexOf(' '));
+            if (!url.endsWith("/" + database)) {
+                return false;
+            }
+            entry.getValue().close();
+            return true;
+        });
+    }
+
+    private static String makeUrl(String host, int port, String database) {
+        return String.format("jdbc:postgresql://%s:%d/%s", host, port, database);
+    }
+
+    private static Properties makeProperties(String username) {
         // Set prepferQueryMode
         String preferQueryMode = System.getenv("NOISEPAGE_QUERY_MODE");
         if (preferQueryMode == null || preferQueryMode.isEmpty()) {
             // Default as "simple" if NOISEPAGE_QUERY_MODE is not specified
             preferQueryMode = "simple";
         }
-        props.setProperty("preferQueryMode", preferQueryMode);
 
         // Set prepareThreshold if the prepferQueryMode is 'extended'
+        String prepareThreshold = "0"; // suppress switchover to binary protocol
         if (preferQueryMode.equals("extended")) {
-            String prepareThreshold = System.getenv("NOISEPAGE_PREPARE_THRESHOLD");
-            if (prepareThreshold != null && !prepareThreshold.isEmpty()) {
-                props.setProperty("prepareThreshold", prepareThreshold);
+            String threshold = System.getenv("NOISEPAGE_PREPARE_THRESHOLD");
+            if (threshold != null && !threshold.isEmpty()) {
+                prepareThreshold = threshold;
             }
         }
+        return makeProperties(username, preferQueryMode, prepareThreshold);
+    }
 
-        String url = String.format("jdbc:postgresql://%s:%d/", host, port);
-        Connection conn = DriverManager.getConnection(url, props);
-        return conn;
+    private static Properties makeProperties(String username, String preferQueryMode, String prepareThreshold) {
+        Properties props = new Properties();
+        props.setProperty("user", username);
+        props.setProperty("prepareThreshold", prepareThreshold);
+        props.setProperty("preferQueryMode", preferQueryMode);
+        return props;
     }
 
     /**
@@ -157,17 +255,6 @@ public class TestUtility {
      * @return hash computed
      */
     public static String getHashFromDb(List<String> res)  {
-        MessageDigest md;
-        try {
-            md = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
-
-        String resultString = String.join("\n", res) + "\n";
-        md.update(resultString.getBytes());
-        byte[] byteArr = md.digest();
-        String hex = MogUtil.bytesToHex(byteArr);
-        return hex.toLowerCase();
+        return ResultHasher.hash(res);
     }
 }
@@ -0,0 +1,1501 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.function.Executable;
+
+import moglib.Constants;
+import moglib.LatencyBaseline;
+import moglib.LatencyHistogram;
+import moglib.MogSqlite;
+import moglib.QueryTemplate;
+import moglib.RecordTimings;
+import moglib.ResultBuffer;
+import moglib.ResultHasher;
+import moglib.TraceRecord;
+
+/**
+ * The TracefileRunner class runs the records of a single tracefile
+ * against the NoisePage DBMS server. Each runner owns its own
+ * connection, which is opened when the first record is pulled and closed
+ * once the records are exhausted, so that many tracefiles can be run
+ * one after the other within a single JVM. Tables left behind by a
+ * previous tracefile are dropped before the first record is run.
+ *
+ * If the NOISEPAGE_TRACE_BATCH_SIZE environment variable is greater than
+ * one, runs of consecutive `statement ok` INSERT, UPDATE and DELETE
+ * records are executed as a single JDBC batch in one round trip. Each
+ * record still gets a test case of its own; if the batch fails, it is
+ * rolled back and its records are run one by one to find the culprit.
+ *
+ * Records are run as plain statements. Under an explicit query protocol
+ * (see QueryProtocol), they are run as prepared statements without
+ * parameters instead, so that the prepareThreshold of the connection
+ * decides whether they are prepared on the server.
+ *
+ * If NOISEPAGE_TRACE_PARAMETERIZE is "true", the numeric and string
+ * literals of each record are lifted into parameters (see
+ * QueryTemplate.parameterize), and records that only differ in their
+ * literals share one prepared statement, with the literals bound to it.
+ * This exercises the plan cache of the server the way applications do.
+ * The prepared statements are kept open, up to
+ * PARAMETERIZE_CACHE_SIZE of them, until the runner is closed. Batched
+ * records are still run with their literals.
+ *
+ * If NOISEPAGE_TRACE_FETCH_SIZE is greater than zero, the results of
+ * query records are streamed through a cursor, that many rows per round
+ * trip, and processed as they arrive rather than once all of them are
+ * buffered by the driver. pgjdbc only uses a cursor within a transaction
+ * and under the extended query protocol, so each query outside of an
+ * explicit transaction runs in a transaction of its own, which is
+ * committed once its results are read. Queries within an explicit
+ * transaction, and all queries under the simple query protocol, are not
+ * streamed.
+ *
+ * Every record is timed; see RecordTimings for the phases.
+ *
+ * If the NOISEPAGE_TRACE_BASELINE_DIR environment variable is set, the
+ * latency of the query records is checked against a baseline file of the
+ * tracefile in that directory (see LatencyBaseline): each query with a
+ * baseline that only reads (see QueryTemplate.isReadOnly) gets a second
+ * test case that fails if the query has become
+ * slower than the tolerance allows. The baseline and this check measure
+ * the same thing: a separate run of the query that is timed as a whole
+ * (see measureQuery). A query that looks slower is re-run
+ * NOISEPAGE_TRACE_BASELINE_REPEAT times (5 by default) and only flagged if
+ * the median of those runs is still too slow. The tolerated slowdown is
+ * NOISEPAGE_TRACE_BASELINE_TOLERANCE (1.5 by default), but at least
+ * NOISEPAGE_TRACE_BASELINE_SLACK_US (500 by default) and at least the p99
+ * of the baseline. If NOISEPAGE_TRACE_BASELINE_MODE is "record", the
+ * baseline file is written instead, from as many runs of each query that
+ * only reads. Queries that may write are neither checked nor recorded,
+ * since running them again would change the database that the records
+ * after them see.
+ */
+final class TracefileRunner implements AutoCloseable {
+    // ------------------------------------------------------------------------
+    // Constants
+    // ------------------------------------------------------------------------
+
+    /**
+     * The required precision for floating point results.
+     */
+    private static final double PRECISION = 0.00001;
+
+    /**
+     * Query for the names of all relations in the public namespace.
+     */
+    private static final String PUBLIC_RELATIONS_QUERY =
+        "SELECT relname FROM pg_class WHERE relnamespace IN "
+        + "(SELECT nspoid FROM pg_namespace WHERE nspname = 'public')";
+
+    /**
+     * The logger instance.
+     */
+    private static final Logger LOGGER = new Logger();
+
+    /**
+     * The directory of latency baselines; null if baselines are not used.
+     */
+    private static final String BASELINE_DIR
+        = System.getenv("NOISEPAGE_TRACE_BASELINE_DIR");
+
+    /**
+     * Whether to record baselines rather than check against them.
+     */
+    private static final boolean BASELINE_RECORD
+        = "record".equals(System.getenv("NOISEPAGE_TRACE_BASELINE_MODE"));
+
+    /**
+     * The number of runs of a query that a baseline is recorded from, or
+     * that confirm a regression.
+     */
+    private static final int BASELINE_REPEAT
+        = getIntSetting("NOISEPAGE_TRACE_BASELINE_REPEAT", 5);
+
+    /**
+     * The tolerated slowdown relative to the baseline median.
+     */
+    private static final double BASELINE_TOLERANCE
+        = Double.parseDouble(getSetting("NOISEPAGE_TRACE_BASELINE_TOLERANCE", "1.5"));
+
+    /**
+     * The minimum tolerated slowdown, in nanoseconds.
+     */
+    private static final long BASELINE_SLACK_NANOS
+        = getIntSetting("NOISEPAGE_TRACE_BASELINE_SLACK_US", 500) * 1000L;
+
+    /**
+     * Whether to lift the literals of records into parameters.
+     */
+    private static final boolean PARAMETERIZE
+        = Boolean.parseBoolean(getSetting("NOISEPAGE_TRACE_PARAMETERIZE", "false"));
+
+    /**
+     * The maximum number of prepared statements kept open in
+     * parameterized mode; the least recently used one is closed first.
+     */
+    private static final int PARAMETERIZE_CACHE_SIZE = 256;
+
+    /**
+     * The number of rows to fetch per round trip when streaming query
+     * results through a cursor; 0 fetches all rows at once.
+     */
+    private static final int FETCH_SIZE
+        = getIntSetting("NOISEPAGE_TRACE_FETCH_SIZE", 0);
+
+    /**
+     * Statements that may be batched, if expected to succeed.
+     */
+    private static final String[] BATCHABLE_PREFIXES
+        = {"INSERT", "UPDATE", "DELETE"};
+
+    /**
+     * Statements that start an explicit transaction; no batch is formed
+     * until it ends, since a batch runs in a transaction of its own.
+     */
+    private static final String[] BEGIN_PREFIXES
+        = {"BEGIN", "START TRANSACTION"};
+
+    /**
+     * Statements that end an explicit transaction.
+     */
+    private static final String[] END_PREFIXES
+        = {"COMMIT", "ROLLBACK", "END", "ABORT"};
+
+    // ------------------------------------------------------------------------
+    // Members
+    // ------------------------------------------------------------------------
+
+    /**
+     * The input tracefile.
+     */
+    private final File file;
+
+    /**
+     * The range of lines to run, as FIRST or FIRST:LAST; null for all.
+     */
+    private final String lines;
+
+    /**
+     * The database to run the tracefile in; null for the default database.
+     */
+    private final String database;
+
+    /**
+     * The query protocol to connect with; null for the one configured by
+     * the NOISEPAGE_QUERY_MODE and NOISEPAGE_PREPARE_THRESHOLD
+     * environment variables.
+     */
+    private final QueryProtocol protocol;
+
+    /**
+     * The maximum number of records per batch; 1 disables batching.
+     */
+    private final int batchSize
+        = getIntSetting("NOISEPAGE_TRACE_BATCH_SIZE", 1);
+
+    /**
+     * The DBMS server connection; null until the first record is pulled.
+     */
+    private Connection conn;
+
+    /**
+     * The prepared statements of parameterized mode, by template, in the
+     * order they were last used.
+     */
+    private final Map<String, PreparedStatement> statements
+        = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                final Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= PARAMETERIZE_CACHE_SIZE) {
+                    return false;
+                }
+                closeStatement(eldest.getValue());
+                return true;
+            }
+        };
+
+    /**
+     * Whether the records so far left an explicit transaction open.
+     */
+    private boolean inTransaction;
+
+    /**
+     * The hasher for query results, reused across queries.
+     */
+    private final ResultHasher hasher = new ResultHasher();
+
+    /**
+     * The buffer for query results that are checked value by value,
+     * reused across queries.
+     */
+    private final ResultBuffer results = new ResultBuffer();
+
+    /**
+     * The timings of the records run so far.
+     */
+    private final RecordTimings timings = new RecordTimings();
+
+    /**
+     * The phases of the record being run, in nanoseconds; see runTimed.
+     */
+    private long executeNanos;
+    private long firstRowNanos;
+    private long fetchNanos;
+
+    /**
+     * The latency baseline, being checked against or recorded; null if
+     * baselines are not used.
+     */
+    private LatencyBaseline baseline;
+
+    /**
+     * The last record that ran successfully.
+     */
+    private TraceRecord lastPassedRecord;
+
+    /**
+     * The number of queries flagged as latency regressions so far.
+     */
+    private int numRegressions;
+
+    /**
+     * The number of records run so far.
+     */
+    private int numRecords;
+
+    /**
+     * The number of records that failed so far.
+     */
+    private int numFailures;
+
+    /**
+     * The line numbers of the records that failed so far.
+     */
+    private final List<Integer> failedLines = new ArrayList<>();
+
+    /**
+     * Construct a new TracefileRunner instance.
+     * @param file The input tracefile
+     * @param lines The range of lines to run, as FIRST or FIRST:LAST;
+     * null or empty to run all records
+     */
+    TracefileRunner(final File file, final String lines) {
+        this(file, lines, null);
+    }
+
+    /**
+     * Construct a new TracefileRunner instance.
+     * @param file The input tracefile
+     * @param lines The range of lines to run, as FIRST or FIRST:LAST;
+     * null or empty to run all records
+     * @param database The database to run the tracefile in; null for the
+     * default database
+     */
+    TracefileRunner(
+        final File file,
+        final String lines,
+        final String database) {
+        this(file, lines, database, null);
+    }
+
+    /**
+     * Construct a new TracefileRunner instance.
+     * @param file The input tracefile
+     * @param lines The range of lines to run, as FIRST or FIRST:LAST;
+     * null or empty to run all records
+     * @param database The database to run the tracefile in; null for the
+     * default database
+     * @param protocol The query protocol to connect with; null for the
+     * configured one
+     */
+    TracefileRunner(
+        final File file,
+        final String lines,
+        final String database,
+        final QueryProtocol protocol) {
+        this.file = file;
+        this.lines = lines;
+        this.database = database;
+        this.protocol = protocol;
+    }
+
+    /**
+     * @return The input tracefile
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The name of the tracefile, followed by the query protocol
+     * in brackets if one was given, e.g., "select.test[prepared]"
+     */
+    String getName() {
+        return protocol == null
+            ? file.getName()
+            : file.getName() + "[" + protocol.getName() + "]";
+    }
+
+    /**
+     * @return The number of records run so far
+     */
+    int getNumRecords() {
+        return numRecords;
+    }
+
+    /**
+     * @return The number of records that failed so far
+     */
+    int getNumFailures() {
+        return numFailures;
+    }
+
+    /**
+     * @return The line numbers of the records that failed so far
+     */
+    List<Integer> getFailedLines() {
+        return failedLines;
+    }
+
+    /**
+     * @return The number of queries flagged as latency regressions so far
+     */
+    int getNumRegressions() {
+        return numRegressions;
+    }
+
+    /**
+     * @return The timings of the records run so far
+     */
+    RecordTimings getTimings() {
+        return timings;
+    }
+
+    // ------------------------------------------------------------------------
+    // Test Generation
+    // ------------------------------------------------------------------------
+
+    /**
+     * Generate a test case for each record of the tracefile.
+     *
+     * The returned stream is lazy: the connection is only opened when the
+     * first DynamicTest is pulled, and each record is parsed, executed and
+     * checked only when JUnit pulls the corresponding DynamicTest. The
+     * records of a batch are read ahead and executed together when the
+     * first of them is pulled. Closing the stream closes the connection.
+     * @return a stream of DynamicTest objects, one per record.
+     */
+    Stream<DynamicTest> dynamicTests() {
+        final Supplier<Spliterator<List<TraceRecord>>> groups =
+            () -> new RecordGroups(open().iterator());
+        return StreamSupport.stream(groups, Spliterator.ORDERED, false)
+            .takeWhile(group -> isConnectionOpen())
+            .flatMap(this::toDynamicTests)
+            .onClose(this::close);
+    }
+
+    /**
+     * Create the test cases for a group of records.
+     * @param group A single record, or the records of a batch
+     * @return One DynamicTest per record
+     */
+    private Stream<DynamicTest> toDynamicTests(final List<TraceRecord> group) {
+        if (group.size() == 1) {
+            final TraceRecord record = group.get(0);
+            final DynamicTest test = toDynamicTest(record, null, 0);
+            if (!record.isQuery()) {
+                return Stream.of(test);
+            }
+            final List<DynamicTest> tests = new ArrayList<>(3);
+            tests.add(test);
+            if (baseline != null && !BASELINE_RECORD) {
+                final String template = QueryTemplate.normalize(record.getSql());
+                final LatencyBaseline.Entry entry = baseline.get(template);
+                if (entry != null && isMeasurable(record)) {
+                    tests.add(toLatencyTest(record, entry));
+                }
+            }
+            if (record.isBenched()) {
+                tests.add(toBenchTest(record));
+            }
+            return tests.stream();
+        }
+        final Batch batch = new Batch(group);
+        final List<DynamicTest> tests = new ArrayList<>(group.size());
+        for (int i = 0; i < group.size(); ++i) {
+            tests.add(toDynamicTest(group.get(i), batch, i));
+        }
+        return tests.stream();
+    }
+
+    /**
+     * Create the test case for a record.
+     * @param record The record
+     * @param batch The batch the record belongs to; null if it is run on
+     * its own
+     * @param index The index of the record in its batch
+     * @return A DynamicTest instance that represents the test case
+     */
+    private DynamicTest toDynamicTest(
+        final TraceRecord record,
+        final Batch batch,
+        final int index) {
+        StringBuilder nameBuilder = new StringBuilder();
+        nameBuilder.append("Line: ");
+        nameBuilder.append(record.getLineNumber());
+        if (record.isStatement()) {
+            nameBuilder.append(" | Expected ");
+            nameBuilder.append(record.getFirstLine());
+        } else {
+            nameBuilder.append(" | Hash:");
+            nameBuilder.append(getParsedHash(record.getExpectedResults()));
+        }
+        final String testName = nameBuilder.toString();
+
+        return DynamicTest.dynamicTest(testName, () -> {
+            ++numRecords;
+            try {
+                if (batch != null) {
+                    batch.check(index);
+                } else if (record.isStatement()) {
+                    runTimed(record, () -> checkNonSelectQuery(record));
+                } else {
+                    runTimed(record, () -> checkSelectQuery(record));
+                    if (baseline != null && BASELINE_RECORD
+                        && isMeasurable(record)) {
+                        recordBaseline(record);
+                    }
+                }
+            } catch (Throwable e) {
+                ++numFailures;
+                failedLines.add(record.getLineNumber());
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Create the test case that checks the latency of a query against its
+     * baseline. It runs right after the test case of the query.
+     * @param record The query record
+     * @param entry The baseline of the query
+     * @return A DynamicTest instance that represents the test case
+     */
+    private DynamicTest toLatencyTest(
+        final TraceRecord record,
+        final LatencyBaseline.Entry entry) {
+        final String testName = "Line: " + record.getLineNumber() + " | Latency";
+        return DynamicTest.dynamicTest(testName, () -> {
+            Assumptions.assumeTrue(
+                lastPassedRecord == record,
+                "The query did not pass, so its latency is not checked");
+            final long thresholdNanos = entry.getThresholdNanos(
+                BASELINE_TOLERANCE, BASELINE_SLACK_NANOS);
+            // Measured like the baseline, rather than taken from the
+            // checked run, whose timings leave out preparing the statement
+            final String queryString = record.getSql().trim();
+            if (measureQuery(queryString) <= thresholdNanos) {
+                return;
+            }
+            // Confirm with more runs that this is not just noise
+            final LatencyHistogram reruns = new LatencyHistogram();
+            for (int i = 0; i < BASELINE_REPEAT; ++i) {
+                reruns.record(measureQuery(queryString));
+            }
+            final long medianNanos = reruns.getPercentile(50);
+            if (medianNanos <= thresholdNanos) {
+                return;
+            }
+            ++numRegressions;
+            StringBuilder builder = new StringBuilder();
+            builder.append("Latency regression at line ");
+            builder.append(record.getLineNumber());
+            builder.append(String.format(
+                ": median %.1f us over %d runs, threshold %.1f us, baseline ",
+                medianNanos / 1e3, BASELINE_REPEAT, thresholdNanos / 1e3));
+            builder.append(entry);
+            builder.append('\n');
+            builder.append(queryString);
+            throw new AssertionError(builder.toString());
+        });
+    }
+
+    /**
+     * Create the test case that runs a query marked by a bench directive
+     * repeatedly and logs its latency. It runs right after the test case
+     * of the query, which checks the results once; the repeated runs are
+     * not checked.
+     * @param record The benched query record
+     * @return A DynamicTest instance that represents the test case
+     */
+    private DynamicTest toBenchTest(final TraceRecord record) {
+        final String testName = "Line: " + record.getLineNumber() + " | Bench";
+        return DynamicTest.dynamicTest(testName, () -> {
+            Assumptions.assumeTrue(
+                lastPassedRecord == record,
+                "The query did not pass, so it is not benched");
+            final String queryString = record.getSql().trim();
+            for (int i = 0; i < record.getBenchWarmup(); ++i) {
+                measureQuery(queryString);
+            }
+            final LatencyHistogram latencies = new LatencyHistogram();
+            for (int i = 0; i < record.getBenchIterations(); ++i) {
+                latencies.record(measureQuery(queryString));
+            }
+            LOGGER.log(String.format(
+                "Bench %s:%d: %d runs after %d warmup, mean %.1f us, "
+                    + "min %.1f us, p50 %.1f us, p90 %.1f us, p99 %.1f us, "
+                    + "max %.1f us",
+                getName(), record.getLineNumber(), latencies.getCount(),
+                record.getBenchWarmup(), latencies.getMean() / 1e3,
+                latencies.getMin() / 1e3, latencies.getPercentile(50) / 1e3,
+                latencies.getPercentile(90) / 1e3,
+                latencies.getPercentile(99) / 1e3, latencies.getMax() / 1e3));
+        });
+    }
+
+    /**
+     * Run a query and read its results, without checking them.
+     * @param queryString The query
+     * @return The time taken, in nanoseconds
+     * @throws SQLException if the query fails
+     */
+    private long measureQuery(final String queryString) throws SQLException {
+        final long start = System.nanoTime();
+        boolean streaming = false;
+        Statement statement = null;
+        try {
+            streaming = beginStreaming();
+            statement = prepare(queryString);
+            statement.setFetchSize(streaming ? FETCH_SIZE : 0);
+            if (execute(statement, queryString)) {
+                final ResultSet rs = statement.getResultSet();
+                final int numCols = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    for (int i = 1; i <= numCols; ++i) {
+                        rs.getString(i);
+                    }
+                }
+            }
+            if (streaming) {
+                conn.commit();
+            }
+        } finally {
+            release(statement);
+            if (streaming) {
+                endStreaming();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Determine whether the latency of a query can be measured, which runs
+     * it again. Only queries that only read can be, since running a query
+     * that writes again would change the database that the records after
+     * it see.
+     * @param record The query record
+     * @return True if the query only reads; otherwise, the skip is logged
+     */
+    private boolean isMeasurable(final TraceRecord record) {
+        if (QueryTemplate.isReadOnly(record.getSql())) {
+            return true;
+        }
+        LOGGER.log("Line " + record.getLineNumber() + " may write, so its "
+            + "latency is not " + (BASELINE_RECORD ? "recorded" : "checked"));
+        return false;
+    }
+
+    /**
+     * Add samples of a query that passed to the baseline being recorded.
+     * @param record The query record
+     */
+    private void recordBaseline(final TraceRecord record) {
+        final String template = QueryTemplate.normalize(record.getSql());
+        final String queryString = record.getSql().trim();
+        try {
+            for (int i = 0; i < BASELINE_REPEAT; ++i) {
+                baseline.addSample(template, measureQuery(queryString));
+            }
+        } catch (SQLException e) {
+            LOGGER.error("Failed to sample line " + record.getLineNumber()
+                + " for the latency baseline: " + e.getMessage());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Connection Management
+    // ------------------------------------------------------------------------
+
+    /**
+     * Open the DBMS server connection, drop leftover tables and start
+     * reading the tracefile. A tracefile that cannot be started counts as
+     * one failure.
+     * @return A stream of the records to run
+     */
+    private Stream<TraceRecord> open() {
+        LOGGER.log("File Name: " + file.getPath()
+            + (protocol == null ? "" : ", protocol " + protocol));
+        try {
+            if (protocol != null) {
+                conn = protocol.connect(database);
+            } else {
+                conn = database == null
+                    ? TestUtility.makeDefaultConnection()
+                    : TestUtility.makeDefaultConnection(database);
+            }
+            dropPublicTables();
+            if (BASELINE_DIR != null && !BASELINE_DIR.isEmpty()) {
+                baseline = BASELINE_RECORD
+                    ? new LatencyBaseline()
+                    : LatencyBaseline.load(baselineFile());
+            }
+            return selectRecords(new MogSqlite(file, true));
+        } catch (SQLException e) {
+            ++numFailures;
+            throw new RuntimeException(
+                "Failed to connect for " + file + ": " + e.getMessage(), e);
+        } catch (IOException e) {
+            ++numFailures;
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Drop all tables in the public namespace, so that a tracefile does
+     * not see the tables of the tracefiles run before it. Relations that
+     * cannot be dropped as tables, e.g., indexes, are skipped.
+     */
+    private void dropPublicTables() {
+        final List<String> relations = new ArrayList<>();
+        try (Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery(PUBLIC_RELATIONS_QUERY)) {
+            while (rs.next()) {
+                relations.add(rs.getString(1));
+            }
+        } catch (SQLException e) {
+            LOGGER.error("Failed to list leftover tables: " + e.getMessage());
+            return;
+        }
+        for (final String relation : relations) {
+            try (Statement statement = conn.createStatement()) {
+                statement.execute(
+                    "DROP TABLE IF EXISTS " + relation + " CASCADE");
+            } catch (SQLException e) {
+                // Not a table, or already dropped along with another table
+            }
+        }
+    }
+
+    /**
+     * Determine if the DBMS server connection is still open.
+     * @return `true` if the connection is open, `false` otherwise
+     */
+    private boolean isConnectionOpen() {
+        try {
+            if (!conn.isClosed()) {
+                return true;
+            }
+        } catch (SQLException e) {
+            // Treat a connection that cannot be queried as closed
+        }
+        LOGGER.error("Connection closed, skipping remaining tests.");
+        return false;
+    }
+
+    /**
+     * Close the DBMS server connection, if it was opened.
+     */
+    @Override
+    public void close() {
+        if (conn == null) {
+            return;
+        }
+        if (baseline != null && BASELINE_RECORD) {
+            try {
+                baseline.save(baselineFile());
+                LOGGER.log("Recorded latency baseline " + baselineFile());
+            } catch (IOException e) {
+                LOGGER.error("Failed to save latency baseline: " + e.getMessage());
+            }
+            baseline = null;
+        }
+        statements.values().forEach(TracefileRunner::closeStatement);
+        statements.clear();
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            LOGGER.error("Failed to close connection: " + e.getMessage());
+        }
+        conn = null;
+    }
+
+    // ------------------------------------------------------------------------
+    // Test Execution
+    // ------------------------------------------------------------------------
+
+    /**
+     * Execute a SELECT query and check its results.
+     * @param record The query record
+     * @throws RuntimeException if the query fails or its results mismatch
+     */
+    private void checkSelectQuery(final TraceRecord record)
+        throws RuntimeException {
+        final int lineNumber = record.getLineNumber();
+        final String queryString = record.getSql().trim();
+        final List<String> queryResults = record.getExpectedResults();
+
+        // Extract the configuration for the current query
+        final String expectedHash = getParsedHash(queryResults);
+        final boolean onlyResult = getCheckOnlyResult(queryResults);
+        final int expectedResultCount = getParsedResultCount(queryResults);
+        final boolean checkExpectedLength
+            = getCheckExpectedLength(queryResults);
+
+        // execute sql query to get result from database; results that are
+        // checked by hash are hashed as they arrive instead of being kept
+        boolean streaming = false;
+        Statement statement = null;
+        try {
+            // Execute the query
+            streaming = beginStreaming();
+            statement = prepare(queryString);
+            statement.setFetchSize(streaming ? FETCH_SIZE : 0);
+            executeTimed(statement, queryString);
+
+            // Process the result set from the query
+            if (onlyResult) {
+                // The sort is left to local processing
+                final ResultSet rs = statement.getResultSet();
+                results.reset(rs.getMetaData().getColumnCount());
+                long start = System.nanoTime();
+                final boolean hasRow = rs.next();
+                firstRowNanos = System.nanoTime() - start;
+                start = System.nanoTime();
+                if (hasRow) {
+                    results.addCells(rs);
+                    while (results.addRow(rs)) {
+                        // Keep reading
+                    }
+                }
+                fetchNanos = System.nanoTime() - start;
+                MogSqlite.sortResults(results, record.getSortMode());
+            } else {
+                hasher.reset();
+                hasher.addResults(
+                    statement.getResultSet(), record.getSortMode());
+                firstRowNanos = hasher.getFirstRowNanos();
+                fetchNanos = hasher.getFetchNanos();
+            }
+            if (streaming) {
+                conn.commit();
+            }
+        } catch (Throwable e) {
+            StringBuilder builder = new StringBuilder();
+            builder.append("Failure at line ");
+            builder.append(lineNumber);
+            builder.append(": ");
+            builder.append(e.getMessage());
+            builder.append('\n');
+            builder.append(queryString);
+            checkAlwaysFail(builder.toString());
+            return;
+        } finally {
+            release(statement);
+            if (streaming) {
+                endStreaming();
+            }
+        }
+
+        if (onlyResult) {
+            checkResultSets(results, queryResults);
+            return;
+        }
+
+        final int resultCount = hasher.getNumValues();
+        final List<String> displayResults = hasher.getDisplayValues();
+        final boolean resultCountsMatch
+            = checkResultCount(
+                checkExpectedLength,
+                expectedResultCount,
+                resultCount);
+        checkResultHashes(
+            expectedHash,
+            hasher,
+            () -> {
+                StringBuilder builder = new StringBuilder();
+                builder.append("Failure at Line ");
+                builder.append(lineNumber);
+                builder.append(": \n");
+                builder.append(queryString);
+                builder.append("\nQuery expected ");
+                builder.append(expectedResultCount);
+                builder.append("results, got");
+                builder.append(resultCount);
+                builder.append(" results\n");
+                builder.append(displayResults);
+                builder.append('\n');
+                builder.append(queryResults);
+                return builder.toString();
+            },
+            resultCountsMatch);
+    }
+
+    /**
+     * Execute a non-SELECT query and check whether it succeeded or
+     * failed as expected.
+     * @param record The statement record
+     * @throws RuntimeException if the outcome is not the expected one
+     */
+    private void checkNonSelectQuery(final TraceRecord record)
+        throws RuntimeException {
+        final int lineNumber = record.getLineNumber();
+        final String queryString = record.getSql().trim();
+
+        Statement statement = null;
+        try {
+            statement = prepare(queryString);
+            executeTimed(statement, queryString);
+        } catch (SQLException e) {
+            final String resultCode = e.getSQLState();
+            if (record.getKind() == TraceRecord.Kind.STATEMENT_OK) {
+                StringBuilder messageBuilder = new StringBuilder();
+                messageBuilder.append("Failure at line ");
+                messageBuilder.append(lineNumber);
+                messageBuilder.append(": Expected success but failure\n ");
+                messageBuilder.append(queryString);
+                checkAlwaysFail(messageBuilder.toString());
+            }
+            // statement error case, with optional error code flag
+            final String[] arr = record.getFirstLine().split(" ");
+            try {
+                // TODO(Kyle): Is this array access always in bounds?
+                final int expectedCode
+                    = Integer.parseInt(arr[arr.length - 1]);
+                if (Integer.parseInt(resultCode) == expectedCode) {
+                    return;
+                }
+            } catch (Exception ex) {
+                return;
+            }
+            checkAlwaysFail("Error code mismatch");
+        } finally {
+            release(statement);
+        }
+
+        if (record.getKind() == TraceRecord.Kind.STATEMENT_ERROR) {
+            StringBuilder messageBuilder = new StringBuilder();
+            messageBuilder.append("Failure at line ");
+            messageBuilder.append(lineNumber);
+            messageBuilder.append(": Expected failure but success\n ");
+            messageBuilder.append(queryString);
+            checkAlwaysFail(messageBuilder.toString());
+        }
+    }
+
+    /**
+     * Create the statement to run a record with; see execute(). In
+     * parameterized mode, the literals of the record are lifted into
+     * parameters and bound to the prepared statement of its template,
+     * which is prepared on first use. Under an explicit query protocol,
+     * the record is prepared as is. Otherwise, a plain statement is
+     * created, so that the connection's prepareThreshold, which only
+     * applies to prepared statements, does not switch repeated records to
+     * server-prepared statements.
+     * @param queryString The SQL of the record
+     * @return The statement, ready to be executed
+     * @throws SQLException if the statement cannot be prepared or bound
+     */
+    private Statement prepare(final String queryString)
+        throws SQLException {
+        if (!PARAMETERIZE) {
+            return protocol == null
+                ? conn.createStatement()
+                : conn.prepareStatement(queryString);
+        }
+        final QueryTemplate template = QueryTemplate.parameterize(queryString);
+        PreparedStatement statement = statements.get(template.getSql());
+        if (statement == null) {
+            statement = conn.prepareStatement(template.getSql());
+            statements.put(template.getSql(), statement);
+        } else {
+            statement.clearParameters();
+        }
+        template.bind(statement);
+        return statement;
+    }
+
+    /**
+     * Release a statement returned by prepare(). Statements are closed,
+     * unless they are kept for reuse in parameterized mode.
+     * @param statement The statement; null if prepare() failed
+     */
+    private void release(final Statement statement) {
+        if (statement != null && !PARAMETERIZE) {
+            closeStatement(statement);
+        }
+    }
+
+    /**
+     * Close a statement, logging rather than throwing on failure.
+     * @param statement The statement
+     */
+    private static void closeStatement(final Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            LOGGER.error("Failed to close statement: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Start the transaction of a query whose results are streamed, if
+     * streaming is enabled and no explicit transaction is open.
+     * @return `true` if the results are to be streamed
+     * @throws SQLException if the transaction cannot be started
+     */
+    private boolean beginStreaming() throws SQLException {
+        if (FETCH_SIZE <= 0 || inTransaction) {
+            return false;
+        }
+        conn.setAutoCommit(false);
+        return true;
+    }
+
+    /**
+     * End the transaction of a query whose results were streamed, rolling
+     * it back unless it was committed, and return to autocommit.
+     */
+    private void endStreaming() {
+        try {
+            conn.rollback();
+            conn.setAutoCommit(true);
+        } catch (SQLException e) {
+            LOGGER.error("Failed to end streaming transaction: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Execute a statement returned by prepare().
+     * @param statement The statement
+     * @param queryString The SQL of the record
+     * @return `true` if the statement returned a result set
+     * @throws SQLException if the statement fails
+     */
+    private static boolean execute(
+        final Statement statement,
+        final String queryString) throws SQLException {
+        return statement instanceof PreparedStatement
+            ? ((PreparedStatement) statement).execute()
+            : statement.execute(queryString);
+    }
+
+    /**
+     * Execute a statement, timing how long the server takes to answer it.
+     * @param statement The statement, returned by prepare()
+     * @param queryString The SQL of the record
+     * @throws SQLException if the statement fails
+     */
+    private void executeTimed(
+        final Statement statement,
+        final String queryString) throws SQLException {
+        final long start = System.nanoTime();
+        try {
+            execute(statement, queryString);
+        } finally {
+            executeNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Run and check a record, and record its timings. The time not spent
+     * executing the statement or fetching its results is counted as local
+     * processing.
+     * @param record The record
+     * @param check Runs and checks the record
+     * @throws Throwable the failure of the record
+     */
+    private void runTimed(final TraceRecord record, final Executable check)
+        throws Throwable {
+        executeNanos = 0;
+        firstRowNanos = 0;
+        fetchNanos = 0;
+        final long start = System.nanoTime();
+        lastPassedRecord = null;
+        try {
+            check.execute();
+            lastPassedRecord = record;
+        } finally {
+            final long totalNanos = System.nanoTime() - start;
+            timings.record(
+                record.getKind(),
+                executeNanos,
+                firstRowNanos,
+                fetchNanos,
+                Math.max(0, totalNanos - executeNanos - firstRowNanos - fetchNanos));
+        }
+    }
+
+    /**
+     * The records of a batch, executed when the outcome of the first of
+     * them is checked.
+     */
+    private final class Batch {
+        /**
+         * The records, all of them `statement ok` DML.
+         */
+        private final List<TraceRecord> records;
+
+        /**
+         * The outcome of each record, null if it passed; null until the
+         * batch is executed.
+         */
+        private Throwable[] outcomes;
+
+        Batch(final List<TraceRecord> records) {
+            this.records = records;
+        }
+
+        /**
+         * Check the outcome of a record, executing the batch first if need
+         * be.
+         * @param index The index of the record in the batch
+         * @throws Throwable the failure of the record
+         */
+        void check(final int index) throws Throwable {
+            if (outcomes == null) {
+                execute();
+            }
+            if (outcomes[index] != null) {
+                throw outcomes[index];
+            }
+        }
+
+        /**
+         * Execute the records in a single round trip, within a transaction
+         * so that a failed batch leaves nothing behind. If the batch fails,
+         * run the records one by one instead.
+         */
+        private void execute() {
+            outcomes = new Throwable[records.size()];
+            try {
+                conn.setAutoCommit(false);
+                try (Statement statement = conn.createStatement()) {
+                    final long start = System.nanoTime();
+                    for (final TraceRecord record : records) {
+                        statement.addBatch(record.getSql().trim());
+                    }
+                    statement.executeBatch();
+                    conn.commit();
+                    // The records share the round trip, so they share its time
+                    final long executeNanos
+                        = (System.nanoTime() - start) / records.size();
+                    for (int i = 0; i < records.size(); ++i) {
+                        timings.record(
+                            TraceRecord.Kind.STATEMENT_OK, executeNanos, 0, 0, 0);
+                    }
+                    return;
+                } catch (SQLException e) {
+                    conn.rollback();
+                    LOGGER.log("Batch at line " + records.get(0).getLineNumber()
+                        + " failed, running its records one by one: "
+                        + e.getMessage());
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                // The transaction could not be managed; leave it to the
+                // records to report the state of the connection
+                LOGGER.error("Failed to run batch: " + e.getMessage());
+            }
+            for (int i = 0; i < records.size(); ++i) {
+                final TraceRecord record = records.get(i);
+                try {
+                    runTimed(record, () -> checkNonSelectQuery(record));
+                } catch (Throwable e) {
+                    outcomes[i] = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Groups records into batches of consecutive batchable records, and
+     * singletons of all other records. Reads at most one record ahead of
+     * the last batch.
+     */
+    private final class RecordGroups
+        extends Spliterators.AbstractSpliterator<List<TraceRecord>> {
+        private final Iterator<TraceRecord> records;
+
+        /**
+         * The record read ahead of the previous group; null if none.
+         */
+        private TraceRecord next;
+
+        RecordGroups(final Iterator<TraceRecord> records) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.records = records;
+        }
+
+        @Override
+        public boolean tryAdvance(
+            final Consumer<? super List<TraceRecord>> action) {
+            final TraceRecord first = pull();
+            if (first == null) {
+                return false;
+            }
+            final List<TraceRecord> group = new ArrayList<>();
+            group.add(first);
+            if (isBatchable(first)) {
+                while (group.size() < batchSize) {
+                    final TraceRecord record = pull();
+                    if (record == null) {
+                        break;
+                    }
+                    if (!isBatchable(record)) {
+                        next = record;
+                        break;
+                    }
+                    group.add(record);
+                }
+            }
+            for (final TraceRecord record : group) {
+                trackTransaction(record);
+            }
+            action.accept(group);
+            return true;
+        }
+
+        private TraceRecord pull() {
+            if (next != null) {
+                final TraceRecord record = next;
+                next = null;
+                return record;
+            }
+            return records.hasNext() ? records.next() : null;
+        }
+
+        private boolean isBatchable(final TraceRecord record) {
+            return batchSize > 1
+                && !inTransaction
+                && record.getKind() == TraceRecord.Kind.STATEMENT_OK
+                && startsWithAny(record.getSql(), BATCHABLE_PREFIXES);
+        }
+
+        private void trackTransaction(final TraceRecord record) {
+            if (!record.isStatement()) {
+                return;
+            }
+            if (startsWithAny(record.getSql(), BEGIN_PREFIXES)) {
+                inTransaction = true;
+            } else if (startsWithAny(record.getSql(), END_PREFIXES)) {
+                inTransaction = false;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Correctness Checks
+    // ------------------------------------------------------------------------
+
+    /**
+     * Determine if the results of the query match the expected results.
+     * Values are compared in their packed form; only a value that differs
+     * from the expected one is decoded, to compare it as a number.
+     * @param results The results from the query executed against NoisePage
+     * @param expectedResults The expected results from the tracefile
+     * @throws RuntimeException
+     */
+    static void checkResultSets(
+        final ResultBuffer results,
+        final List<String> expectedResults) throws RuntimeException {
+        if (results.getNumCells() != expectedResults.size()) {
+            throw new RuntimeException(
+                "Unexpected number of results for query");
+        }
+
+        for (int i = 0; i < results.getNumCells(); ++i) {
+            if (results.matches(i, expectedResults.get(i))) {
+                continue;
+            }
+            // NULL and '' only match themselves
+            final String value
+                = results.getString(results.sortedCell(i));
+            if (value == null || value.isEmpty()) {
+                throw new RuntimeException("Value '' Mismatch");
+            }
+            boolean close;
+            try {
+                final double one = Double.parseDouble(value);
+                final double two = Double.parseDouble(expectedResults.get(i));
+                close = Math.abs(one - two) <= PRECISION;
+            } catch (Exception e) {
+                close = false;
+            }
+            if (!close) {
+                StringBuilder builder = new StringBuilder();
+                builder.append("Expected ");
+                builder.append(expectedResults);
+                builder.append(" but have ");
+                builder.append(results.toList());
+                throw new RuntimeException(builder.toString());
+            }
+        }
+
+        // Reaching this point indicates that all checks passed!
+    }
+
+    /**
+     * Determine if the length of queried result equals
+     * the length of expected result.
+     * @param checkExpectedLength A boolean flag indicating
+     * whether the check is actually performed
+     * @param expectedCount parsed result length
+     * @param actualCount actual length
+     * @return `true` if result counts match or the check
+     * is elided, `false` otherwise
+     */
+    private static boolean checkResultCount(
+        final boolean checkExpectedLength,
+        final int expectedCount,
+        final int actualCount) {
+        // If checkExpectedLength is `false` we elide the check entirely
+        // TODO(Kyle): This logic is insane, why do we do this at all?
+        return checkExpectedLength ? (expectedCount == actualCount) : true;
+    }
+
+    /**
+     * Determine if the hashes for the actual and
+     * the expected query result sets match.
+     * @param expectedHash The expected hash from the tracefile
+     * @param hasher The hasher that was fed the queried result set
+     * @param message Supplies the error message, only invoked on failure
+     * @param resultCountsMatch Indicates whether the result count check passed
+     * @throws RuntimeException
+     */
+    private static void checkResultHashes(
+        final String expectedHash,
+        final ResultHasher hasher,
+        final Supplier<String> message,
+        final boolean resultCountsMatch) throws RuntimeException {
+        // If length doesn't match, throw
+        if (!resultCountsMatch) {
+            throw new RuntimeException("Query got wrong number of values");
+        }
+
+        // try comparing the hash
+        final String actualHash = hasher.getHash();
+        if (!actualHash.equals(expectedHash)) {
+            // if hash doesn't match
+            if (resultCountsMatch) {
+                // If result counts match, we compare the hash of the
+                // results with doubles cast to int again (hack for float
+                // precision errors)
+                final String updatedHash = hasher.getRoundedHash();
+                if (!updatedHash.equals(expectedHash)) {
+                    StringBuilder builder = new StringBuilder();
+                    builder.append(message.get());
+                    builder.append("\nExpected: ");
+                    builder.append(expectedHash);
+                    builder.append("\nActual: ");
+                    builder.append(updatedHash);
+                    builder.append('\n');
+                    builder.append(hasher.getDisplayValues());
+                    throw new RuntimeException(builder.toString());
+                }
+            } else {
+                // Hashes and result counts disagree; throw
+                StringBuilder builder = new StringBuilder();
+                builder.append(message.get());
+                builder.append("\nExpected: ");
+                builder.append(expectedHash);
+                builder.append("\nActual: ");
+                builder.append(actualHash);
+                throw new RuntimeException(builder.toString());
+            }
+        }
+
+        // If we reach this point, the checks have passed!
+    }
+
+    /**
+     * Wrapper for throwing message for the case in which SQL statements fail.
+     * @param message The error message
+     * @throws RuntimeException
+     */
+    private static void checkAlwaysFail(final String message)
+        throws RuntimeException {
+        throw new RuntimeException(message);
+    }
+
+    // ------------------------------------------------------------------------
+    // Misc. Utilities
+    // ------------------------------------------------------------------------
+
+    /**
+     * @return The latency baseline file of the tracefile
+     */
+    private File baselineFile() {
+        return LatencyBaseline.fileFor(
+            new File(BASELINE_DIR), new File(getName()));
+    }
+
+    /**
+     * Get a setting from the environment.
+     * @param name The name of the environment variable
+     * @param defaultValue The value if the variable is not set
+     * @return The value of the setting
+     */
+    private static String getSetting(final String name, final String defaultValue) {
+        final String value = System.getenv(name);
+        return value == null || value.isEmpty() ? defaultValue : value.trim();
+    }
+
+    /**
+     * Get an integer setting from the environment.
+     * @param name The name of the environment variable
+     * @param defaultValue The value if the variable is not set
+     * @return The value of the setting
+     */
+    private static int getIntSetting(final String name, final int defaultValue) {
+        return Integer.parseInt(getSetting(name, Integer.toString(defaultValue)));
+    }
+
+    /**
+     * Determine if a SQL statement starts with any of the given keywords.
+     * @param sql The SQL statement
+     * @param prefixes The keywords, in upper case
+     * @return `true` if the statement starts with one of the keywords
+     */
+    private static boolean startsWithAny(
+        final String sql,
+        final String[] prefixes) {
+        final String statement = sql.trim().toUpperCase(Locale.ROOT);
+        for (final String prefix : prefixes) {
+            if (statement.startsWith(prefix)
+                && (statement.length() == prefix.length()
+                    || !Character.isLetterOrDigit(
+                        statement.charAt(prefix.length())))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Select the records of the tracefile to run. By default all records
+     * are run; a range of lines, given as FIRST or FIRST:LAST, restricts the
+     * run to the records starting within it. This is useful for re-running
+     * a failing line or a slice of a large tracefile, which is cheap for
+     * compiled tracefiles.
+     * @param mog The tracefile parser
+     * @return A stream of the records to run
+     */
+    private Stream<TraceRecord> selectRecords(final MogSqlite mog) {
+        if (lines == null || lines.isEmpty()) {
+            return mog.stream();
+        }
+        final String[] range = lines.split(":");
+        final int firstLine = Integer.parseInt(range[0].trim());
+        final int lastLine = range.length > 1
+            ? Integer.parseInt(range[1].trim())
+            : firstLine;
+        LOGGER.log("Lines: " + firstLine + " to " + lastLine);
+        return mog.stream(firstLine, lastLine);
+    }
+
+    /**
+     * Determine if we should only check the expected
+     * length of the result sets.
+     * @param queryResults The expected results of the query record
+     * @return `true` if the length of the result set
+     * should be checked, `false` otherwise
+     */
+    private static boolean getCheckExpectedLength(
+        final List<String> queryResults) {
+        // TODO(Kyle): I just ripped this logic out of the above
+        // function, but this could still really use a deeper refactor
+        if (queryResults.size() == 0
+        || (!queryResults.get(0).contains(Constants.VALUES))) {
+            return false;
+        }
+
+        final String[] sentence = queryResults.get(0).split(" ");
+        try {
+            Integer.parseInt(sentence[0]);
+        } catch (Exception e) {
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Determine if we should check the result of the query,
+     * rather than the hash.
+     * @param queryResults The expected results of the query record
+     * @return `true` if we check the result, `false` otherwise
+     */
+    private static boolean getCheckOnlyResult(
+        final List<String> queryResults) {
+        return (queryResults.size() == 0
+            || (!queryResults.get(0).contains(Constants.VALUES)));
+    }
+
+    /**
+     * Get the parsed hash from the current query.
+     * @param queryResults The expected results of the query record
+     * @return The parsed hash
+     */
+    private static String getParsedHash(final List<String> queryResults) {
+        if (queryResults.size() == 0
+        || (!queryResults.get(0).contains(Constants.VALUES))) {
+            return TestUtility.getHashFromDb(queryResults);
+        } else {
+            final String[] sentence = queryResults.get(0).split(" ");
+            return sentence[sentence.length - 1];
+        }
+    }
+
+    /**
+     * Get the parsed result count from the current query.
+     * @param queryResults The expected results of the query record
+     * @return The parsed result count
+     */
+    private static int getParsedResultCount(
+        final List<String> queryResults) {
+        if (queryResults.size() == 0
+        || (!queryResults.get(0).contains(Constants.VALUES))) {
+            return 0;
+        }
+        final String[] sentence = queryResults.get(0).split(" ");
+        try {
+            return Integer.parseInt(sentence[0]);
+        } catch (Exception e) {
+            return Integer.parseInt(sentence[1]);
+        }
+    }
+}
@@ -47,8 +47,8 @@ public class TrafficCopTest extends TestUtility {
   public void test_DisconnectAbort() throws SQLException, InterruptedException {
 
    // create another connection that will take the write lock on a tuple, forcing an abort on the default connection's
-   // createStatement
-   Connection second_conn = makeDefaultConnection();
+   // createStatement. It bypasses the connection pool so that closing it disconnects.
+   Connection second_conn = makeDirectConnection();
    second_conn.setAutoCommit(true);
 
    Statement stmt = second_conn.createStatement();
@@ -0,0 +1,326 @@
+package moglib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * CompiledTrace provides random access to the records of a trace file that was compiled by TraceCompiler.
+ * <p>
+ * The compiled form is laid out as follows. Fixed-size integers are big-endian, varints are unsigned LEB128.
+ * <pre>
+ *   header:  MAGIC, VERSION, record count, string count, record index offset, string index offset
+ *   records: line number (varint), kind (byte), sort mode (byte), flags (byte),
+ *            first line id, sql id, type string id, label id (varints),
+ *            condition count followed by condition ids (varints),
+ *            if FLAG_BENCHED: bench warmup and bench iterations (varints),
+ *            if FLAG_HASHED: value count (varint) followed by the 16 byte MD5 hash,
+ *            otherwise: expected result count followed by expected result ids (varints)
+ *   index:   one fixed-size offset per record
+ *   strings: one fixed-size offset per string, followed by the strings as (byte length varint, UTF-8 bytes)
+ * </pre>
+ * All strings are interned, so SQL that appears in several records is only stored once.
+ */
+public class CompiledTrace {
+    /**
+     * "MOGT" in ASCII.
+     */
+    static final int MAGIC = 0x4D4F4754;
+    /**
+     * Bumped on every incompatible change to the format. Stale versions are ignored and recompiled.
+     */
+    static final int VERSION = 3;
+    /**
+     * Size of the header in bytes.
+     */
+    static final int HEADER_SIZE = 6 * Integer.BYTES;
+    /**
+     * Set if the expected results are stored as a pre-decoded value count and hash.
+     */
+    static final byte FLAG_HASHED = 0x1;
+    /**
+     * Set if the record is a query preceded by a bench directive.
+     */
+    static final byte FLAG_BENCHED = 0x2;
+    /**
+     * Sort modes, indexed by their encoding.
+     */
+    static final String[] SORT_MODES = {"nosort", "rowsort", "valuesort"};
+
+    /**
+     * The memory-mapped compiled trace.
+     */
+    private final MappedByteBuffer buf;
+    private final int recordCount;
+    private final int stringCount;
+    private final int indexOffset;
+    private final int stringIndexOffset;
+    /**
+     * Strings decoded so far, indexed by id. Racing threads may decode the same string twice, which is harmless.
+     */
+    private final String[] strings;
+
+    /**
+     * Open a compiled trace.
+     *
+     * @param compiledFile The compiled trace file.
+     * @throws IOException If the file could not be mapped or is not a compiled trace of the current version.
+     */
+    public CompiledTrace(File compiledFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(compiledFile.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a compiled trace: " + compiledFile);
+            }
+            this.buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (MAGIC != buf.getInt(0) || VERSION != buf.getInt(4)) {
+            throw new IOException("Not a compiled trace of version " + VERSION + ": " + compiledFile);
+        }
+        this.recordCount = buf.getInt(8);
+        this.stringCount = buf.getInt(12);
+        this.indexOffset = buf.getInt(16);
+        this.stringIndexOffset = buf.getInt(20);
+        this.strings = new String[stringCount];
+    }
+
+    /**
+     * Get the compiled trace file that belongs to a trace file.
+     *
+     * @param traceFile The trace file, e.g., "select.test".
+     * @return The compiled trace file, e.g., "select.testc". It may not exist.
+     */
+    public static File compiledFileFor(File traceFile) {
+        String path = traceFile.getPath();
+        if (path.endsWith(Constants.TRACE_SUFFIX)) {
+            path = path.substring(0, path.length() - Constants.TRACE_SUFFIX.length());
+        }
+        return new File(path + Constants.COMPILED_TRACE_SUFFIX);
+    }
+
+    /**
+     * Open the compiled form of a trace file, if there is one that is newer than the trace file.
+     *
+     * @param traceFile The trace file.
+     * @return The compiled trace, or null if it is missing, stale or unreadable.
+     */
+    public static CompiledTrace openIfFresh(File traceFile) {
+        File compiledFile = compiledFileFor(traceFile);
+        if (!compiledFile.isFile() || compiledFile.lastModified() < traceFile.lastModified()) {
+            return null;
+        }
+        try {
+            return new CompiledTrace(compiledFile);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The number of records in the trace.
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Get the line number of a record without decoding the rest of the record.
+     *
+     * @param index The index of the record.
+     * @return The 1-based line number of the first line of the record.
+     */
+    public int getLineNumber(int index) {
+        return new Cursor(recordOffset(index)).readVarInt();
+    }
+
+    /**
+     * Find the first record that starts at or after the given line.
+     *
+     * @param lineNumber A 1-based line number.
+     * @return The index of the first record starting at or after the line, or getRecordCount() if there is none.
+     */
+    public int findRecord(int lineNumber) {
+        int lo = 0;
+        int hi = recordCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getLineNumber(mid) < lineNumber) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Decode a record. Its SQL and expected results are only decoded when they are first asked for.
+     *
+     * @param index The index of the record.
+     * @return The record.
+     */
+    public TraceRecord getRecord(int index) {
+        Cursor c = new Cursor(recordOffset(index));
+        int lineNumber = c.readVarInt();
+        TraceRecord.Kind kind = TraceRecord.Kind.values()[c.readByte()];
+        String sortMode = SORT_MODES[c.readByte()];
+        byte flags = c.readByte();
+        String firstLine = string(c.readVarInt());
+        int sqlId = c.readVarInt();
+        Supplier<String> sql = () -> string(sqlId);
+        String typeString = string(c.readVarInt());
+        String label = string(c.readVarInt());
+
+        int numConditions = c.readVarInt();
+        List<String> conditions = new ArrayList<>(numConditions);
+        for (int i = 0; i < numConditions; ++i) {
+            conditions.add(string(c.readVarInt()));
+        }
+
+        if (TraceRecord.Kind.QUERY != kind) {
+            return new TraceRecord(lineNumber, kind, firstLine, sql, conditions);
+        }
+        int benchWarmup = 0;
+        int benchIterations = 0;
+        if (0 != (flags & FLAG_BENCHED)) {
+            benchWarmup = c.readVarInt();
+            benchIterations = c.readVarInt();
+        }
+        TraceRecord record;
+        if (0 != (flags & FLAG_HASHED)) {
+            int valueCount = c.readVarInt();
+            byte[] hash = new byte[16];
+            for (int i = 0; i < hash.length; ++i) {
+                hash[i] = c.readByte();
+            }
+            record = new TraceRecord(lineNumber, firstLine, sql, typeString, sortMode, label, conditions, valueCount,
+                    MogUtil.bytesToHex(hash).toLowerCase());
+        } else {
+            int[] resultIds = new int[c.readVarInt()];
+            for (int i = 0; i < resultIds.length; ++i) {
+                resultIds[i] = c.readVarInt();
+            }
+            /* The compiler writes hash lines as hashes, so these results are never a hash line. */
+            Supplier<List<String>> expectedResults = () -> {
+                List<String> results = new ArrayList<>(resultIds.length);
+                for (int id : resultIds) {
+                    results.add(string(id));
+                }
+                return results;
+            };
+            record = new TraceRecord(lineNumber, kind, firstLine, sql, typeString, sortMode, label, conditions,
+                    expectedResults);
+        }
+        return 0 != benchIterations ? record.withBench(benchWarmup, benchIterations) : record;
+    }
+
+    /**
+     * Get a spliterator over a range of records. The spliterator is sized and can be split for parallel traversal.
+     *
+     * @param fromIndex Index of the first record, inclusive.
+     * @param toIndex   Index of the last record, exclusive.
+     * @return A spliterator over the records in the range.
+     */
+    public Spliterator<TraceRecord> spliterator(int fromIndex, int toIndex) {
+        return new RecordSpliterator(fromIndex, toIndex);
+    }
+
+    private int recordOffset(int index) {
+        if (index < 0 || index >= recordCount) {
+            throw new IndexOutOfBoundsException("Record " + index + " of " + recordCount);
+        }
+        return buf.getInt(indexOffset + index * Integer.BYTES);
+    }
+
+    private String string(int id) {
+        String s = strings[id];
+        if (null == s) {
+            Cursor c = new Cursor(buf.getInt(stringIndexOffset + id * Integer.BYTES));
+            byte[] bytes = new byte[c.readVarInt()];
+            for (int i = 0; i < bytes.length; ++i) {
+                bytes[i] = c.readByte();
+            }
+            s = new String(bytes, StandardCharsets.UTF_8);
+            strings[id] = s;
+        }
+        return s;
+    }
+
+    /**
+     * Cursor for sequential reads from a position in the mapping, using absolute gets so that the buffer itself is never
+     * modified and may be shared between threads.
+     */
+    private class Cursor {
+        private int pos;
+
+        Cursor(int pos) {
+            this.pos = pos;
+        }
+
+        byte readByte() {
+            return buf.get(pos++);
+        }
+
+        int readVarInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf.get(pos++);
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (0 != (b & 0x80));
+            return value;
+        }
+    }
+
+    /**
+     * Spliterator over a range of record indexes.
+     */
+    private class RecordSpliterator implements Spliterator<TraceRecord> {
+        private int index;
+        private final int end;
+
+        RecordSpliterator(int index, int end) {
+            this.index = index;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super TraceRecord> action) {
+            if (index >= end) {
+                return false;
+            }
+            action.accept(getRecord(index++));
+            return true;
+        }
+
+        @Override
+        public Spliterator<TraceRecord> trySplit() {
+            int mid = (index + end) >>> 1;
+            if (mid <= index) {
+                return null;
+            }
+            Spliterator<TraceRecord> prefix = new RecordSpliterator(index, mid);
+            index = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - index;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+        }
+    }
+}
@@ -0,0 +1,506 @@
+package moglib;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConnectionPool is a bounded pool of JDBC connections to a single database.
+ * <p>
+ * Borrowed connections are proxies whose close() hands the underlying connection back to the pool instead of closing
+ * it. Connections are validated with isValid() when borrowed and reset when returned: any open transaction is rolled
+ * back, autocommit is turned back on, and the reset statements are run, which must leave the session as if it were
+ * new, e.g., POSTGRES_RESET. Connections that fail validation or reset are closed and replaced.
+ * <p>
+ * Not every server can reset a session, e.g., NoisePage does not support DISCARD ALL. Once the server rejects the reset
+ * statements, the pool falls back to the fallback reset statements, e.g., POSTGRES_FALLBACK_RESET, which only end the
+ * transaction. Then a returned connection is only reused if its borrower left the session state alone, as tracked on
+ * the client: connections on which SET, RESET, PREPARE, LISTEN, DECLARE, LOAD or CREATE TEMPORARY was run, or whose
+ * settings were changed through JDBC, are closed instead. Without either kind of reset statements, returned
+ * connections are always closed. Either way, SET variables, prepared statements and temporary tables never carry
+ * over to the next borrower.
+ * <p>
+ * When all connections are borrowed, borrowers wait for one to be returned. The time spent waiting is recorded so
+ * that pool contention can be told apart from time spent in the database.
+ */
+public class ConnectionPool implements AutoCloseable {
+    /**
+     * Opens new connections for the pool.
+     */
+    public interface ConnectionFactory {
+        Connection connect() throws SQLException;
+    }
+
+    /**
+     * Default number of connections if not specified.
+     */
+    public static final int DEFAULT_MAX_SIZE = 8;
+    /**
+     * Reset statements for PostgreSQL: ROLLBACK ends transactions started with an explicit BEGIN, which JDBC does not
+     * know about, and DISCARD ALL, which cannot run inside of a transaction, resets everything else. pgjdbc notices
+     * DISCARD ALL and forgets its server-prepared statements.
+     */
+    public static final List<String> POSTGRES_RESET = List.of("ROLLBACK", "DISCARD ALL");
+    /**
+     * Fallback reset statements for PostgreSQL-compatible servers without DISCARD ALL, e.g., NoisePage.
+     */
+    public static final List<String> POSTGRES_FALLBACK_RESET = List.of("ROLLBACK");
+    /**
+     * Statements whose effects outlive the transaction they run in, identified by their first word.
+     */
+    private static final Set<String> SESSION_STATEMENTS = Set.of("SET", "RESET", "PREPARE", "LISTEN", "DECLARE",
+            "LOAD");
+    /**
+     * How long to wait for a connection to be returned before giving up.
+     */
+    private static final long BORROW_TIMEOUT_MS = 30000;
+    /**
+     * How long isValid() may take to validate a connection, in seconds.
+     */
+    private static final int VALIDATION_TIMEOUT_S = 5;
+
+    private final ConnectionFactory factory;
+    private final int maxSize;
+    private final List<String> resetSql;
+    private final List<String> fallbackResetSql;
+    /**
+     * The statements that returned connections are reset with, or null if they are closed instead.
+     */
+    private volatile List<String> currentResetSql;
+    /**
+     * Idle connections, most recently returned last.
+     */
+    private final Deque<Connection> idle = new ArrayDeque<>();
+    /**
+     * Number of connections that are either idle, borrowed, or being opened.
+     */
+    private int size;
+    private boolean closed;
+
+    /* Metrics, guarded by this. */
+    private long numBorrows;
+    private long numWaits;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private long numCreated;
+    private long numDiscarded;
+
+    /**
+     * Create a new pool without fallback reset statements. No connection is opened until one is borrowed.
+     *
+     * @param factory  Opens new connections.
+     * @param maxSize  The maximum number of connections, idle or borrowed.
+     * @param resetSql Statements executed on returned connections in autocommit mode to reset their session state;
+     *                 empty if the session state cannot be reset, in which case returned connections are closed.
+     */
+    public ConnectionPool(ConnectionFactory factory, int maxSize, List<String> resetSql) {
+        this(factory, maxSize, resetSql, List.of());
+    }
+
+    /**
+     * Create a new pool. No connection is opened until one is borrowed.
+     *
+     * @param factory          Opens new connections.
+     * @param maxSize          The maximum number of connections, idle or borrowed.
+     * @param resetSql         Statements executed on returned connections in autocommit mode to reset their session
+     *                         state; empty if the session state cannot be reset.
+     * @param fallbackResetSql Statements executed on returned connections whose session state was left alone, once
+     *                         the server has rejected resetSql; empty to close returned connections instead.
+     */
+    public ConnectionPool(ConnectionFactory factory, int maxSize, List<String> resetSql,
+                          List<String> fallbackResetSql) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool size must be positive: " + maxSize);
+        }
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.resetSql = resetSql;
+        this.fallbackResetSql = fallbackResetSql;
+        this.currentResetSql = !resetSql.isEmpty() ? resetSql : fallbackResetSql.isEmpty() ? null : fallbackResetSql;
+    }
+
+    /**
+     * Borrow a connection, opening a new one if none is idle and the pool is not full, and waiting for one to be
+     * returned otherwise. Close the returned connection to return it to the pool.
+     *
+     * @return A validated connection in autocommit mode.
+     * @throws SQLException If a new connection could not be opened, or none was returned in time.
+     */
+    public Connection borrow() throws SQLException {
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(BORROW_TIMEOUT_MS);
+        boolean waited = false;
+        while (true) {
+            Connection conn = null;
+            synchronized (this) {
+                while (!closed && idle.isEmpty() && size >= maxSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new SQLException("Timed out waiting for a connection from a pool of " + maxSize);
+                    }
+                    waited = true;
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a connection", e);
+                    }
+                }
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+                if (!idle.isEmpty()) {
+                    conn = idle.pollLast();
+                } else {
+                    ++size;
+                }
+            }
+
+            if (null == conn) {
+                conn = open();
+            } else if (!isValid(conn)) {
+                discard(conn);
+                continue;
+            }
+
+            synchronized (this) {
+                long waitNanos = System.nanoTime() - start;
+                ++numBorrows;
+                if (waited) {
+                    ++numWaits;
+                }
+                totalWaitNanos += waitNanos;
+                maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+            }
+            return wrap(conn);
+        }
+    }
+
+    /**
+     * Close all idle connections. Borrowed connections are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        Connection[] conns;
+        synchronized (this) {
+            closed = true;
+            conns = idle.toArray(new Connection[0]);
+            idle.clear();
+            size -= conns.length;
+            notifyAll();
+        }
+        for (Connection conn : conns) {
+            closeQuietly(conn);
+        }
+    }
+
+    /**
+     * @return The maximum number of connections, idle or borrowed.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return The number of connections borrowed so far.
+     */
+    public synchronized long getNumBorrows() {
+        return numBorrows;
+    }
+
+    /**
+     * @return The number of borrows that had to wait for a connection to be returned.
+     */
+    public synchronized long getNumWaits() {
+        return numWaits;
+    }
+
+    /**
+     * @return The total time spent in borrow(), in nanoseconds, including validating and opening connections.
+     */
+    public synchronized long getTotalWaitNanos() {
+        return totalWaitNanos;
+    }
+
+    /**
+     * @return The longest time spent in a single borrow(), in nanoseconds.
+     */
+    public synchronized long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    /**
+     * @return The number of connections opened so far.
+     */
+    public synchronized long getNumCreated() {
+        return numCreated;
+    }
+
+    /**
+     * @return The number of connections closed because they failed validation or reset.
+     */
+    public synchronized long getNumDiscarded() {
+        return numDiscarded;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ConnectionPool[size=%d/%d, idle=%d, borrows=%d, waits=%d, avgWaitUs=%.1f, "
+                        + "maxWaitUs=%.1f, created=%d, discarded=%d]", size, maxSize, idle.size(), numBorrows,
+                numWaits, 0 == numBorrows ? 0.0 : totalWaitNanos / 1e3 / numBorrows, maxWaitNanos / 1e3,
+                numCreated, numDiscarded);
+    }
+
+    private Connection open() throws SQLException {
+        try {
+            Connection conn = factory.connect();
+            synchronized (this) {
+                ++numCreated;
+            }
+            return conn;
+        } catch (SQLException | RuntimeException e) {
+            synchronized (this) {
+                --size;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private static boolean isValid(Connection conn) {
+        try {
+            return conn.isValid(VALIDATION_TIMEOUT_S);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reset a returned connection and make it available again, or close it if it cannot be reset.
+     *
+     * @param conn           The connection.
+     * @param sessionChanged True if the borrower changed the session state, see changesSession().
+     */
+    private void giveBack(Connection conn, boolean sessionChanged) {
+        List<String> reset = currentResetSql;
+        if (null == reset || (reset == fallbackResetSql && sessionChanged)) {
+            discard(conn);
+            return;
+        }
+        try {
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            try {
+                execute(conn, reset);
+            } catch (SQLException e) {
+                if (reset != resetSql || !isValid(conn)) {
+                    throw e;
+                }
+                /* The server does not support the reset statements, fall back to ending the transaction. */
+                currentResetSql = fallbackResetSql.isEmpty() ? null : fallbackResetSql;
+                if (null == currentResetSql || sessionChanged) {
+                    throw e;
+                }
+                execute(conn, fallbackResetSql);
+            }
+            conn.clearWarnings();
+        } catch (SQLException e) {
+            discard(conn);
+            return;
+        }
+        synchronized (this) {
+            if (!closed) {
+                idle.addLast(conn);
+                notifyAll();
+                return;
+            }
+            --size;
+        }
+        closeQuietly(conn);
+    }
+
+    private static void execute(Connection conn, List<String> statements) throws SQLException {
+        try (Statement statement = conn.createStatement()) {
+            for (String sql : statements) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    /**
+     * Check whether SQL changes the session state beyond its transaction, i.e., whether any of its statements is one
+     * of SESSION_STATEMENTS, other than SET LOCAL and SET TRANSACTION, or creates a temporary object. This does not
+     * look into function calls such as set_config().
+     *
+     * @param sql The SQL, possibly several statements separated by semicolons.
+     * @return True if the SQL may change the session state.
+     */
+    static boolean changesSession(String sql) {
+        final int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            /* Read the first words of the statement, skipping whitespace, parentheses and comments. */
+            String[] words = new String[3];
+            int numWords = 0;
+            while (i < length && sql.charAt(i) != ';') {
+                char c = sql.charAt(i);
+                if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                    while (i < length && sql.charAt(i) != '\n') {
+                        ++i;
+                    }
+                } else if (c == '\'' || c == '"') {
+                    i = QueryTemplate.skipQuoted(sql, i, c);
+                    numWords = words.length;
+                } else if (Character.isLetter(c) || c == '_') {
+                    int end = i + 1;
+                    while (end < length && (Character.isLetterOrDigit(sql.charAt(end)) || sql.charAt(end) == '_')) {
+                        ++end;
+                    }
+                    if (numWords < words.length) {
+                        words[numWords++] = sql.substring(i, end).toUpperCase(Locale.ROOT);
+                    }
+                    i = end;
+                } else {
+                    if (!Character.isWhitespace(c) && c != '(') {
+                        numWords = words.length;
+                    }
+                    ++i;
+                }
+            }
+            ++i;
+            if (null == words[0]) {
+                continue;
+            }
+            if (SESSION_STATEMENTS.contains(words[0])) {
+                if (!(words[0].equals("SET") && ("LOCAL".equals(words[1]) || "TRANSACTION".equals(words[1])))) {
+                    return true;
+                }
+            } else if (words[0].equals("CREATE") && null != words[1]) {
+                boolean scoped = words[1].equals("LOCAL") || words[1].equals("GLOBAL");
+                String kind = scoped ? words[2] : words[1];
+                if ("TEMP".equals(kind) || "TEMPORARY".equals(kind)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void discard(Connection conn) {
+        synchronized (this) {
+            --size;
+            ++numDiscarded;
+            notifyAll();
+        }
+        closeQuietly(conn);
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            // Nothing left to do with it
+        }
+    }
+
+    private Connection wrap(Connection conn) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                new PooledConnection(conn));
+    }
+
+    /**
+     * Invocation handler of borrowed connections. Delegates everything to the underlying connection, except that
+     * close() returns it to the pool, after which the borrowed connection behaves as if it were closed.
+     * It also tracks whether the borrower changed the session state, through SQL or by changing settings other than
+     * autocommit, wrapping statements so that the SQL they run is seen too.
+     */
+    private class PooledConnection implements InvocationHandler {
+        private Connection conn;
+        private volatile boolean sessionChanged;
+
+        PooledConnection(Connection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    synchronized (this) {
+                        if (null != conn) {
+                            giveBack(conn, sessionChanged);
+                            conn = null;
+                        }
+                    }
+                    return null;
+                case "isClosed":
+                    synchronized (this) {
+                        return null == conn || conn.isClosed();
+                    }
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + conn;
+                default:
+                    break;
+            }
+            Connection target;
+            synchronized (this) {
+                target = conn;
+            }
+            if (null == target) {
+                throw new SQLException("Connection has been returned to the pool");
+            }
+            String name = method.getName();
+            if ((name.startsWith("set") && !name.equals("setAutoCommit") && !name.equals("setSavepoint"))
+                    || (name.startsWith("prepare") && changesSession((String) args[0]))) {
+                sessionChanged = true;
+            }
+            Object result = delegate(target, method, args);
+            if (result instanceof Statement) {
+                return wrapStatement(proxy, (Statement) result, method.getReturnType());
+            }
+            return result;
+        }
+
+        /**
+         * Wrap a statement, so that the SQL passed to it is checked and getConnection() returns the borrowed
+         * connection rather than the underlying one.
+         */
+        private Object wrapStatement(Object connection, Statement statement, Class<?> type) {
+            return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+                String name = method.getName();
+                if (name.equals("getConnection")) {
+                    return connection;
+                }
+                if ((name.startsWith("execute") || name.equals("addBatch")) && null != args
+                        && args[0] instanceof String && changesSession((String) args[0])) {
+                    sessionChanged = true;
+                }
+                return delegate(statement, method, args);
+            });
+        }
+    }
+
+    private static Object delegate(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package moglib;
+
+import org.junit.*;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that ConnectionPool reuses connections whose session it can reset, and closes the others, against fake
+ * connections that record the SQL run on them.
+ */
+public class ConnectionPoolTest {
+    /**
+     * SQL run on all fake connections, in order.
+     */
+    private final List<String> executed = new ArrayList<>();
+    /**
+     * SQL that fake connections reject, as NoisePage rejects DISCARD ALL.
+     */
+    private String unsupported = null;
+    /**
+     * Whether fake connections still pass isValid().
+     */
+    private boolean valid = true;
+
+    @Test
+    public void testReusesResetConnections() throws SQLException {
+        try (ConnectionPool pool = newPool()) {
+            for (int i = 0; i < 10; ++i) {
+                try (Connection conn = pool.borrow(); Statement statement = conn.createStatement()) {
+                    statement.execute("SET foo = 1");
+                }
+            }
+            assertEquals(10, pool.getNumBorrows());
+            assertEquals(1, pool.getNumCreated());
+            assertTrue(executed.contains("DISCARD ALL"));
+        }
+    }
+
+    @Test
+    public void testFallsBackWithoutDiscardAll() throws SQLException {
+        unsupported = "DISCARD ALL";
+        try (ConnectionPool pool = newPool()) {
+            for (int i = 0; i < 10; ++i) {
+                try (Connection conn = pool.borrow(); Statement statement = conn.createStatement()) {
+                    statement.execute("SELECT 1");
+                }
+            }
+            assertEquals(1, pool.getNumCreated());
+            /* DISCARD ALL is only tried once. */
+            assertEquals(1, executed.stream().filter("DISCARD ALL"::equals).count());
+
+            /* Connections whose session state was changed cannot be reset, so they are not reused. */
+            try (Connection conn = pool.borrow(); Statement statement = conn.createStatement()) {
+                statement.execute("SELECT 1; SET foo = 1");
+            }
+            try (Connection conn = pool.borrow()) {
+                conn.prepareStatement("CREATE TEMP TABLE t (a INT)").close();
+            }
+            try (Connection conn = pool.borrow()) {
+                conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            }
+            try (Connection conn = pool.borrow()) {
+                conn.setAutoCommit(false);
+                conn.createStatement().execute("SET LOCAL foo = 1");
+            }
+            assertEquals(14, pool.getNumBorrows());
+            assertEquals(4, pool.getNumCreated());
+            assertEquals(3, pool.getNumDiscarded());
+        }
+    }
+
+    @Test
+    public void testDiscardsBrokenConnections() throws SQLException {
+        try (ConnectionPool pool = newPool()) {
+            Connection conn = pool.borrow();
+            unsupported = "ROLLBACK";
+            valid = false;
+            conn.close();
+            assertEquals(1, pool.getNumDiscarded());
+
+            /* A broken connection says nothing about the server, so the next one is reset as before. */
+            unsupported = null;
+            valid = true;
+            executed.clear();
+            pool.borrow().close();
+            pool.borrow().close();
+            assertEquals(2, pool.getNumCreated());
+            assertTrue(executed.contains("DISCARD ALL"));
+        }
+    }
+
+    @Test
+    public void testRollsBackOpenTransactions() throws SQLException {
+        try (ConnectionPool pool = newPool()) {
+            try (Connection conn = pool.borrow()) {
+                conn.setAutoCommit(false);
+                conn.createStatement().execute("INSERT INTO t VALUES (1)");
+            }
+            try (Connection conn = pool.borrow()) {
+                assertTrue(conn.getAutoCommit());
+            }
+            assertTrue(executed.contains("rollback()"));
+            assertEquals(1, pool.getNumCreated());
+        }
+    }
+
+    @Test
+    public void testClosesConnectionsWithoutReset() throws SQLException {
+        try (ConnectionPool pool = new ConnectionPool(this::connect, 2, List.of())) {
+            for (int i = 0; i < 3; ++i) {
+                pool.borrow().close();
+            }
+            assertEquals(3, pool.getNumCreated());
+        }
+    }
+
+    @Test
+    public void testChangesSession() {
+        assertTrue(ConnectionPool.changesSession("SET search_path = foo"));
+        assertTrue(ConnectionPool.changesSession("  -- comment\n reset all"));
+        assertTrue(ConnectionPool.changesSession("SELECT 1; PREPARE p AS SELECT 1"));
+        assertTrue(ConnectionPool.changesSession("CREATE LOCAL TEMPORARY TABLE t (a INT)"));
+        assertFalse(ConnectionPool.changesSession("SET LOCAL search_path = foo"));
+        assertFalse(ConnectionPool.changesSession("SET TRANSACTION ISOLATION LEVEL SERIALIZABLE"));
+        assertFalse(ConnectionPool.changesSession("CREATE TABLE temp (a INT)"));
+        assertFalse(ConnectionPool.changesSession("UPDATE t SET a = 1"));
+        assertFalse(ConnectionPool.changesSession("SELECT 'x; SET a = 1'"));
+    }
+
+    private ConnectionPool newPool() {
+        return new ConnectionPool(this::connect, 2, ConnectionPool.POSTGRES_RESET,
+                ConnectionPool.POSTGRES_FALLBACK_RESET);
+    }
+
+    /**
+     * @return A fake connection that records what is run on it in executed.
+     */
+    private Connection connect() {
+        boolean[] autoCommit = {true};
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isValid":
+                            return valid;
+                        case "getAutoCommit":
+                            return autoCommit[0];
+                        case "setAutoCommit":
+                            autoCommit[0] = (boolean) args[0];
+                            return null;
+                        case "rollback":
+                            executed.add("rollback()");
+                            return null;
+                        case "createStatement":
+                            return statement(Statement.class);
+                        case "prepareStatement":
+                            executed.add((String) args[0]);
+                            return statement(PreparedStatement.class);
+                        case "setTransactionIsolation":
+                        case "clearWarnings":
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private Statement statement(Class<? extends Statement> type) {
+        return (Statement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "execute":
+                            String sql = (String) args[0];
+                            executed.add(sql);
+                            if (sql.equals(unsupported)) {
+                                throw new SQLException("unsupported statement type");
+                            }
+                            return false;
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
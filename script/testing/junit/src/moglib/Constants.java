@@ -7,8 +7,11 @@ public class Constants {
     public static final String HASHTAG = "#";
     public static final String HALT = "halt";
     public static final String HASH_THRESHOLD = "hash-threshold";
+    public static final String BENCH = "bench";
     public static final String SEPARATION = "----";
     public static final String DEST_DIR = "traces";
+    public static final String TRACE_SUFFIX = ".test";
+    public static final String COMPILED_TRACE_SUFFIX = ".testc";
     public static final String VALUES = "value";
     public static final String SKIPIF = "skipif";
     public static final String ONLYIF = "onlyif";
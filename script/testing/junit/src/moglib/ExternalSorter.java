@@ -0,0 +1,233 @@
+package moglib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * ExternalSorter sorts the rows of a result set within a memory budget, for rowsort.
+ * <p>
+ * Rows are read into a ResultBuffer until the budget is exceeded, at which point the buffered rows are sorted and
+ * spilled to a run file in a temporary directory. Once all rows are read, the runs are merged with a k-way merge and
+ * the values are fed straight into a ResultHasher, so the sorted result is never materialized. Results that fit within
+ * the budget are sorted in memory without touching the disk.
+ * <p>
+ * Rows are ordered as by ResultBuffer.sortRows(). Run files hold the rows as written by ResultBuffer.writeRows().
+ * A sorter is meant to be reset and reused for many result sets, along with its buffer.
+ */
+public class ExternalSorter implements AutoCloseable {
+    /**
+     * Default memory budget if NOISEPAGE_SORT_MEMORY_MB is not set.
+     */
+    private static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+
+    private final long memoryBudget;
+    private final ResultBuffer buffer = new ResultBuffer();
+    private final List<File> runs = new ArrayList<>();
+    private File tempDir;
+    private long spillNanos;
+
+    /**
+     * Create a sorter with the memory budget given by the NOISEPAGE_SORT_MEMORY_MB environment variable, 64 MB by
+     * default.
+     */
+    public ExternalSorter() {
+        this(defaultMemoryBudget());
+    }
+
+    /**
+     * @param memoryBudget The approximate number of bytes of rows to buffer before spilling a run to disk.
+     */
+    public ExternalSorter(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    private static long defaultMemoryBudget() {
+        String budget = System.getenv("NOISEPAGE_SORT_MEMORY_MB");
+        if (null == budget || budget.isEmpty()) {
+            return DEFAULT_MEMORY_BUDGET;
+        }
+        return Long.parseLong(budget.trim()) << 20;
+    }
+
+    /**
+     * Read all rows of a result set, spilling runs as needed. Any rows from a previous result set are discarded.
+     *
+     * @param rs The result set.
+     * @throws SQLException If reading the result set fails.
+     * @throws IOException  If spilling a run fails.
+     */
+    public void addRows(ResultSet rs) throws SQLException, IOException {
+        begin(rs.getMetaData().getColumnCount());
+        while (addRow(rs)) {
+            // Keep reading
+        }
+    }
+
+    /**
+     * Start reading a new result set. Any rows from a previous result set are discarded.
+     *
+     * @param numCols The number of columns of the result set.
+     */
+    public void begin(int numCols) {
+        close();
+        buffer.reset(numCols);
+        spillNanos = 0;
+    }
+
+    /**
+     * Read the next row of a result set, spilling a run if the memory budget is exceeded.
+     *
+     * @param rs The result set, with as many columns as given to begin().
+     * @return False if the result set is exhausted.
+     * @throws SQLException If reading the result set fails.
+     * @throws IOException  If spilling a run fails.
+     */
+    public boolean addRow(ResultSet rs) throws SQLException, IOException {
+        if (!buffer.addRow(rs)) {
+            return false;
+        }
+        if (buffer.getMemoryUsage() > memoryBudget) {
+            long start = System.nanoTime();
+            spill();
+            spillNanos += System.nanoTime() - start;
+        }
+        return true;
+    }
+
+    /**
+     * @return The time spent sorting and spilling runs while reading the current result set, in nanoseconds.
+     */
+    public long getSpillNanos() {
+        return spillNanos;
+    }
+
+    /**
+     * @return The number of runs spilled to disk so far.
+     */
+    public int getNumRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Feed the values of all rows read, in sorted order, into a hasher.
+     *
+     * @param hasher The hasher.
+     * @throws IOException If reading or writing a run fails.
+     */
+    public void feed(ResultHasher hasher) throws IOException {
+        if (runs.isEmpty()) {
+            buffer.sortRows();
+            buffer.feed(hasher);
+            return;
+        }
+        spill();
+
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(runs.size(),
+                (r1, r2) -> ResultBuffer.compareRows(r1.row, 0, r2.row, 0));
+        try {
+            for (File run : runs) {
+                RunReader reader = new RunReader(run, buffer.getNumColumns());
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                reader.row.feed(hasher);
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Delete all runs and the temporary directory.
+     */
+    @Override
+    public void close() {
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        if (null != tempDir) {
+            tempDir.delete();
+            tempDir = null;
+        }
+    }
+
+    /**
+     * Sort the buffered rows and write them to a new run file.
+     */
+    private void spill() throws IOException {
+        if (0 == buffer.getNumCells()) {
+            return;
+        }
+        if (null == tempDir) {
+            tempDir = Files.createTempDirectory("mogsort").toFile();
+        }
+        buffer.sortRows();
+        File run = new File(tempDir, "run" + runs.size());
+        runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER_SIZE))) {
+            buffer.writeRows(out);
+        }
+        buffer.reset(buffer.getNumColumns());
+    }
+
+    /**
+     * Sequential reader of the rows of a run file, holding the current row in a single-row buffer.
+     */
+    private static class RunReader implements AutoCloseable {
+        private final DataInputStream in;
+        private final ResultBuffer row = new ResultBuffer();
+        private final int numCols;
+
+        RunReader(File run, int numCols) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), IO_BUFFER_SIZE));
+            this.numCols = numCols;
+        }
+
+        /**
+         * Read the next row.
+         *
+         * @return False if the run is exhausted.
+         */
+        boolean advance() throws IOException {
+            row.reset(numCols);
+            return row.readRow(in);
+        }
+
+        @Override
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
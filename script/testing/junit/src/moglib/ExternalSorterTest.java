@@ -0,0 +1,128 @@
+package moglib;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that ExternalSorter orders rows the same way whether or not it spills runs to disk.
+ */
+public class ExternalSorterTest {
+    private static final int NUM_COLS = 3;
+    /**
+     * Values whose UTF-16 order differs from their UTF-8 byte order, i.e., characters at or above U+E000 and
+     * supplementary characters, along with duplicates and NULL.
+     */
+    private static final String[] SAMPLES = {"", "a", "ab", "b", "10", "9", "\u00e9", "\ue000", "\ufffd",
+            "\ud83d\ude00", "a\ud83d\ude00", "a\ufffd", null};
+
+    @Test
+    public void testSpillingMatchesInMemory() throws SQLException, IOException {
+        List<String> cells = randomCells(new Random(42), 5000);
+        String expected = ResultHasher.hash(sortRows(cells));
+
+        try (ExternalSorter sorter = new ExternalSorter(Long.MAX_VALUE)) {
+            sorter.addRows(resultSet(cells));
+            assertEquals(0, sorter.getNumRuns());
+            assertEquals(expected, hash(sorter));
+        }
+        try (ExternalSorter sorter = new ExternalSorter(1024)) {
+            sorter.addRows(resultSet(cells));
+            assertTrue(sorter.getNumRuns() > 1);
+            assertEquals(expected, hash(sorter));
+        }
+    }
+
+    @Test
+    public void testReuse() throws SQLException, IOException {
+        Random random = new Random(7);
+        try (ExternalSorter sorter = new ExternalSorter(512)) {
+            for (int i = 0; i < 5; ++i) {
+                List<String> cells = randomCells(random, 100 * i);
+                sorter.addRows(resultSet(cells));
+                assertEquals(ResultHasher.hash(sortRows(cells)), hash(sorter));
+            }
+        }
+    }
+
+    private static String hash(ExternalSorter sorter) throws IOException {
+        ResultHasher hasher = new ResultHasher();
+        sorter.feed(hasher);
+        return hasher.getHash();
+    }
+
+    private static List<String> randomCells(Random random, int numRows) {
+        List<String> cells = new ArrayList<>(numRows * NUM_COLS);
+        for (int i = 0; i < numRows * NUM_COLS; ++i) {
+            cells.add(SAMPLES[random.nextInt(SAMPLES.length)]);
+        }
+        return cells;
+    }
+
+    /**
+     * Sort rows as sqllogictest's rowsort does, column by column in String.compareTo order, with NULL as "".
+     */
+    private static List<String> sortRows(List<String> cells) {
+        List<String[]> rows = new ArrayList<>();
+        for (int i = 0; i < cells.size(); i += NUM_COLS) {
+            String[] row = new String[NUM_COLS];
+            for (int j = 0; j < NUM_COLS; ++j) {
+                row[j] = null == cells.get(i + j) ? "" : cells.get(i + j);
+            }
+            rows.add(row);
+        }
+        rows.sort((a, b) -> {
+            for (int j = 0; j < NUM_COLS; ++j) {
+                int c = a[j].compareTo(b[j]);
+                if (0 != c) {
+                    return c;
+                }
+            }
+            return 0;
+        });
+        List<String> sorted = new ArrayList<>(cells.size());
+        for (String[] row : rows) {
+            sorted.addAll(Arrays.asList(row));
+        }
+        return sorted;
+    }
+
+    /**
+     * @return A forward-only result set over the given cells, with NUM_COLS columns, supporting what the sorter reads.
+     */
+    private static ResultSet resultSet(List<String> cells) {
+        ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(
+                ExternalSorterTest.class.getClassLoader(), new Class<?>[]{ResultSetMetaData.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getColumnCount")) {
+                        return NUM_COLS;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        int[] row = {-1};
+        return (ResultSet) Proxy.newProxyInstance(ExternalSorterTest.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getMetaData":
+                            return metaData;
+                        case "next":
+                            return ++row[0] * NUM_COLS < cells.size();
+                        case "getString":
+                            return cells.get(row[0] * NUM_COLS + (int) args[0] - 1);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
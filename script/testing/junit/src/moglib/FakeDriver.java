@@ -0,0 +1,253 @@
+package moglib;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * FakeDriver is a JDBC driver for unit tests that need a database but no server.
+ * <p>
+ * Its databases live in memory, are named by URLs of the form "jdbc:mogfake:NAME", and understand just enough SQL to
+ * tell what ran and whether it was committed: "SELECT v1, v2, ..." returns a single row of the given values, SQL
+ * starting with "FAIL" fails, and any other SQL is a write, which is logged once it is committed. Connections support
+ * autocommit, commit and rollback; writes that are not committed when a connection is closed are lost.
+ */
+public class FakeDriver implements Driver {
+    private static final String PREFIX = "jdbc:mogfake:";
+    private static final Map<String, FakeDatabase> DATABASES = new ConcurrentHashMap<>();
+
+    static {
+        try {
+            DriverManager.registerDriver(new FakeDriver());
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * State of a fake database.
+     */
+    private static class FakeDatabase {
+        private final List<String> committed = Collections.synchronizedList(new ArrayList<>());
+        private volatile int numConnections;
+    }
+
+    /**
+     * Create an empty fake database, replacing any previous one of the same name.
+     *
+     * @param name The name of the database.
+     * @return The JDBC URL of the database.
+     */
+    public static String create(String name) {
+        DATABASES.put(name, new FakeDatabase());
+        return PREFIX + name;
+    }
+
+    /**
+     * @param name The name of the database.
+     * @return The writes committed so far, in order.
+     */
+    public static List<String> getCommitted(String name) {
+        return new ArrayList<>(DATABASES.get(name).committed);
+    }
+
+    /**
+     * @param name The name of the database.
+     * @return The number of connections made so far.
+     */
+    public static int getNumConnections(String name) {
+        return DATABASES.get(name).numConnections;
+    }
+
+    @Override
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!acceptsURL(url)) {
+            return null;
+        }
+        FakeDatabase db = DATABASES.get(url.substring(PREFIX.length()));
+        if (null == db) {
+            throw new SQLException("No fake database " + url);
+        }
+        ++db.numConnections;
+        return connection(db);
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+        return url.startsWith(PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    private static Connection connection(FakeDatabase db) {
+        boolean[] autoCommit = {true};
+        boolean[] closed = {false};
+        List<String> pending = new ArrayList<>();
+        return proxy(Connection.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "createStatement":
+                    return statement((Connection) proxy, sql -> {
+                        if (sql.startsWith("FAIL")) {
+                            throw new SQLException("Failed: " + sql);
+                        }
+                        if (!sql.startsWith("SELECT")) {
+                            if (autoCommit[0]) {
+                                db.committed.add(sql);
+                            } else {
+                                pending.add(sql);
+                            }
+                        }
+                    });
+                case "getAutoCommit":
+                    return autoCommit[0];
+                case "setAutoCommit":
+                    if (!autoCommit[0] && (boolean) args[0]) {
+                        db.committed.addAll(pending);
+                        pending.clear();
+                    }
+                    autoCommit[0] = (boolean) args[0];
+                    return null;
+                case "commit":
+                    db.committed.addAll(pending);
+                    pending.clear();
+                    return null;
+                case "rollback":
+                    pending.clear();
+                    return null;
+                case "close":
+                    pending.clear();
+                    closed[0] = true;
+                    return null;
+                case "isClosed":
+                    return closed[0];
+                case "isValid":
+                    return !closed[0];
+                case "getMetaData":
+                    return proxy(DatabaseMetaData.class, (p, m, a) -> {
+                        if (m.getName().equals("getTables")) {
+                            return resultSet(List.of(), List.of());
+                        }
+                        throw new UnsupportedOperationException(m.getName());
+                    });
+                case "clearWarnings":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Runs the SQL of a statement that is not a query.
+     */
+    private interface Executor {
+        void execute(String sql) throws SQLException;
+    }
+
+    private static Statement statement(Connection conn, Executor executor) {
+        ResultSet[] resultSet = {null};
+        return proxy(Statement.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "execute":
+                    String sql = ((String) args[0]).trim();
+                    executor.execute(sql);
+                    if (!sql.startsWith("SELECT")) {
+                        resultSet[0] = null;
+                        return false;
+                    }
+                    List<String> values = Arrays.asList(sql.substring("SELECT".length()).trim().split("\\s*,\\s*"));
+                    List<String> types = new ArrayList<>();
+                    for (String value : values) {
+                        types.add(value.matches("-?\\d+") ? "int4" : "text");
+                    }
+                    resultSet[0] = resultSet(types, values);
+                    return true;
+                case "getResultSet":
+                    return resultSet[0];
+                case "getUpdateCount":
+                    return null == resultSet[0] ? 0 : -1;
+                case "getConnection":
+                    return conn;
+                case "setFetchSize":
+                case "close":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * @return A result set of at most one row, with the given column types; no row if there are no columns.
+     */
+    private static ResultSet resultSet(List<String> types, List<String> row) {
+        ResultSetMetaData metaData = proxy(ResultSetMetaData.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getColumnCount":
+                    return types.size();
+                case "getColumnTypeName":
+                    return types.get((int) args[0] - 1);
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        int[] position = {0};
+        return proxy(ResultSet.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "next":
+                    return !types.isEmpty() && 1 == ++position[0];
+                case "getString":
+                    return row.get((int) args[0] - 1);
+                case "getMetaData":
+                    return metaData;
+                case "close":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, java.lang.reflect.InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(FakeDriver.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+}
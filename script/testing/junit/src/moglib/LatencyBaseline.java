@@ -0,0 +1,165 @@
+package moglib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * LatencyBaseline holds the latency of the queries of a trace from an earlier run, keyed by query template (see
+ * QueryTemplate), so that later runs can be checked for performance regressions. Records that share a template share
+ * an entry.
+ * <p>
+ * A baseline is recorded by adding samples and saving it; it is checked by loading it and comparing new samples
+ * against its entries. Baseline files are text, one "MEDIAN_US P99_US SAMPLES TEMPLATE" line per template.
+ */
+public class LatencyBaseline {
+    /**
+     * Suffix of baseline files, appended to the name of the trace file.
+     */
+    public static final String SUFFIX = ".baseline";
+
+    private static final double NANOS_PER_MICRO = 1e3;
+
+    /**
+     * The baseline latency of a query template.
+     */
+    public static final class Entry {
+        private final long medianNanos;
+        private final long p99Nanos;
+        private final long numSamples;
+
+        Entry(long medianNanos, long p99Nanos, long numSamples) {
+            this.medianNanos = medianNanos;
+            this.p99Nanos = p99Nanos;
+            this.numSamples = numSamples;
+        }
+
+        public long getMedianNanos() {
+            return medianNanos;
+        }
+
+        public long getP99Nanos() {
+            return p99Nanos;
+        }
+
+        public long getNumSamples() {
+            return numSamples;
+        }
+
+        /**
+         * Get the latency above which a query counts as regressed: the median times the tolerance, but no less than
+         * the p99, so that the usual noise of the query is not flagged, and no less than the median plus a minimum
+         * slack, so that the jitter of very fast queries is not flagged either.
+         *
+         * @param tolerance  The tolerated slowdown, e.g., 1.5 for 50% slower.
+         * @param slackNanos The minimum tolerated slowdown, in nanoseconds.
+         * @return The threshold, in nanoseconds.
+         */
+        public long getThresholdNanos(double tolerance, long slackNanos) {
+            return Math.max((long) (medianNanos * tolerance), Math.max(p99Nanos, medianNanos + slackNanos));
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "median %.1f us, p99 %.1f us over %d samples",
+                    medianNanos / NANOS_PER_MICRO, p99Nanos / NANOS_PER_MICRO, numSamples);
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final Map<String, LatencyHistogram> samples = new LinkedHashMap<>();
+
+    /**
+     * @param dir       The directory of baseline files.
+     * @param traceFile The trace file.
+     * @return The baseline file of the trace file.
+     */
+    public static File fileFor(File dir, File traceFile) {
+        return new File(dir, traceFile.getName() + SUFFIX);
+    }
+
+    /**
+     * Load a baseline file.
+     *
+     * @param file The baseline file.
+     * @return The baseline, empty if the file does not exist.
+     * @throws IOException If the file cannot be read.
+     */
+    public static LatencyBaseline load(File file) throws IOException {
+        LatencyBaseline baseline = new LatencyBaseline();
+        if (!file.exists()) {
+            return baseline;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while (null != (line = reader.readLine())) {
+                if (line.isEmpty() || line.startsWith(Constants.HASHTAG)) {
+                    continue;
+                }
+                String[] fields = line.split(" ", 4);
+                if (fields.length != 4) {
+                    throw new IOException("Malformed baseline line in " + file + ": " + line);
+                }
+                baseline.entries.put(fields[3], new Entry(
+                        (long) (Double.parseDouble(fields[0]) * NANOS_PER_MICRO),
+                        (long) (Double.parseDouble(fields[1]) * NANOS_PER_MICRO),
+                        Long.parseLong(fields[2])));
+            }
+        }
+        return baseline;
+    }
+
+    /**
+     * @param template The query template.
+     * @return The entry of the template, or null if the baseline has none.
+     */
+    public Entry get(String template) {
+        return entries.get(template);
+    }
+
+    /**
+     * @return The number of templates in the baseline.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Add a latency sample of a template, to be saved by save().
+     *
+     * @param template The query template.
+     * @param nanos    The latency, in nanoseconds.
+     */
+    public void addSample(String template, long nanos) {
+        samples.computeIfAbsent(template, key -> new LatencyHistogram()).record(nanos);
+    }
+
+    /**
+     * Save the samples added so far as a baseline file, replacing any existing one.
+     *
+     * @param file The baseline file.
+     * @throws IOException If the file cannot be written.
+     */
+    public void save(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (null != dir && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            writer.println(Constants.HASHTAG + " MEDIAN_US P99_US SAMPLES TEMPLATE");
+            for (Map.Entry<String, LatencyHistogram> entry : samples.entrySet()) {
+                LatencyHistogram histogram = entry.getValue();
+                writer.printf(Locale.ROOT, "%.1f %.1f %d %s%n",
+                        histogram.getPercentile(50) / NANOS_PER_MICRO,
+                        histogram.getPercentile(99) / NANOS_PER_MICRO,
+                        histogram.getCount(), entry.getKey());
+            }
+        }
+    }
+}
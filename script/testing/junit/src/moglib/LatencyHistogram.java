@@ -0,0 +1,145 @@
+package moglib;
+
+import java.util.Arrays;
+
+/**
+ * LatencyHistogram records latencies in nanoseconds into log-linear buckets.
+ * <p>
+ * Every power of two is split into SUB_BUCKETS linear buckets, so that any recorded value is reported within about 3%
+ * of its true value, in a fixed amount of memory regardless of the number or range of values. The minimum, maximum and
+ * mean are exact.
+ * <p>
+ * A histogram is not thread-safe. Concurrent recorders should each keep their own and merge them with add().
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Enough buckets for any non-negative long.
+     */
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[NUM_BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * Record a value.
+     *
+     * @param nanos The value, in nanoseconds. Negative values are recorded as zero.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        ++counts[bucketOf(value)];
+        ++count;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Add all values recorded by another histogram to this one.
+     *
+     * @param other The other histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Forget all values recorded so far.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    /**
+     * @return The number of values recorded.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The smallest value recorded, or 0 if none was.
+     */
+    public long getMin() {
+        return 0 == count ? 0 : min;
+    }
+
+    /**
+     * @return The largest value recorded, or 0 if none was.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return The mean of the values recorded, or 0 if none was.
+     */
+    public double getMean() {
+        return 0 == count ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Get a percentile of the values recorded.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The value below which the given percentage of values fall, or 0 if no value was recorded.
+     */
+    public long getPercentile(double percentile) {
+        if (0 == count) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        /* The smallest and largest values are known exactly. */
+        if (1 == rank) {
+            return min;
+        } else if (rank >= count) {
+            return max;
+        }
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                /* Report the middle of the bucket, but never beyond what was actually recorded. */
+                long lower = lowerBoundOf(i);
+                long middle = lower + (widthOf(i) - 1) / 2;
+                return Math.max(min, Math.min(max, middle));
+            }
+        }
+        return max;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    private static long widthOf(int bucket) {
+        return bucket < SUB_BUCKETS ? 1 : 1L << (bucket / SUB_BUCKETS - 1);
+    }
+}
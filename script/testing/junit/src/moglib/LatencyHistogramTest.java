@@ -0,0 +1,87 @@
+package moglib;
+
+import org.junit.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that LatencyHistogram reports percentiles within the precision of its buckets and within the values recorded.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 20; ++i) {
+            histogram.record(i);
+        }
+        assertEquals(10, histogram.getPercentile(50));
+        assertEquals(18, histogram.getPercentile(90));
+        assertEquals(1, histogram.getPercentile(0));
+        assertEquals(20, histogram.getPercentile(100));
+        assertEquals(10.5, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void testPercentileBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int n = 100000;
+        for (int i = 1; i <= n; ++i) {
+            histogram.record(i * 1000L);
+        }
+        for (double percentile : new double[]{1, 10, 25, 50, 75, 90, 99, 99.9}) {
+            long expected = (long) Math.ceil(percentile / 100.0 * n) * 1000L;
+            long actual = histogram.getPercentile(percentile);
+            assertTrue(percentile + ": " + actual + " for " + expected, Math.abs(actual - expected) <= expected * 0.03);
+        }
+        /* Percentiles never fall outside of the values recorded, even where buckets are wide. */
+        assertEquals(1000, histogram.getPercentile(0));
+        assertEquals(n * 1000L, histogram.getPercentile(100));
+        assertEquals(1000, histogram.getMin());
+        assertEquals(n * 1000L, histogram.getMax());
+    }
+
+    @Test
+    public void testExtremeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testAddAndReset() {
+        LatencyHistogram low = new LatencyHistogram();
+        LatencyHistogram high = new LatencyHistogram();
+        for (int i = 0; i < 100; ++i) {
+            low.record(1000);
+            high.record(1000000);
+        }
+        low.add(high);
+        assertEquals(200, low.getCount());
+        assertEquals(1000, low.getMin());
+        assertEquals(1000000, low.getMax());
+        assertTrue(Math.abs(low.getPercentile(50) - 1000) <= 30);
+        assertTrue(Math.abs(low.getPercentile(51) - 1000000) <= 30000);
+
+        low.reset();
+        assertEquals(0, low.getCount());
+        assertEquals(0, low.getPercentile(99));
+        low.record(7);
+        assertEquals(7, low.getMin());
+        assertEquals(7, low.getMax());
+    }
+}
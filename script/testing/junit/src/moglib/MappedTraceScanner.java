@@ -0,0 +1,301 @@
+package moglib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * MappedTraceScanner walks the lines of a memory-mapped trace file without copying them.
+ * Lines are exposed as [start, end) byte offsets into the mapping so that record boundaries can be found by comparing
+ * raw bytes. Strings are only created when a caller explicitly asks for them, either right away or, through the
+ * suppliers returned by trimmedLines() and nonEmptyLines(), whenever a record's SQL or results are first needed.
+ */
+class MappedTraceScanner {
+    /**
+     * The memory-mapped contents of the trace file.
+     */
+    private final MappedByteBuffer buf;
+    /**
+     * Number of bytes in the mapping.
+     */
+    private final int size;
+    /**
+     * Scratch space used to assemble multi-line regions before decoding them in one go.
+     */
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Offset of the first byte of the current line.
+     */
+    private int lineStart = 0;
+    /**
+     * Offset one past the last byte of the current line, excluding the line terminator.
+     */
+    private int lineEnd = 0;
+    /**
+     * Offset of the first byte of the line after the current one.
+     */
+    private int nextLineStart = 0;
+    /**
+     * 1-based number of the current line, 0 if advance() has not been called yet.
+     */
+    private int lineNumber = 0;
+
+    /**
+     * Map the given trace file into memory.
+     *
+     * @param file The trace file.
+     * @throws IOException If the file could not be mapped.
+     */
+    MappedTraceScanner(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Trace file too large to map: " + file);
+            }
+            this.size = (int) channel.size();
+            this.buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, this.size);
+        }
+    }
+
+    /**
+     * Move to the next line.
+     *
+     * @return True if there is a next line and false if the end of the file was reached.
+     */
+    boolean advance() {
+        if (nextLineStart >= size) {
+            lineStart = lineEnd = nextLineStart = size;
+            return false;
+        }
+        lineStart = nextLineStart;
+        int i = lineStart;
+        while (i < size) {
+            byte b = buf.get(i);
+            if ('\n' == b || '\r' == b) {
+                break;
+            }
+            ++i;
+        }
+        lineEnd = i;
+        if (i < size && '\r' == buf.get(i)) {
+            ++i;
+        }
+        if (i < size && '\n' == buf.get(i)) {
+            ++i;
+        }
+        nextLineStart = i;
+        ++lineNumber;
+        return true;
+    }
+
+    /**
+     * Look at the start of the line after the current one without moving to it.
+     *
+     * @param prefixes The prefixes to check for.
+     * @return True if there is a next line and it starts with any of the given prefixes.
+     */
+    boolean peekStartsWithAny(byte[][] prefixes) {
+        for (byte[] prefix : prefixes) {
+            if (regionStartsWith(nextLineStart, size, prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return True if there is a line after the current one.
+     */
+    boolean hasNextLine() {
+        return nextLineStart < size;
+    }
+
+    /**
+     * @param prefix The prefix to check for.
+     * @return True if the current line starts with the given prefix.
+     */
+    boolean startsWith(byte[] prefix) {
+        return regionStartsWith(lineStart, lineEnd, prefix);
+    }
+
+    /**
+     * @param prefixes The prefixes to check for.
+     * @return True if the current line starts with any of the given prefixes.
+     */
+    boolean startsWithAny(byte[][] prefixes) {
+        for (byte[] prefix : prefixes) {
+            if (startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return True if the current line is empty.
+     */
+    boolean isEmptyLine() {
+        return lineStart == lineEnd;
+    }
+
+    /**
+     * @return The 1-based number of the current line.
+     */
+    int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * @return Offset of the first byte of the current line.
+     */
+    int getLineStart() {
+        return lineStart;
+    }
+
+    /**
+     * @return Offset of the first byte of the line after the current one.
+     */
+    int getNextLineStart() {
+        return nextLineStart;
+    }
+
+    /**
+     * @return The current line, decoded.
+     */
+    String lineString() {
+        return decode(lineStart, lineEnd);
+    }
+
+    /**
+     * Decode a region of the mapping.
+     *
+     * @param start First byte of the region.
+     * @param end   One past the last byte of the region.
+     * @return The decoded region.
+     */
+    String decode(int start, int end) {
+        ensureScratch(end - start);
+        for (int i = start; i < end; ++i) {
+            scratch[i - start] = buf.get(i);
+        }
+        return new String(scratch, 0, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get a decoder for a region of whole lines, which trims each line and terminates each line with "\n".
+     * This matches what the BufferedReader-based parser builds up for SQL text. The decoder only reads the mapping,
+     * so it may be called from any thread and after the scanner has moved on.
+     *
+     * @param start Offset of the first line of the region.
+     * @param end   Offset one past the terminator of the last line of the region.
+     * @return Decodes the trimmed lines.
+     */
+    Supplier<String> trimmedLines(int start, int end) {
+        MappedByteBuffer buf = this.buf;
+        return () -> {
+            /* Trimming only drops bytes, and at most one "\n" is added for a final line without a terminator. */
+            byte[] bytes = new byte[end - start + 1];
+            int len = 0;
+            int i = start;
+            while (i < end) {
+                int eol = lineEnd(buf, i, end);
+                int next = nextLine(buf, eol, end);
+                /* Same definition of whitespace as String.trim(), which only ever matches single-byte characters. */
+                int s = i;
+                int e = eol;
+                while (s < e && (buf.get(s) & 0xFF) <= ' ') {
+                    ++s;
+                }
+                while (e > s && (buf.get(e - 1) & 0xFF) <= ' ') {
+                    --e;
+                }
+                for (int j = s; j < e; ++j) {
+                    bytes[len++] = buf.get(j);
+                }
+                bytes[len++] = '\n';
+                i = next;
+            }
+            return new String(bytes, 0, len, StandardCharsets.UTF_8);
+        };
+    }
+
+    /**
+     * Get a decoder for the non-empty lines of a region of whole lines, as they are, without terminators. The decoder
+     * only reads the mapping, so it may be called from any thread and after the scanner has moved on.
+     *
+     * @param start Offset of the first line of the region.
+     * @param end   Offset one past the terminator of the last line of the region.
+     * @return Decodes the non-empty lines.
+     */
+    Supplier<List<String>> nonEmptyLines(int start, int end) {
+        MappedByteBuffer buf = this.buf;
+        return () -> {
+            List<String> lines = new ArrayList<>();
+            byte[] bytes = new byte[0];
+            int i = start;
+            while (i < end) {
+                int eol = lineEnd(buf, i, end);
+                if (eol > i) {
+                    if (bytes.length < eol - i) {
+                        bytes = new byte[Math.max(eol - i, 2 * bytes.length)];
+                    }
+                    for (int j = i; j < eol; ++j) {
+                        bytes[j - i] = buf.get(j);
+                    }
+                    lines.add(new String(bytes, 0, eol - i, StandardCharsets.UTF_8));
+                }
+                i = nextLine(buf, eol, end);
+            }
+            return lines;
+        };
+    }
+
+    /**
+     * @return Offset of the terminator of the line starting at i, or end if the line is not terminated before end.
+     */
+    private static int lineEnd(MappedByteBuffer buf, int i, int end) {
+        while (i < end && '\n' != buf.get(i) && '\r' != buf.get(i)) {
+            ++i;
+        }
+        return i;
+    }
+
+    /**
+     * @return Offset of the line after the terminator at eol.
+     */
+    private static int nextLine(MappedByteBuffer buf, int eol, int end) {
+        if (eol < end && '\r' == buf.get(eol)) {
+            ++eol;
+        }
+        if (eol < end && '\n' == buf.get(eol)) {
+            ++eol;
+        }
+        return eol;
+    }
+
+    private boolean regionStartsWith(int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; ++i) {
+            if (buf.get(start + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ensureScratch(int capacity) {
+        if (scratch.length < capacity) {
+            byte[] grown = new byte[Math.max(capacity, scratch.length * 2)];
+            System.arraycopy(scratch, 0, grown, 0, scratch.length);
+            scratch = grown;
+        }
+    }
+}
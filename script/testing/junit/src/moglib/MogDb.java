@@ -2,7 +2,11 @@ package moglib;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 
 import static moglib.MogDb.DbColumnType.*;
 
@@ -19,6 +23,34 @@ public class MogDb {
      */
     public enum DbColumnType {INVALID, INTEGER, TEXT, FLOAT}
 
+    /**
+     * JDBC URL of an in-memory H2 database that emulates PostgreSQL, for use as an embedded reference database.
+     * Identifiers are folded to lower case and NULLs sort last, as in PostgreSQL. The database lives as long as the
+     * JVM, rather than as long as its last connection, so that it survives its connections being closed.
+     */
+    public static final String H2_JDBC
+            = "jdbc:h2:mem:mogref;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH;DB_CLOSE_DELAY=-1";
+    /**
+     * JDBC URL of an in-memory SQLite database, for use as an embedded reference database. The database is shared by
+     * all connections of the JVM and lives as long as one of them is open; clear() starts each test file over anyway.
+     */
+    public static final String SQLITE_JDBC = "jdbc:sqlite:file:mogref?mode=memory&cache=shared";
+
+    /**
+     * Expand the names of the embedded databases into their JDBC URLs.
+     *
+     * @param jdbc A JDBC URL, or "h2" or "sqlite" for H2_JDBC or SQLITE_JDBC.
+     * @return The JDBC URL.
+     */
+    public static String expandJdbc(String jdbc) {
+        if (jdbc.equals("h2")) {
+            return H2_JDBC;
+        } else if (jdbc.equals("sqlite")) {
+            return SQLITE_JDBC;
+        }
+        return jdbc;
+    }
+
     /**
      * Database (for lack of better naming) abstracts around connecting to and querying different JDBC databases.
      */
@@ -39,6 +71,14 @@ public class MogDb {
          * Connection to the database.
          */
         private Connection conn = null;
+        /**
+         * Pool of connections to the database, created on first use.
+         */
+        private ConnectionPool pool = null;
+        /**
+         * Maximum number of connections of the pool.
+         */
+        private int poolSize = ConnectionPool.DEFAULT_MAX_SIZE;
 
         /**
          * Create a new Database abstraction. Note that no connection is made until newConn() is called.
@@ -54,10 +94,11 @@ public class MogDb {
         }
 
         /**
-         * Close any existing connection and create a new connection to the database.
+         * Return any existing connection to the pool and borrow a connection from it.
+         * The connection is validated and either new, or its previous borrower's session state was reset or left alone;
+         * closing it returns it to the pool, see ConnectionPool.
          *
-         * @return A new connection to the specified database.
-         * @throws SQLException If a new connection could not be made.
+         * @return A connection to the specified database, or null if none could be made.
          */
         public Connection newConn()  {
             if (null != this.conn) {
@@ -66,9 +107,10 @@ public class MogDb {
                 } catch (SQLException throwables) {
                     throwables.printStackTrace();
                 }
+                this.conn = null;
             }
             try {
-                this.conn = DriverManager.getConnection(this.jdbc, this.user, this.pass);
+                this.conn = getPool().borrow();
             } catch (SQLException throwables) {
                 System.out.println("enter here");
                 throwables.printStackTrace();
@@ -76,6 +118,71 @@ public class MogDb {
             return this.conn;
         }
 
+        /**
+         * Get the pool of connections to the database, e.g., to borrow additional connections or to read its metrics.
+         *
+         * @return The connection pool of this database.
+         */
+        public synchronized ConnectionPool getPool() {
+            if (null == this.pool) {
+                /* The session state of H2 and SQLite cannot be reset, so their connections are not reused. */
+                boolean postgres = this.jdbc.startsWith("jdbc:postgresql");
+                this.pool = new ConnectionPool(() -> DriverManager.getConnection(this.jdbc, this.user, this.pass),
+                        this.poolSize, postgres ? ConnectionPool.POSTGRES_RESET : List.of(),
+                        postgres ? ConnectionPool.POSTGRES_FALLBACK_RESET : List.of());
+            }
+            return this.pool;
+        }
+
+        /**
+         * Set the maximum number of connections of the pool, e.g., to run more concurrent workers than the default allows.
+         * The pool is created with this size on first use; changing it afterwards has no effect.
+         *
+         * @param poolSize The maximum number of connections, idle or borrowed.
+         */
+        public synchronized void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+
+        /**
+         * Determine whether the database runs inside of this JVM, i.e., whether it is H2 or SQLite.
+         *
+         * @return True if the database is embedded.
+         */
+        public boolean isEmbedded() {
+            return this.jdbc.startsWith("jdbc:h2") || this.jdbc.startsWith("jdbc:sqlite");
+        }
+
+        /**
+         * Drop all tables of the current connection's database, so that a new test file starts from an empty database.
+         * For PostgreSQL and H2, only the tables in the public schema are dropped; H2 drops all of its objects.
+         *
+         * @throws SQLException If listing or dropping the tables fails.
+         */
+        public void clear() throws SQLException {
+            if (this.jdbc.startsWith("jdbc:h2")) {
+                try (Statement statement = this.conn.createStatement()) {
+                    statement.execute("DROP ALL OBJECTS");
+                }
+                return;
+            }
+            boolean sqlite = this.jdbc.startsWith("jdbc:sqlite");
+            List<String> tables = new ArrayList<>();
+            try (ResultSet rs = this.conn.getMetaData().getTables(null, null, "%", new String[]{"TABLE"})) {
+                while (rs.next()) {
+                    if (sqlite || "public".equalsIgnoreCase(rs.getString("TABLE_SCHEM"))) {
+                        tables.add(rs.getString("TABLE_NAME"));
+                    }
+                }
+            }
+            for (String table : tables) {
+                try (Statement statement = this.conn.createStatement()) {
+                    /* SQLite has no CASCADE, but does not enforce foreign keys by default either. */
+                    statement.execute("DROP TABLE IF EXISTS " + table + (sqlite ? "" : " CASCADE"));
+                }
+            }
+        }
+
         /**
          * Get the current database connection. newConn() should have been called!
          *
@@ -112,8 +219,21 @@ public class MogDb {
                 /* SQLite types. */
                 if (typeName.equals("INTEGER") || typeName.equals("NUMERIC")) {
                     return INTEGER;
-                } else if (typeName.equals("VARCHAR")) {
+                } else if (typeName.equals("VARCHAR") || typeName.equals("TEXT")) {
                     return TEXT;
+                } else if (typeName.equals("REAL") || typeName.equals("FLOAT") || typeName.equals("DOUBLE")) {
+                    return FLOAT;
+                }
+            } else if (this.jdbc.startsWith("jdbc:h2")) {
+                /* H2 types. */
+                if (typeName.equals("TINYINT") || typeName.equals("SMALLINT") || typeName.equals("INTEGER")
+                        || typeName.equals("BIGINT")) {
+                    return INTEGER;
+                } else if (typeName.equals("VARCHAR") || typeName.equals("VARCHAR_IGNORECASE")
+                        || typeName.equals("CHAR") || typeName.equals("CLOB")) {
+                    return TEXT;
+                } else if (typeName.equals("DOUBLE") || typeName.equals("REAL") || typeName.equals("DECIMAL")) {
+                    return FLOAT;
                 }
             }
             return INVALID;
@@ -128,6 +248,14 @@ public class MogDb {
      * Reference database.
      */
     private Database dbRef = null;
+    /**
+     * Cache of the outcomes of SQL on the reference database.
+     */
+    private ReferenceCache refCache = null;
+    /**
+     * Whether the records run so far left an explicit transaction open.
+     */
+    private boolean inTransaction = false;
 
     /**
      * Create a new MogDb instance with the specified test database.
@@ -151,6 +279,16 @@ public class MogDb {
         this.dbRef = new Database(dbRefJdbc, dbRefUser, dbRefPass);
     }
 
+    /**
+     * Set the cache to consult before running SQL on the reference database, which must have been set.
+     * With a cache, the reference database is only connected to for SQL that is not cached.
+     *
+     * @param refCache The cache of the reference database.
+     */
+    public void setRefCache(ReferenceCache refCache) {
+        this.refCache = refCache;
+    }
+
     /**
      * Get the database to be tested.
      *
@@ -168,4 +306,29 @@ public class MogDb {
     public Database getDbRef() {
         return this.dbRef;
     }
+
+    /**
+     * Record whether an explicit transaction is open, e.g., after a BEGIN record, or false when starting a new file.
+     *
+     * @param inTransaction True if an explicit transaction is open.
+     */
+    public void setInTransaction(boolean inTransaction) {
+        this.inTransaction = inTransaction;
+    }
+
+    /**
+     * @return True if the records run so far left an explicit transaction open.
+     */
+    public boolean isInTransaction() {
+        return this.inTransaction;
+    }
+
+    /**
+     * Get the cache of the reference database.
+     *
+     * @return The cache of the reference database, or null if there is none.
+     */
+    public ReferenceCache getRefCache() {
+        return this.refCache;
+    }
 }
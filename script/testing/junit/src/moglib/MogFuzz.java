@@ -0,0 +1,443 @@
+package moglib;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MogFuzz is a CLI program that differentially fuzzes a test database against a reference database.
+ * <p>
+ * Both databases are set up with the same schema and data, after which the schema is read back from the test
+ * database's catalog and random queries are generated over it (see QueryGenerator). Each worker thread runs its own
+ * queries on its own pair of connections, so the databases are queried concurrently. Queries whose results differ are
+ * minimized and saved as .test files that MogJDBC or the JUnit tracefile tests can replay.
+ */
+@Command(description = "Differentially fuzz a test database against a reference database.",
+        name = "mogfuzz", mixinStandardHelpOptions = true, version = "mogfuzz 0.1")
+public class MogFuzz implements Callable<Integer> {
+    /**
+     * Queries with more rows than this are not compared, since sorting and comparing them would dominate.
+     */
+    private static final int MAX_ROWS = 10000;
+    /**
+     * Number of rows of each table sampled for literals.
+     */
+    private static final int SAMPLE_ROWS = 50;
+    /**
+     * Maximum number of simpler queries tried while minimizing a query.
+     */
+    private static final int MAX_MINIMIZE_ATTEMPTS = 200;
+    /**
+     * Relative difference up to which two numbers are considered equal.
+     */
+    private static final double TOLERANCE = 1e-6;
+    /**
+     * Seconds between progress reports.
+     */
+    private static final int REPORT_INTERVAL = 10;
+
+    @Option(required = true, names = {"--testJdbc"}, description = "dbTest JDBC connection string.")
+    private String testJdbc;
+    @Option(required = true, names = {"--testUser"}, description = "dbTest username.")
+    private String testUser;
+    @Option(required = true, names = {"--testPass"}, description = "dbTest password.")
+    private String testPass;
+    @Option(required = true, names = {"--refJdbc"},
+            description = "dbRef JDBC connection string, or h2 or sqlite for an embedded in-memory database.")
+    private String refJdbc;
+    @Option(names = {"--refUser"}, defaultValue = "", description = "dbRef username.")
+    private String refUser;
+    @Option(names = {"--refPass"}, defaultValue = "", description = "dbRef password.")
+    private String refPass;
+    @Option(required = true, names = {"--setup"},
+            description = "File of SQL statements creating and filling the tables, one per line.")
+    private File setup;
+    @Option(names = {"--queries"}, defaultValue = "10000", description = "Number of queries to run.")
+    private long numQueries;
+    @Option(names = {"--duration"}, defaultValue = "0", description = "Seconds to run for, 0 for no limit.")
+    private long duration;
+    @Option(names = {"--threads"}, defaultValue = "4", description = "Number of worker threads, each with a connection to either database.")
+    private int numThreads;
+    @Option(names = {"--seed"}, description = "Random seed, the current time by default.")
+    private Long seed;
+    @Option(names = {"--timeout"}, defaultValue = "10", description = "Query timeout in seconds.")
+    private int timeout;
+    @Option(names = {"--out"}, description = "Folder to save the .test files of mismatching queries to.")
+    private File out = new File(Constants.DEST_DIR, "fuzz");
+    @Option(names = {"--save-errors"},
+            description = "Also save queries that fail on one database but not on the other.")
+    private boolean saveErrors;
+    @Option(names = {"--max-saved"}, defaultValue = "20", description = "Maximum number of .test files to save.")
+    private int maxSaved;
+
+    /**
+     * The outcome of a query on one database: its sorted rows, or its error.
+     */
+    private static final class Outcome {
+        private List<List<String>> rows;
+        private String error;
+        private boolean truncated;
+
+        boolean isError() {
+            return null != error;
+        }
+    }
+
+    private MogDb mogDb;
+    private List<String> setupStatements;
+    private final AtomicLong numRun = new AtomicLong();
+    private final AtomicLong numCompared = new AtomicLong();
+    private final AtomicLong numSkipped = new AtomicLong();
+    private final AtomicLong numBothFailed = new AtomicLong();
+    private final AtomicLong numMismatches = new AtomicLong();
+    private final AtomicLong numErrorMismatches = new AtomicLong();
+    private final Set<String> savedSql = new HashSet<>();
+    private volatile boolean stopped = false;
+    private long deadline;
+
+    public static void main(String[] args) {
+        int exitCode = new CommandLine(new MogFuzz()).execute(args);
+        System.exit(exitCode);
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        refJdbc = MogDb.expandJdbc(refJdbc);
+        try {
+            DriverManager.getDriver(refJdbc);
+        } catch (SQLException e) {
+            System.out.printf("No JDBC driver for %s on the classpath; run \"ant resolve-embedded\" for H2 and "
+                    + "SQLite.\n", refJdbc);
+            return 1;
+        }
+        if (null == seed) {
+            seed = System.currentTimeMillis();
+        }
+        if (numThreads < 1) {
+            System.out.println("--threads must be at least 1.");
+            return 1;
+        }
+
+        setupStatements = new ArrayList<>();
+        for (String line : Files.readAllLines(setup.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.isBlank() && !line.trim().startsWith(Constants.HASHTAG)) {
+                setupStatements.add(line.trim());
+            }
+        }
+
+        mogDb = new MogDb(testJdbc, testUser, testPass);
+        mogDb.setDbRef(refJdbc, refUser, refPass);
+        /* One connection of each pool is kept for setting up, the workers borrow the others. */
+        mogDb.getDbTest().setPoolSize(numThreads + 1);
+        mogDb.getDbRef().setPoolSize(numThreads + 1);
+        System.out.printf("Test Database: [%s - %s - %s]\n", testJdbc, testUser, testPass);
+        System.out.printf("Reference Database: [%s - %s - %s]\n", refJdbc, refUser, refPass);
+        for (MogDb.Database db : List.of(mogDb.getDbTest(), mogDb.getDbRef())) {
+            if (null == db.newConn()) {
+                return 1;
+            }
+            db.clear();
+            try (Statement statement = db.getConn().createStatement()) {
+                for (String sql : setupStatements) {
+                    statement.execute(sql);
+                }
+            }
+        }
+
+        List<QueryGenerator.Table> tables = readSchema(mogDb.getDbTest());
+        if (tables.isEmpty()) {
+            System.out.println("No tables with supported columns in the public schema.");
+            return 1;
+        }
+        System.out.printf("Fuzzing %d tables with %d threads, seed %d\n", tables.size(), numThreads, seed);
+
+        long start = System.nanoTime();
+        deadline = duration > 0 ? start + TimeUnit.SECONDS.toNanos(duration) : Long.MAX_VALUE;
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        for (int i = 0; i < numThreads; ++i) {
+            long workerSeed = seed + i;
+            workers.submit(() -> {
+                work(tables, workerSeed);
+                return null;
+            });
+        }
+        workers.shutdown();
+        while (!workers.awaitTermination(REPORT_INTERVAL, TimeUnit.SECONDS)) {
+            report(start);
+        }
+        report(start);
+        mogDb.getDbTest().getPool().close();
+        mogDb.getDbRef().getPool().close();
+
+        synchronized (savedSql) {
+            System.out.printf("Saved %d queries to %s\n", savedSql.size(), out);
+            return savedSql.isEmpty() ? 0 : 1;
+        }
+    }
+
+    /**
+     * Read the tables of the public schema through the catalog, with the columns of supported types and a sample of
+     * their values.
+     */
+    private static List<QueryGenerator.Table> readSchema(MogDb.Database db) throws SQLException {
+        List<String> names = new ArrayList<>();
+        try (Statement statement = db.getConn().createStatement();
+             ResultSet rs = statement.executeQuery("SELECT tablename FROM pg_tables WHERE schemaname = 'public'")) {
+            while (rs.next()) {
+                names.add(rs.getString(1));
+            }
+        }
+        List<QueryGenerator.Table> tables = new ArrayList<>();
+        for (String name : names) {
+            QueryGenerator.Table table = new QueryGenerator.Table(name);
+            try (Statement statement = db.getConn().createStatement()) {
+                statement.setMaxRows(SAMPLE_ROWS);
+                try (ResultSet rs = statement.executeQuery("SELECT * FROM " + name)) {
+                    ResultSetMetaData rsmd = rs.getMetaData();
+                    int[] columns = new int[rsmd.getColumnCount()];
+                    for (int i = 0; i < columns.length; ++i) {
+                        MogDb.DbColumnType type = db.getDbColumnType(rsmd.getColumnTypeName(i + 1));
+                        columns[i] = MogDb.DbColumnType.INVALID == type
+                                ? -1 : table.addColumn(rsmd.getColumnName(i + 1), type);
+                    }
+                    while (rs.next()) {
+                        for (int i = 0; i < columns.length; ++i) {
+                            String value = rs.getString(i + 1);
+                            if (columns[i] >= 0 && null != value) {
+                                table.addSample(columns[i], normalize(value));
+                            }
+                        }
+                    }
+                }
+            }
+            if (table.getNumColumns() > 0) {
+                tables.add(table);
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Run random queries on a pair of connections of its own until enough queries ran, time is up, or the test
+     * database crashed.
+     */
+    private void work(List<QueryGenerator.Table> tables, long workerSeed) {
+        QueryGenerator generator = new QueryGenerator(tables, new Random(workerSeed));
+        try (Connection conn = mogDb.getDbTest().getPool().borrow();
+             Connection refConn = mogDb.getDbRef().getPool().borrow()) {
+            while (!stopped && System.nanoTime() < deadline && numRun.getAndIncrement() < numQueries) {
+                QueryGenerator.Query query = generator.next();
+                Outcome outcome = run(conn, query.toSql());
+                Outcome refOutcome = run(refConn, query.toSql());
+                if (outcome.isError() && !conn.isValid(timeout)) {
+                    System.err.printf("Test database connection lost after: %s\n%s\n", query, outcome.error);
+                    save(query, "connection lost: " + outcome.error, refConn);
+                    stopped = true;
+                } else if (outcome.isError() || refOutcome.isError()) {
+                    if (outcome.isError() && refOutcome.isError()) {
+                        numBothFailed.incrementAndGet();
+                    } else {
+                        numErrorMismatches.incrementAndGet();
+                        if (saveErrors) {
+                            save(query, outcome.isError() ? "test error: " + outcome.error
+                                    : "reference error: " + refOutcome.error, refConn);
+                        }
+                    }
+                } else if (outcome.truncated || refOutcome.truncated) {
+                    numSkipped.incrementAndGet();
+                } else if (sameRows(outcome.rows, refOutcome.rows)) {
+                    numCompared.incrementAndGet();
+                } else {
+                    numMismatches.incrementAndGet();
+                    query = minimize(query, conn, refConn);
+                    save(query, "result mismatch", refConn);
+                }
+            }
+        } catch (SQLException e) {
+            System.err.printf("Worker stopped: %s\n", e.getMessage());
+        }
+    }
+
+    /**
+     * Run a query and read its results, normalized and sorted.
+     */
+    private Outcome run(Connection conn, String sql) {
+        Outcome outcome = new Outcome();
+        try (Statement statement = conn.createStatement()) {
+            statement.setQueryTimeout(timeout);
+            statement.setMaxRows(MAX_ROWS + 1);
+            try (ResultSet rs = statement.executeQuery(sql)) {
+                int numColumns = rs.getMetaData().getColumnCount();
+                outcome.rows = new ArrayList<>();
+                while (rs.next()) {
+                    List<String> row = new ArrayList<>(numColumns);
+                    for (int i = 1; i <= numColumns; ++i) {
+                        String value = rs.getString(i);
+                        row.add(null == value ? "NULL" : normalize(value));
+                    }
+                    outcome.rows.add(row);
+                }
+            }
+            outcome.truncated = outcome.rows.size() > MAX_ROWS;
+            outcome.rows.sort((a, b) -> String.join("\t", a).compareTo(String.join("\t", b)));
+        } catch (SQLException e) {
+            outcome.error = e.getMessage();
+        }
+        return outcome;
+    }
+
+    /**
+     * Normalize numbers, so that, e.g., 1, 1.0 and 1.00 compare equal across databases.
+     */
+    private static String normalize(String value) {
+        if (value.isEmpty() || !(Character.isDigit(value.charAt(0)) || value.charAt(0) == '-')) {
+            return value;
+        }
+        try {
+            BigDecimal number = new BigDecimal(value).stripTrailingZeros();
+            return 0 == number.signum() ? "0" : number.toPlainString();
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    private static boolean sameRows(List<List<String>> rows, List<List<String>> refRows) {
+        if (rows.size() != refRows.size()) {
+            return false;
+        }
+        for (int i = 0; i < rows.size(); ++i) {
+            List<String> row = rows.get(i);
+            List<String> refRow = refRows.get(i);
+            if (row.size() != refRow.size()) {
+                return false;
+            }
+            for (int j = 0; j < row.size(); ++j) {
+                if (!row.get(j).equals(refRow.get(j)) && !closeNumbers(row.get(j), refRow.get(j))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean closeNumbers(String value, String refValue) {
+        try {
+            double number = Double.parseDouble(value);
+            double refNumber = Double.parseDouble(refValue);
+            return Math.abs(number - refNumber) <= TOLERANCE * Math.max(Math.abs(number), Math.abs(refNumber));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Greedily simplify a query whose results differ between the databases, for as long as they still differ.
+     */
+    private QueryGenerator.Query minimize(QueryGenerator.Query query, Connection conn, Connection refConn) {
+        int attempts = 0;
+        boolean simplified = true;
+        while (simplified && attempts < MAX_MINIMIZE_ATTEMPTS) {
+            simplified = false;
+            for (QueryGenerator.Query simpler : query.simplifications()) {
+                if (++attempts > MAX_MINIMIZE_ATTEMPTS) {
+                    break;
+                }
+                Outcome outcome = run(conn, simpler.toSql());
+                Outcome refOutcome = run(refConn, simpler.toSql());
+                if (!outcome.isError() && !refOutcome.isError() && !outcome.truncated && !refOutcome.truncated
+                        && !sameRows(outcome.rows, refOutcome.rows)) {
+                    query = simpler;
+                    simplified = true;
+                    break;
+                }
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Save a query as a .test file that sets up the tables and expects the reference database's results.
+     */
+    private void save(QueryGenerator.Query query, String reason, Connection refConn) {
+        String sql = query.toSql();
+        File file;
+        synchronized (savedSql) {
+            if (savedSql.size() >= maxSaved || !savedSql.add(sql)) {
+                return;
+            }
+            file = new File(out, String.format("fuzz-%d-%d.test", seed, savedSql.size()));
+        }
+        StringBuilder record = new StringBuilder();
+        try (Statement statement = refConn.createStatement()) {
+            statement.setQueryTimeout(timeout);
+            try (ResultSet rs = statement.executeQuery(sql)) {
+                ResultSetMetaData rsmd = rs.getMetaData();
+                StringBuilder typeString = new StringBuilder();
+                for (int i = 1; i <= rsmd.getColumnCount(); ++i) {
+                    MogDb.DbColumnType type = mogDb.getDbRef().getDbColumnType(rsmd.getColumnTypeName(i));
+                    typeString.append(MogDb.DbColumnType.FLOAT == type ? 'R'
+                            : MogDb.DbColumnType.INTEGER == type ? 'I' : 'T');
+                }
+                List<String> values = MogSqlite.processResults(rs, "rowsort");
+                record.append(Constants.QUERY).append(' ').append(typeString).append(" rowsort\n")
+                        .append(sql).append('\n').append(Constants.SEPARATION).append('\n');
+                if (values.size() < Constants.DISPLAY_RESULT_SIZE) {
+                    values.forEach(value -> record.append(value).append('\n'));
+                } else {
+                    record.append(values.size()).append(" values hashing to ").append(ResultHasher.hash(values))
+                            .append('\n');
+                }
+            }
+        } catch (SQLException e) {
+            record.setLength(0);
+            record.append(Constants.STATEMENT_ERROR).append('\n').append(sql).append('\n');
+        }
+
+        try {
+            Files.createDirectories(out.toPath());
+            try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+                writer.write(String.format("# MogFuzz seed %d: %s\n", seed, reason.replace('\n', ' ')));
+                writer.write("\n");
+                for (String statement : setupStatements) {
+                    writer.write(Constants.STATEMENT_OK + "\n" + statement + "\n\n");
+                }
+                writer.write(record.toString());
+            }
+            System.out.printf("Saved %s: %s\n", file, reason);
+        } catch (IOException e) {
+            System.err.printf("Error saving %s: %s\n", file, e.getMessage());
+        }
+    }
+
+    private void report(long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long run = Math.min(numRun.get(), numQueries);
+        System.out.printf("[%.0fs] %d queries (%.0f/s): %d matched, %d skipped, %d failed on both, "
+                        + "%d result mismatches, %d error mismatches\n",
+                seconds, run, run / Math.max(seconds, 1e-3), numCompared.get(), numSkipped.get(),
+                numBothFailed.get(), numMismatches.get(), numErrorMismatches.get());
+    }
+}
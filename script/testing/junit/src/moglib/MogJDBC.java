@@ -6,6 +6,9 @@ import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 
 import java.io.File;
+import java.io.IOException;
+import java.sql.DriverManager;
+import java.sql.SQLException;
 import java.util.Objects;
 import java.util.concurrent.Callable;
 
@@ -36,12 +39,15 @@ public class MogJDBC implements Callable<Integer> {
      * Parameters for the JDBC connection to the reference database.
      */
     static class DbRefParams {
-        @Option(required = true, names = {"--refJdbc"}, description = "dbRef JDBC connection string.")
+        @Option(required = true, names = {"--refJdbc"},
+                description = "dbRef JDBC connection string, or h2 or sqlite for an embedded in-memory database.")
         private String jdbc;
-        @Option(required = true, names = {"--refUser"}, description = "dbRef username.")
+        @Option(names = {"--refUser"}, defaultValue = "", description = "dbRef username.")
         private String user;
-        @Option(required = true, names = {"--refPass"}, description = "dbRef password.")
+        @Option(names = {"--refPass"}, defaultValue = "", description = "dbRef password.")
         private String pass;
+        @Option(names = {"--refCache"}, description = "dbRef result cache file, created if missing.")
+        private File cache;
     }
 
     @ArgGroup(exclusive = false, multiplicity = "1")
@@ -71,9 +77,27 @@ public class MogJDBC implements Callable<Integer> {
 
         /* Set reference database, if it exists. */
         if (null != dbRefParams) {
+            dbRefParams.jdbc = MogDb.expandJdbc(dbRefParams.jdbc);
+            try {
+                DriverManager.getDriver(dbRefParams.jdbc);
+            } catch (SQLException e) {
+                /* The embedded databases are not retrieved by default. */
+                System.out.printf("No JDBC driver for %s on the classpath; run \"ant resolve-embedded\" for H2 and "
+                        + "SQLite.\n", dbRefParams.jdbc);
+                return 1;
+            }
             mogDb.setDbRef(dbRefParams.jdbc, dbRefParams.user, dbRefParams.pass);
             System.out.printf("Reference Database: [%s - %s - %s]\n",
                     dbRefParams.jdbc, dbRefParams.user, dbRefParams.pass);
+            if (null != dbRefParams.cache) {
+                try {
+                    mogDb.setRefCache(new ReferenceCache(dbRefParams.cache, mogDb.getDbRef()));
+                } catch (IOException e) {
+                    System.out.printf("Error opening reference cache: %s\n", e.getMessage());
+                    return 1;
+                }
+                System.out.printf("Reference Cache: [%s]\n", dbRefParams.cache);
+            }
         }
 
         /* Run SQLite tests, if applicable. */
@@ -88,15 +112,26 @@ public class MogJDBC implements Callable<Integer> {
                     try {
                         /* Refresh the database connections. */
                         mogDb.getDbTest().newConn();
-                        mogDb.getDbRef().newConn();
+                        mogDb.setInTransaction(false);
+                        if (null != mogDb.getRefCache()) {
+                            /* The reference database is only connected to on a cache miss. */
+                            mogDb.getRefCache().reset();
+                        } else if (null != mogDb.getDbRef()) {
+                            mogDb.getDbRef().newConn();
+                            if (mogDb.getDbRef().isEmbedded()) {
+                                /* The embedded database outlives the connection, start over from an empty one. */
+                                mogDb.getDbRef().clear();
+                            }
+                        }
 
                         int numRecords = 0;
                         int numPassed = 0;
 
                         /* Go through each record in the .test file. */
-                        MogSqlite mogSqlite = new MogSqlite(file);
-                        while (mogSqlite.next()) {
-                            numPassed = mogSqlite.check(mogDb) ? numPassed + 1 : numPassed;
+                        MogSqlite mogSqlite = new MogSqlite(file, true);
+                        TraceRecord record;
+                        while (null != (record = mogSqlite.nextRecord())) {
+                            numPassed = MogSqlite.check(record, mogDb) ? numPassed + 1 : numPassed;
                             ++numRecords;
                         }
 
@@ -111,6 +146,16 @@ public class MogJDBC implements Callable<Integer> {
             }
         }
 
+        if (null != mogDb.getRefCache()) {
+            System.out.printf("Reference Cache: [%d hits, %d misses]\n",
+                    mogDb.getRefCache().getNumHits(), mogDb.getRefCache().getNumMisses());
+            try {
+                mogDb.getRefCache().close();
+            } catch (IOException e) {
+                System.out.printf("Error closing reference cache: %s\n", e.getMessage());
+            }
+        }
+
         return 0;
     }
 }
\ No newline at end of file
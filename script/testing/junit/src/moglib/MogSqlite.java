@@ -1,104 +1,415 @@
 package moglib;
 
 import java.io.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Comparator;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 // TODO(WAN): document, clean-up.
 
 public class MogSqlite {
 
-    private enum SqliteMode {INVALID, RECORD_STATEMENT_OK, RECORD_STATEMENT_ERROR, RECORD_QUERY}
-
     /**
      * The maximum read-ahead for cases where "----" does not appear to mark query record termination.
+     * Only applies to the BufferedReader-based parser, the memory-mapped parser has no read-ahead limit.
      */
     private static final int RECORD_READAHEAD_LIMIT = 1024;
 
-    private SqliteMode mode = SqliteMode.INVALID;
+    /**
+     * Line prefixes that start a new record, i.e., that terminate the SQL or results of the current record.
+     */
+    private static final byte[][] RECORD_BOUNDARIES = toBytes(Constants.QUERY, Constants.STATEMENT_OK,
+            Constants.STATEMENT_ERROR, Constants.HASHTAG, Constants.SKIPIF, Constants.ONLYIF, Constants.BENCH);
+    /**
+     * Line prefixes of conditions, which are attached to the next record.
+     */
+    private static final byte[][] CONDITION_PREFIXES = toBytes(Constants.SKIPIF, Constants.ONLYIF);
+    private static final byte[] HASHTAG_BYTES = toBytes(Constants.HASHTAG)[0];
+    private static final byte[] HALT_BYTES = toBytes(Constants.HALT)[0];
+    private static final byte[] HASH_THRESHOLD_BYTES = toBytes(Constants.HASH_THRESHOLD)[0];
+    private static final byte[] BENCH_BYTES = toBytes(Constants.BENCH)[0];
+    private static final byte[][] STATEMENT_PREFIXES = toBytes(Constants.STATEMENT_OK, Constants.STATEMENT_ERROR);
+    private static final byte[] QUERY_BYTES = toBytes(Constants.QUERY)[0];
+    private static final byte[] SEPARATION_BYTES = toBytes(Constants.SEPARATION)[0];
+
+    /**
+     * Number of rows fetched per round trip when query results are streamed through a cursor.
+     */
+    private static final int FETCH_SIZE = 1000;
+    /**
+     * Statements that open and close an explicit transaction, during which results are not streamed.
+     */
+    private static final Pattern BEGIN_PATTERN = Pattern.compile("^\\s*(BEGIN|START\\s+TRANSACTION)\\b",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern END_PATTERN = Pattern.compile("^\\s*(COMMIT|ROLLBACK|END|ABORT)\\b",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Runs records on the reference database while the calling thread runs them on the test database.
+     * The threads are daemons, so that they do not keep the JVM alive.
+     */
+    private static final ExecutorService REF_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "mog-reference");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private StringBuilder sb = new StringBuilder();
-    public BufferedReader br;
-    public String sql = "";
+    private BufferedReader br;
+    /**
+     * Scanner over the memory-mapped trace file, null unless the memory-mapped parser is used.
+     */
+    private MappedTraceScanner scanner;
+    /**
+     * The compiled form of the trace file, null unless a fresh one was found when opening the trace file.
+     */
+    private CompiledTrace compiled;
+    /**
+     * Index of the next record to return from the compiled trace.
+     */
+    private int compiledIndex = 0;
 
-    /* Query records. */
-    public String typeString = "";
-    public String sortMode = "";
-    public String label = "";
-    public ArrayList<String> queryResults = new ArrayList<>();
-    public String queryFirstLine;
-    public ArrayList<String> comments = new ArrayList<>();
-    public int lineCounter = 0;
-    public int lineNum;
+    /*
+     * State of the record currently being parsed. These are only ever touched by the parser and are copied into an
+     * immutable TraceRecord once the record has been read completely.
+     */
+    private TraceRecord.Kind kind;
+    private String firstLine;
+    private int lineNumber;
+    private String sql = "";
+    private String typeString = "";
+    private String sortMode = "nosort";
+    private String label = "";
+    private ArrayList<String> queryResults = new ArrayList<>();
+    private ArrayList<String> conditions = new ArrayList<>();
+    /**
+     * Memory-mapped parser only: decoders of the SQL and, if there is more than one line of them, the results of the
+     * record, which are only run when the record's SQL or results are first asked for.
+     */
+    private Supplier<String> lazySql;
+    private Supplier<List<String>> lazyResults;
+    /**
+     * The warmup and measured runs of the bench directive preceding the record; 0 iterations if there was none.
+     */
+    private int benchWarmup;
+    private int benchIterations;
+    /**
+     * Number of lines consumed so far by the BufferedReader-based parser.
+     */
+    private int lineCounter = 0;
+    private int markedLineCounter = 0;
 
-    public MogSqlite(File sqliteTestFile) throws FileNotFoundException {
-        this.br = new BufferedReader(new FileReader(sqliteTestFile));
+    /**
+     * Create a new parser for the given trace file, which reads a fresh compiled trace if there is one and otherwise
+     * memory-maps the trace file.
+     *
+     * @param sqliteTestFile The trace file.
+     * @throws IOException If the file could not be opened.
+     */
+    public MogSqlite(File sqliteTestFile) throws IOException {
+        this(sqliteTestFile, true, true);
     }
 
     /**
-     * Set the state to be the next record.
+     * Create a new parser for the given trace file.
      *
-     * @return True if there is a next record and false otherwise.
+     * @param sqliteTestFile The trace file.
+     * @param memoryMapped   True to memory-map the file and scan records directly over its bytes. Unlike the
+     *                       BufferedReader-based parser, this has no limit on record length and only decodes the SQL,
+     *                       results and conditions of the records that are returned.
+     * @throws IOException If the file could not be opened.
+     */
+    public MogSqlite(File sqliteTestFile, boolean memoryMapped) throws IOException {
+        this(sqliteTestFile, memoryMapped, true);
+    }
+
+    /**
+     * Create a new parser for the given trace file.
+     * If useCompiled is set and TraceCompiler has produced a compiled trace that is newer than the trace file, records
+     * are read from the compiled trace instead and the text is not parsed at all.
+     *
+     * @param sqliteTestFile The trace file.
+     * @param memoryMapped   True to use the memory-mapped parser if the text needs to be parsed.
+     * @param useCompiled    True to use a fresh compiled trace if there is one.
+     * @throws IOException If the file could not be opened.
+     */
+    MogSqlite(File sqliteTestFile, boolean memoryMapped, boolean useCompiled) throws IOException {
+        this.compiled = useCompiled ? CompiledTrace.openIfFresh(sqliteTestFile) : null;
+        if (null != this.compiled) {
+            return;
+        }
+        if (memoryMapped) {
+            this.scanner = new MappedTraceScanner(sqliteTestFile);
+        } else {
+            this.br = new BufferedReader(new FileReader(sqliteTestFile));
+        }
+    }
+
+    /**
+     * Get the records of the trace file as a stream. The stream consumes this MogSqlite instance, i.e., stream()
+     * should only be called once and records are parsed lazily as the stream is traversed.
+     *
+     * @return A sequential, ordered stream of the remaining records in the trace file.
+     */
+    public Stream<TraceRecord> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Get the records whose first line lies within a range of lines. Compiled traces seek straight to the first such
+     * record, text traces are parsed up to it.
+     *
+     * @param firstLine The first line of the range, 1-based, inclusive.
+     * @param lastLine  The last line of the range, 1-based, inclusive.
+     * @return A sequential, ordered stream of the records in the range. See stream().
+     */
+    public Stream<TraceRecord> stream(int firstLine, int lastLine) {
+        if (null != this.compiled) {
+            int from = Math.max(this.compiledIndex, this.compiled.findRecord(firstLine));
+            int to = Math.max(from, this.compiled.findRecord(lastLine + 1));
+            this.compiledIndex = to;
+            return StreamSupport.stream(this.compiled.spliterator(from, to), false);
+        }
+        return stream().dropWhile(r -> r.getLineNumber() < firstLine).takeWhile(r -> r.getLineNumber() <= lastLine);
+    }
+
+    /**
+     * @return The compiled trace that records are read from, or null if the trace file is being parsed.
+     */
+    public CompiledTrace getCompiledTrace() {
+        return this.compiled;
+    }
+
+    /**
+     * @return A spliterator over the remaining records in the trace file. See stream().
+     */
+    public Spliterator<TraceRecord> spliterator() {
+        if (null != this.compiled) {
+            Spliterator<TraceRecord> spliterator =
+                    this.compiled.spliterator(this.compiledIndex, this.compiled.getRecordCount());
+            this.compiledIndex = this.compiled.getRecordCount();
+            return spliterator;
+        }
+        return new Spliterators.AbstractSpliterator<TraceRecord>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE) {
+            @Override
+            public boolean tryAdvance(Consumer<? super TraceRecord> action) {
+                TraceRecord record;
+                try {
+                    record = nextRecord();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (null == record) {
+                    return false;
+                }
+                action.accept(record);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Parse the next record.
+     *
+     * @return The next record, or null if there are no more records.
      * @throws IOException      If there was an error in reading the file.
-     * @throws RuntimeException
+     * @throws RuntimeException If an invalid record was encountered.
+     */
+    public TraceRecord nextRecord() throws IOException, RuntimeException {
+        if (null != this.compiled) {
+            return this.compiledIndex < this.compiled.getRecordCount()
+                    ? this.compiled.getRecord(this.compiledIndex++) : null;
+        }
+        this.typeString = "";
+        this.sortMode = "nosort";
+        this.label = "";
+        this.queryResults = new ArrayList<>();
+        this.conditions = new ArrayList<>();
+        this.benchWarmup = 0;
+        this.benchIterations = 0;
+        this.lazySql = null;
+        this.lazyResults = null;
+
+        boolean found = null != this.scanner ? nextMapped() : nextBuffered();
+        if (!found) {
+            return null;
+        }
+        if (TraceRecord.Kind.QUERY != this.kind) {
+            if (this.benchIterations > 0) {
+                throw new RuntimeException("Bench directive before line " + this.lineNumber
+                        + " does not precede a query record.");
+            }
+            return null != this.lazySql
+                    ? new TraceRecord(this.lineNumber, this.kind, this.firstLine, this.lazySql, this.conditions)
+                    : new TraceRecord(this.lineNumber, this.kind, this.firstLine, this.sql, this.conditions);
+        }
+        TraceRecord record;
+        if (null != this.lazyResults) {
+            record = new TraceRecord(this.lineNumber, this.kind, this.firstLine, this.lazySql, this.typeString,
+                    this.sortMode, this.label, this.conditions, this.lazyResults);
+        } else if (null != this.lazySql) {
+            /* A single line of results may be a hash line, which is recognized right away. */
+            record = new TraceRecord(this.lineNumber, this.kind, this.firstLine, this.lazySql, this.typeString,
+                    this.sortMode, this.label, this.conditions, this.queryResults);
+        } else {
+            record = new TraceRecord(this.lineNumber, this.kind, this.firstLine, this.sql, this.typeString,
+                    this.sortMode, this.label, this.conditions, this.queryResults);
+        }
+        return this.benchIterations > 0 ? record.withBench(this.benchWarmup, this.benchIterations) : record;
+    }
+
+    /**
+     * Read a bench directive, e.g., "bench warmup=5 iterations=50", which applies to the next record. Options that
+     * are left out take their default values, see TraceRecord.
+     *
+     * @param line The directive.
+     * @throws RuntimeException If the directive is malformed.
+     */
+    private void readBench(String line) throws RuntimeException {
+        this.benchWarmup = TraceRecord.DEFAULT_BENCH_WARMUP;
+        this.benchIterations = TraceRecord.DEFAULT_BENCH_ITERATIONS;
+        String[] tokens = line.trim().split("\\s+");
+        try {
+            for (int i = 1; i < tokens.length; ++i) {
+                if (tokens[i].startsWith("warmup=")) {
+                    this.benchWarmup = Integer.parseInt(tokens[i].substring("warmup=".length()));
+                } else if (tokens[i].startsWith("iterations=")) {
+                    this.benchIterations = Integer.parseInt(tokens[i].substring("iterations=".length()));
+                } else {
+                    throw new RuntimeException("Invalid bench directive: " + line);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Invalid bench directive: " + line, e);
+        }
+        if (this.benchWarmup < 0 || this.benchIterations < 1) {
+            throw new RuntimeException("Invalid bench directive: " + line);
+        }
+    }
+
+    /**
+     * Read the next record with the BufferedReader.
+     *
+     * @return True if there is a next record and false otherwise.
+     * @throws IOException If there was an error in reading the file.
      */
-    public boolean next() throws IOException, RuntimeException {
-        boolean readLine = false;
+    private boolean nextBuffered() throws IOException {
         String line;
-        while (null != (line = br.readLine())) {
-            readLine = true;
-            if (line.startsWith(Constants.HASHTAG)||line.startsWith(Constants.SKIPIF)
-                    ||(line.startsWith(Constants.ONLYIF))) {
+        while (null != (line = readLine())) {
+            if (line.startsWith(Constants.HASHTAG)) {
                 /* Ignore comments. */
-                lineCounter++;
-                comments.add(line);
+                continue;
+            } else if (line.startsWith(Constants.SKIPIF) || line.startsWith(Constants.ONLYIF)) {
+                /* Conditions are attached to the next record. */
+                conditions.add(line);
                 continue;
             } else if (line.startsWith(Constants.HALT)) {
                 /* Special debugging control record, ignore the rest of the test script. */
-                lineCounter++;
                 return false;
             } else if (line.startsWith(Constants.HASH_THRESHOLD)) {
                 /* Ignore hash-threshold control record. */
-                lineCounter++;
+                continue;
+            } else if (line.startsWith(Constants.BENCH)) {
+                /* Bench directives are attached to the next record. */
+                readBench(line);
                 continue;
             } else if (line.startsWith(Constants.STATEMENT_OK) || line.startsWith(Constants.STATEMENT_ERROR)) {
                 /* Statement record. */
-                queryFirstLine = line.trim();
-                lineCounter++;
+                firstLine = line.trim();
+                lineNumber = lineCounter;
                 readRecordStatement(line);
-                break;
+                return true;
             }  else if (line.startsWith(Constants.QUERY)) {
                 /* Query record. */
-                queryFirstLine = line.trim();
-                lineNum = lineCounter;
+                firstLine = line.trim();
+                lineNumber = lineCounter;
                 readRecordQuery(line);
-                break;
+                return true;
             } else if (!line.equals("")) {
                 throw new RuntimeException("Invalid record type encountered.");
             }
         }
+        return false;
+    }
 
-        return readLine;
+    /**
+     * Set the state to be the next record, scanning the memory-mapped file.
+     *
+     * @return True if there is a next record and false otherwise.
+     */
+    private boolean nextMapped() {
+        while (scanner.advance()) {
+            if (scanner.startsWith(HASHTAG_BYTES)) {
+                /* Ignore comments. */
+                continue;
+            } else if (scanner.startsWithAny(CONDITION_PREFIXES)) {
+                /* Conditions are attached to the next record. */
+                conditions.add(scanner.lineString());
+            } else if (scanner.startsWith(HALT_BYTES)) {
+                /* Special debugging control record, ignore the rest of the test script. */
+                return false;
+            } else if (scanner.startsWith(HASH_THRESHOLD_BYTES)) {
+                /* Ignore hash-threshold control record. */
+                continue;
+            } else if (scanner.startsWith(BENCH_BYTES)) {
+                /* Bench directives are attached to the next record. */
+                readBench(scanner.lineString());
+            } else if (scanner.startsWithAny(STATEMENT_PREFIXES)) {
+                /* Statement record. */
+                lineNumber = scanner.getLineNumber();
+                String line = scanner.lineString();
+                firstLine = line.trim();
+                scanRecordStatement(line);
+                return true;
+            } else if (scanner.startsWith(QUERY_BYTES)) {
+                /* Query record. */
+                lineNumber = scanner.getLineNumber();
+                String line = scanner.lineString();
+                firstLine = line.trim();
+                scanRecordQuery(line);
+                return true;
+            } else if (!scanner.isEmptyLine()) {
+                throw new RuntimeException("Invalid record type encountered.");
+            }
+        }
+        return false;
     }
 
-    public boolean check(MogDb mogDb) throws SQLException {
-        if (SqliteMode.RECORD_STATEMENT_OK == this.mode) {
-            return checkRecordStatementOk(mogDb);
-        } else if (SqliteMode.RECORD_QUERY == this.mode) {
-            return checkRecordQuery(mogDb);
+    /**
+     * Check a record against the test database and, if one is set, the reference database.
+     *
+     * @param record The record to check.
+     * @param mogDb  The databases to check against.
+     * @return True if the record passed and false otherwise.
+     * @throws SQLException If executing the record's SQL fails unexpectedly.
+     */
+    public static boolean check(TraceRecord record, MogDb mogDb) throws SQLException {
+        if (TraceRecord.Kind.STATEMENT_OK == record.getKind()) {
+            return checkRecordStatementOk(record, mogDb);
+        } else if (TraceRecord.Kind.QUERY == record.getKind()) {
+            return checkRecordQuery(record, mogDb);
         } else {
             throw new RuntimeException("unimplemented");
         }
     }
 
-    private boolean checkRecordStatement(Connection conn) throws SQLException {
+    private static boolean checkRecordStatement(TraceRecord record, Connection conn) throws SQLException {
         Statement statement = conn.createStatement();
-        boolean hasResults = statement.execute(this.sql);
+        boolean hasResults = statement.execute(record.getSql());
         if (hasResults) {
             System.err.println("Statement records should have no results.");
             return false;
@@ -106,46 +417,261 @@ public class MogSqlite {
         return true;
     }
 
-    private boolean checkRecordStatementOk(MogDb mogDb) throws SQLException {
-        return checkRecordStatement(mogDb.getDbTest().getConn()) && checkRecordStatement(mogDb.getDbRef().getConn());
+    private static boolean checkRecordStatementOk(TraceRecord record, MogDb mogDb) throws SQLException {
+        ReferenceCache refCache = mogDb.getRefCache();
+        Future<Boolean> refFuture = null == mogDb.getDbRef()
+                ? null
+                : submitRef(() -> null == refCache
+                        ? checkRecordStatement(record, mogDb.getDbRef().getConn())
+                        : checkCachedStatement(record, refCache));
+        boolean ok = false;
+        boolean executed = false;
+        try {
+            ok = checkRecordStatement(record, mogDb.getDbTest().getConn());
+            executed = true;
+        } finally {
+            /* Wait even if the test database failed, whose failure then takes precedence, to free the connection. */
+            if (null != refFuture && !executed) {
+                awaitRef(refFuture, true);
+            }
+        }
+        boolean refOk = null == refFuture || awaitRef(refFuture, false);
+        if (BEGIN_PATTERN.matcher(record.getSql()).find()) {
+            mogDb.setInTransaction(true);
+        } else if (END_PATTERN.matcher(record.getSql()).find()) {
+            mogDb.setInTransaction(false);
+        }
+        return ok && refOk;
     }
 
-    private boolean checkRecordQuery(MogDb mogDb) throws SQLException {
-        Statement statement = mogDb.getDbTest().getConn().createStatement();
-        statement.execute(this.sql);
-        ResultSet rs = statement.getResultSet();
-        ResultSet refRs = null;
+    private static boolean checkCachedStatement(TraceRecord record, ReferenceCache refCache) throws SQLException {
+        ReferenceCache.Result result = refCache.run(record.getSql(), null, false);
+        if (!result.isOk()) {
+            throw new SQLException(result.getError());
+        }
+        if (result.hasResultSet()) {
+            System.err.println("Statement records should have no results.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Run a query record on the test database and, concurrently, on the reference database, if one is set.
+     * If the query only reads and no explicit transaction is open, see isStreamed(), the results of both are streamed
+     * through a cursor, FETCH_SIZE rows at a time, and nosort results are compared row by row as they arrive. Sorted
+     * results have to be read completely before they can be compared, into packed buffers.
+     */
+    private static boolean checkRecordQuery(TraceRecord record, MogDb mogDb) throws SQLException {
+        if (null != mogDb.getDbRef() && null != mogDb.getRefCache()) {
+            return checkRecordQueryCached(record, mogDb);
+        }
+        boolean streaming = isStreamed(record, mogDb);
+        Connection conn = mogDb.getDbTest().getConn();
+        Connection refConn = null == mogDb.getDbRef() ? null : mogDb.getDbRef().getConn();
+        Future<Statement> refFuture = null == refConn ? null : submitRef(() -> {
+            Statement refStatement = createStatement(refConn, streaming);
+            try {
+                refStatement.execute(record.getSql());
+                return refStatement;
+            } catch (SQLException e) {
+                refStatement.close();
+                throw e;
+            }
+        });
+
+        Statement statement = null;
+        Statement refStatement = null;
+        try {
+            boolean executed = false;
+            try {
+                statement = createStatement(conn, streaming);
+                statement.execute(record.getSql());
+                executed = true;
+            } finally {
+                /* Wait even if the test database failed, whose failure takes precedence, to free the connection. */
+                refStatement = null == refFuture ? null : awaitRef(refFuture, !executed);
+            }
+            ResultSet rs = statement.getResultSet();
+            ResultSet refRs = null == refStatement ? null : refStatement.getResultSet();
+
+            boolean ok = true;
+
+            /* Check if the type string is OK. */
+            ok = ok && checkTypeString(record, mogDb, rs, null == refRs ? null : columnTypeNames(refRs));
+            /* Check the actual results. */
+            ok = ok && checkResults(record, rs, refRs);
+
+            return ok;
+        } finally {
+            if (null != statement) {
+                statement.close();
+            }
+            if (null != refStatement) {
+                refStatement.close();
+            }
+            if (streaming) {
+                endStreaming(conn);
+                if (null != refConn) {
+                    endStreaming(refConn);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether the results of a query record are to be streamed through a cursor, which takes turning autocommit
+     * off: only outside of an explicit transaction, which autocommit would end, and only for queries that only read,
+     * since the transaction is rolled back afterwards. Other queries run in autocommit mode, so their writes are
+     * committed, as in TracefileRunner.
+     */
+    private static boolean isStreamed(TraceRecord record, MogDb mogDb) {
+        return !mogDb.isInTransaction() && QueryTemplate.isReadOnly(record.getSql());
+    }
 
-        if (null != mogDb.getDbRef().getConn()) {
-            Statement refStatement = mogDb.getDbRef().getConn().createStatement();
-            refStatement.execute(this.sql);
-            refRs = refStatement.getResultSet();
+    /**
+     * Create a statement for a query. If its results are to be streamed, see isStreamed(), autocommit is turned off,
+     * since pgjdbc only uses a cursor within a transaction; endStreaming() turns it back on.
+     *
+     * @param conn      The connection.
+     * @param streaming True to stream the results through a cursor.
+     * @return The statement.
+     * @throws SQLException If the statement cannot be created.
+     */
+    private static Statement createStatement(Connection conn, boolean streaming) throws SQLException {
+        if (!streaming) {
+            return conn.createStatement();
         }
+        conn.setAutoCommit(false);
+        Statement statement = conn.createStatement();
+        statement.setFetchSize(FETCH_SIZE);
+        return statement;
+    }
 
-        boolean ok = true;
+    /**
+     * End the transaction of a query whose results were streamed, and return to autocommit. Only queries that only
+     * read are streamed, so there is nothing to commit and the transaction is rolled back.
+     */
+    private static void endStreaming(Connection conn) {
+        try {
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            System.err.printf("Error ending streaming transaction: %s\n", e.getMessage());
+        }
+    }
 
-        /* Check if the type string is OK. */
-        ok = ok && checkTypeString(mogDb, rs, refRs);
-        /* Check the actual results. */
-        ok = ok && checkResults(rs, refRs);
+    /**
+     * Run a query record on the test database and look up its outcome on the reference database in the reference
+     * cache, concurrently, since a miss runs it on the reference database. The results are compared by count and
+     * hash, or value by value if the cache has the values.
+     */
+    private static boolean checkRecordQueryCached(TraceRecord record, MogDb mogDb) throws SQLException {
+        ReferenceCache refCache = mogDb.getRefCache();
+        Future<ReferenceCache.Result> refFuture = submitRef(
+                () -> refCache.run(record.getSql(), record.getSortMode(), false));
+
+        boolean streaming = isStreamed(record, mogDb);
+        Statement statement = null;
+        try {
+            ReferenceCache.Result refResult;
+            boolean executed = false;
+            try {
+                statement = createStatement(mogDb.getDbTest().getConn(), streaming);
+                statement.execute(record.getSql());
+                executed = true;
+            } finally {
+                /* Wait even if the test database failed, whose failure takes precedence, to free the connection. */
+                refResult = awaitRef(refFuture, !executed);
+            }
+            if (!refResult.isOk()) {
+                throw new SQLException(refResult.getError());
+            }
+            ResultSet rs = statement.getResultSet();
+            return checkTypeString(record, mogDb, rs, refResult.getColumnTypes())
+                    && checkCachedResults(record, rs, refResult);
+        } finally {
+            if (null != statement) {
+                statement.close();
+            }
+            if (streaming) {
+                endStreaming(mogDb.getDbTest().getConn());
+            }
+        }
+    }
+
+    /**
+     * @return The JDBC column type names of a result set.
+     */
+    private static List<String> columnTypeNames(ResultSet rs) throws SQLException {
+        ResultSetMetaData rsmd = rs.getMetaData();
+        List<String> names = new ArrayList<>(rsmd.getColumnCount());
+        for (int i = 1; i <= rsmd.getColumnCount(); ++i) {
+            names.add(rsmd.getColumnTypeName(i));
+        }
+        return names;
+    }
 
-        statement.close();
+    /**
+     * Run a task against the reference database on a thread of its own.
+     *
+     * @param task The task.
+     * @return The future outcome of the task.
+     */
+    private static <T> Future<T> submitRef(Callable<T> task) {
+        return REF_EXECUTOR.submit(task);
+    }
 
-        return ok;
+    /**
+     * Wait for a task against the reference database to finish.
+     *
+     * @param future The future outcome of the task.
+     * @param quiet  True to return null instead of throwing if the task failed, e.g., because the test database
+     *               failed already and its failure takes precedence.
+     * @return The outcome of the task.
+     * @throws SQLException If the task failed and quiet is false.
+     */
+    private static <T> T awaitRef(Future<T> future, boolean quiet) throws SQLException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    /* The reference connection must not be used by two threads at once, so keep waiting. */
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (quiet) {
+                        return null;
+                    }
+                    if (e.getCause() instanceof SQLException) {
+                        throw (SQLException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
-    private boolean checkTypeString(MogDb mogDb, ResultSet rs, ResultSet refRs) throws SQLException {
+    private static boolean checkTypeString(TraceRecord record, MogDb mogDb, ResultSet rs, List<String> refColTypeNames)
+            throws SQLException {
+        String typeString = record.getTypeString();
         ResultSetMetaData rsmd = rs.getMetaData();
-        ResultSetMetaData refRsmd = null == refRs ? null : refRs.getMetaData();
 
-        /* Check against the reference result set. */
-        if (null != refRsmd) {
-            if (refRsmd.getColumnCount() != rsmd.getColumnCount()) {
+        /* Check against the column types of the reference result set. */
+        if (null != refColTypeNames) {
+            if (refColTypeNames.size() != rsmd.getColumnCount()) {
                 return false;
             } else {
-                for (int i = 1; i <= refRsmd.getColumnCount(); ++i) {
+                for (int i = 1; i <= refColTypeNames.size(); ++i) {
                     String testColTypeName = rsmd.getColumnTypeName(i);
-                    String refColTypeName = refRsmd.getColumnTypeName(i);
+                    String refColTypeName = refColTypeNames.get(i - 1);
                     MogDb.DbColumnType testColType = mogDb.getDbTest().getDbColumnType(testColTypeName);
                     MogDb.DbColumnType refColType = mogDb.getDbRef().getDbColumnType(refColTypeName);
 
@@ -179,114 +705,245 @@ public class MogSqlite {
         return true;
     }
 
-    public List<String> processResults(ResultSet rs) throws SQLException {
-        final int numCols = rs.getMetaData().getColumnCount();
-        List<ArrayList<String>> resultRows = new ArrayList<>();
-        while (rs.next()) {
-            ArrayList<String> resultRow = new ArrayList<>();
-            for (int i = 1; i <= numCols; ++i) {
-                final String attr = (rs.getString(i) == null) ? "" : rs.getString(i);
-                resultRow.add(attr);
-            }
-            resultRows.add(resultRow);
-        }
-
-        /*
-         * Perform any necessary sorting. Logic is a little tangled here.
-         * 1. First, rowsort if necessary.
-         * 2. Then flatten the List<List<String>> into a List<String>.
-         * 3. Now, valuesort if necessary.
-         * 4. nosort is the default.
-         *
-         * This logic handles the nosort, rowsort, and valuesort cases properly with 
-         * minimal branching. But adding new sorting cases may require a rewrite.
-         */
-        if (this.sortMode.equals("rowsort")) {
-            // Sort each row individually
-            resultRows.sort(new Comparator<ArrayList<String>>() {
-                @Override
-                public int compare(ArrayList<String> o1, ArrayList<String> o2) {
-                    int c = 0;
-                    for (int i = 0; c == 0 && i < numCols; ++i) {
-                        c = o1.get(i).compareTo(o2.get(i));
-                    }
-                    return c;
-                }
-            });
-        }
+    /**
+     * Read all the values of a result set, applying the given sort mode.
+     *
+     * @param rs       The result set.
+     * @param sortMode The sort mode of the query record, e.g., "rowsort".
+     * @return The values of the result set, row by row. NULL values are returned as empty strings.
+     * @throws SQLException If reading the result set fails.
+     */
+    public static List<String> processResults(ResultSet rs, String sortMode) throws SQLException {
+        ResultBuffer buffer = new ResultBuffer();
+        readResults(rs, sortMode, buffer);
+        return buffer.toList();
+    }
 
-        return resultRows.stream().flatMap(Collection::stream).collect(Collectors.toList());
+    /**
+     * Read all the values of a result set into a buffer, applying the given sort mode. Unlike processResults(), the
+     * values stay packed in the buffer, where they can be checked without decoding them.
+     *
+     * @param rs       The result set.
+     * @param sortMode The sort mode of the query record, e.g., "rowsort".
+     * @param buffer   The buffer, which is reset first.
+     * @throws SQLException If reading the result set fails.
+     */
+    public static void readResults(ResultSet rs, String sortMode, ResultBuffer buffer) throws SQLException {
+        buffer.reset(rs.getMetaData().getColumnCount());
+        while (buffer.addRow(rs)) {
+            // Keep reading
+        }
+        sortResults(buffer, sortMode);
     }
 
-    private boolean checkResults(ResultSet rs, ResultSet refRs) throws SQLException {
-        List<String> results = processResults(rs);
-        List<String> refResults = null == refRs ? null : processResults(refRs);
+    /**
+     * Perform any necessary sorting.
+     * 1. rowsort sorts the rows, comparing them column by column.
+     * 2. valuesort sorts all values individually, regardless of the row they are in.
+     * 3. nosort is the default.
+     *
+     * @param buffer   The values.
+     * @param sortMode The sort mode of the query record, e.g., "rowsort".
+     */
+    public static void sortResults(ResultBuffer buffer, String sortMode) {
+        if (sortMode.equals("rowsort")) {
+            buffer.sortRows();
+        } else if (sortMode.equals("valuesort")) {
+            buffer.sortValues();
+        }
+    }
 
-        if (null != refResults) {
-            if (refResults.size() != results.size()) {
-                System.err.printf("Mismatched sizes, actual %d reference %d.\n", results.size(), refResults.size());
+    private static boolean checkResults(TraceRecord record, ResultSet rs, ResultSet refRs) throws SQLException {
+        /* Hashed results can be checked as they arrive, without keeping them around. */
+        if (null == refRs && record.isHashed()) {
+            ResultHasher hasher = new ResultHasher();
+            hasher.addResults(rs, record.getSortMode());
+            if (hasher.getNumValues() != record.getExpectedValueCount()) {
+                System.err.printf("Result count mismatch: expected %d got %d\n", record.getExpectedValueCount(),
+                        hasher.getNumValues());
                 return false;
             }
-            for (int i = 0; i < refResults.size(); ++i) {
-                if (!refResults.get(i).equals(results.get(i))) {
-                    System.err.printf("Mismatched data, actual %s reference %s.\n", results.get(i), refResults.get(i));
-                    return false;
-                }
+            String resultsHash = hasher.getHash();
+            if (!record.getExpectedHash().equals(resultsHash)) {
+                System.err.println(record.getSql());
+                System.err.printf("Result hash mismatch: expected %s got %s\n", record.getExpectedHash(), resultsHash);
+                return false;
             }
-            // TODO(WAN): expose option to skip trace or not
             return true;
         }
 
+        /* Unsorted results can be compared with the reference row by row, without keeping them around. */
+        String sortMode = record.getSortMode();
+        if (null != refRs && !sortMode.equals("rowsort") && !sortMode.equals("valuesort")) {
+            return compareInLockstep(rs, refRs);
+        }
+
+        List<String> queryResults = record.getExpectedResults();
+        ResultBuffer results = new ResultBuffer();
+        readResults(rs, sortMode, results);
+
+        if (null != refRs) {
+            ResultBuffer refResults = new ResultBuffer();
+            readResults(refRs, sortMode, refResults);
+            // TODO(WAN): expose option to skip trace or not
+            return compareValues(results, refResults);
+        }
+
         /* Check if the number of results is as expected. */
-        if (results.size() != queryResults.size()) {
+        if (results.getNumCells() != queryResults.size()) {
             /* If not, it could be because of the hash-threshold of the .test format. */
             if (1 == queryResults.size()) {
                 /* String should be of format "NUM_VALUES values hashing to MD5_HASH". */
                 String[] checker = queryResults.get(0).split(" ");
 
                 /* Check the number of values. */
-                if (!checker[0].equals(String.valueOf(results.size()))) {
+                if (!checker[0].equals(String.valueOf(results.getNumCells()))) {
                     /* Different number of values, fail. */
-                    System.err.printf("Result count mismatch: expected %s got %d\n", checker[0], results.size());
+                    System.err.printf("Result count mismatch: expected %s got %d\n", checker[0],
+                            results.getNumCells());
                     return false;
                 }
 
-                /* Check the MD5_HASH. */
-                MessageDigest md;
-                try {
-                    md = MessageDigest.getInstance("MD5");
-                } catch (NoSuchAlgorithmException e) {
-                    throw new RuntimeException("Sucks.", e);
-                }
-
-                /* Hash the string. The required format is from sqllogictest.c. */
-                String resultsString = String.join("\n", results) + "\n";
-                md.update(resultsString.getBytes());
-                String resultsHash = MogUtil.bytesToHex(md.digest());
+                /* Check the MD5_HASH. The required format is from sqllogictest.c. */
+                ResultHasher hasher = new ResultHasher();
+                results.feed(hasher);
+                String resultsHash = hasher.getHash();
 
                 if (checker[4].equalsIgnoreCase(resultsHash)) {
                     /* Same MD5 hash, pass. */
                     return true;
                 } else {
-                    System.err.println(this.sql);
+                    System.err.println(record.getSql());
                     System.err.printf("Result hash mismatch: expected %s got %s\n", checker[4], resultsHash);
                     return false;
                 }
             }
-            System.err.printf("Mismatch count, actual %d expected %d.\n", results.size(), queryResults.size());
+            System.err.printf("Mismatch count, actual %d expected %d.\n", results.getNumCells(),
+                    queryResults.size());
             return false;
         }
 
         /* If here, the result size matches. Compare results individually. */
-        for (int i = 0; i < results.size(); ++i) {
-            if (!results.get(i).equals(queryResults.get(i))) {
+        for (int i = 0; i < results.getNumCells(); ++i) {
+            if (!results.matches(i, queryResults.get(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Compare the results of a query with the outcome of the query on the reference database, as cached.
+     */
+    private static boolean checkCachedResults(TraceRecord record, ResultSet rs, ReferenceCache.Result refResult)
+            throws SQLException {
+        if (null != refResult.getValues()) {
+            ResultBuffer results = new ResultBuffer();
+            readResults(rs, record.getSortMode(), results);
+            return compareValues(results, refResult.getValues());
+        }
+        ResultHasher hasher = new ResultHasher();
+        hasher.addResults(rs, record.getSortMode());
+        if (hasher.getNumValues() != refResult.getNumValues()) {
+            System.err.printf("Mismatched sizes, actual %d reference %d.\n", hasher.getNumValues(),
+                    refResult.getNumValues());
+            return false;
+        }
+        if (!hasher.getHash().equals(refResult.getHash())) {
+            System.err.printf("Mismatched hashes, actual %s reference %s.\n", hasher.getHash(), refResult.getHash());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compare values with the values of the reference database.
+     */
+    private static boolean compareValues(ResultBuffer results, ResultBuffer refResults) {
+        if (refResults.getNumCells() != results.getNumCells()) {
+            System.err.printf("Mismatched sizes, actual %d reference %d.\n", results.getNumCells(),
+                    refResults.getNumCells());
+            return false;
+        }
+        for (int i = 0; i < refResults.getNumCells(); ++i) {
+            if (!ResultBuffer.sameCell(results, i, refResults, i)) {
+                System.err.printf("Mismatched data, actual %s reference %s.\n",
+                        results.getString(results.sortedCell(i)), refResults.getString(refResults.sortedCell(i)));
                 return false;
             }
         }
+        return true;
+    }
 
+    /**
+     * Compare values with the values of the reference database, as cached.
+     */
+    private static boolean compareValues(ResultBuffer results, List<String> refResults) {
+        if (refResults.size() != results.getNumCells()) {
+            System.err.printf("Mismatched sizes, actual %d reference %d.\n", results.getNumCells(),
+                    refResults.size());
+            return false;
+        }
+        for (int i = 0; i < refResults.size(); ++i) {
+            if (!results.matches(i, refResults.get(i))) {
+                System.err.printf("Mismatched data, actual %s reference %s.\n",
+                        results.getString(results.sortedCell(i)), refResults.get(i));
+                return false;
+            }
+        }
         return true;
     }
 
+    /**
+     * Compare two result sets row by row, reading both as they arrive. NULL values compare equal to empty strings,
+     * as in processResults(). The result sets must have the same number of columns.
+     *
+     * @param rs    The result set of the test database.
+     * @param refRs The result set of the reference database.
+     * @return True if both result sets have the same values in the same order.
+     * @throws SQLException If reading either result set fails.
+     */
+    private static boolean compareInLockstep(ResultSet rs, ResultSet refRs) throws SQLException {
+        int numCols = rs.getMetaData().getColumnCount();
+        int numRows = 0;
+        while (true) {
+            boolean hasRow = rs.next();
+            boolean refHasRow = refRs.next();
+            if (hasRow != refHasRow) {
+                int size = (numRows + (hasRow ? 1 + countRows(rs) : 0)) * numCols;
+                int refSize = (numRows + (refHasRow ? 1 + countRows(refRs) : 0)) * numCols;
+                System.err.printf("Mismatched sizes, actual %d reference %d.\n", size, refSize);
+                return false;
+            }
+            if (!hasRow) {
+                return true;
+            }
+            for (int i = 1; i <= numCols; ++i) {
+                String value = rs.getString(i);
+                String refValue = refRs.getString(i);
+                value = null == value ? "" : value;
+                refValue = null == refValue ? "" : refValue;
+                if (!refValue.equals(value)) {
+                    System.err.printf("Mismatched data, actual %s reference %s.\n", value, refValue);
+                    return false;
+                }
+            }
+            ++numRows;
+        }
+    }
+
+    /**
+     * @return The number of rows left in the result set, which is exhausted afterwards.
+     */
+    private static int countRows(ResultSet rs) throws SQLException {
+        int numRows = 0;
+        while (rs.next()) {
+            ++numRows;
+        }
+        return numRows;
+    }
+
     /**
      * Read a statement record.
      *
@@ -295,22 +952,23 @@ public class MogSqlite {
      */
     private void readRecordStatement(String line) throws IOException {
         if (line.startsWith(Constants.STATEMENT_OK)) {
-            this.mode = SqliteMode.RECORD_STATEMENT_OK;
+            this.kind = TraceRecord.Kind.STATEMENT_OK;
         } else if (line.startsWith(Constants.STATEMENT_ERROR)) {
-            this.mode = SqliteMode.RECORD_STATEMENT_ERROR;
+            this.kind = TraceRecord.Kind.STATEMENT_ERROR;
         } else {
             assert (false);
         }
 
         while (true) {
-            this.br.mark(RECORD_READAHEAD_LIMIT);
-            line = this.br.readLine();
+            mark();
+            line = readLine();
 
             if (null == line || line.startsWith(Constants.QUERY) || line.startsWith(Constants.STATEMENT_OK)
                     || line.startsWith(Constants.STATEMENT_ERROR) ||line.startsWith(Constants.HASHTAG)
-                    || line.startsWith(Constants.SKIPIF) || line.startsWith(Constants.ONLYIF)) {
+                    || line.startsWith(Constants.SKIPIF) || line.startsWith(Constants.ONLYIF)
+                    || line.startsWith(Constants.BENCH)) {
                 /* End of SQL query reached. */
-                this.br.reset();
+                reset();
                 this.sql = this.sb.toString();
                 this.sb.setLength(0);
                 break;
@@ -330,33 +988,19 @@ public class MogSqlite {
      */
     private void readRecordQuery(String line) throws IOException {
         assert (line.startsWith(Constants.QUERY));
-        this.mode = SqliteMode.RECORD_QUERY;
+        this.kind = TraceRecord.Kind.QUERY;
 
-        /* Parse the query string arguments. */
-        String[] args = line.split(" ");
-        this.typeString = args[1];
-        if (args.length >= 3) {
-            if (args[2].equals("nosort") || args[2].equals("rowsort") || args[2].equals("valuesort")) {
-                /* If the sortMode is specified, then set it. Last argument (if any) must be the label. */
-                this.sortMode = args[2];
-                if (args.length >= 4) {
-                    this.label = args[3];
-                }
-            } else {
-                /* Must be the label. */
-                this.label = args[2];
-            }
-        }
+        parseQueryArgs(line);
 
         /* Read the SQL query itself. */
         while (true) {
-            this.br.mark(RECORD_READAHEAD_LIMIT);
-            line = this.br.readLine();
+            mark();
+            line = readLine();
 
             if (isNextRecord(line) || line.startsWith(Constants.SEPARATION)) {
                 /* End of SQL query reached. If it was not the query record terminator, go back one line. */
                 if (null == line || !line.startsWith(Constants.SEPARATION)) {
-                    this.br.reset();
+                    reset();
                 }
                 this.sql = this.sb.toString();
                 this.sb.setLength(0);
@@ -372,12 +1016,12 @@ public class MogSqlite {
         /* Read the SQL query results. */
         queryResults.clear();
         while (true) {
-            this.br.mark(RECORD_READAHEAD_LIMIT);
-            line = this.br.readLine();
+            mark();
+            line = readLine();
 
             if (isNextRecord(line)) {
                 /* End of SQL results. */
-                this.br.reset();
+                reset();
                 break;
             } else {
                 if (!line.equals("")) {
@@ -387,6 +1031,112 @@ public class MogSqlite {
         }
     }
 
+    /**
+     * Parse the arguments of a query record.
+     *
+     * @param line The first line of the query record, of the form "query <type-string> <sort-mode> <label>".
+     */
+    private void parseQueryArgs(String line) {
+        String[] args = line.split(" ");
+        this.typeString = args[1];
+        if (args.length >= 3) {
+            if (args[2].equals("nosort") || args[2].equals("rowsort") || args[2].equals("valuesort")) {
+                /* If the sortMode is specified, then set it. Last argument (if any) must be the label. */
+                this.sortMode = args[2];
+                if (args.length >= 4) {
+                    this.label = args[3];
+                }
+            } else {
+                /* Must be the label. */
+                this.label = args[2];
+            }
+        }
+    }
+
+    /**
+     * Scan a statement record from the memory-mapped file.
+     *
+     * @param line The first line of the statement record, of the form "statement ok" or "statement error".
+     */
+    private void scanRecordStatement(String line) {
+        this.kind = line.startsWith(Constants.STATEMENT_OK) ? TraceRecord.Kind.STATEMENT_OK
+                : TraceRecord.Kind.STATEMENT_ERROR;
+
+        int sqlStart = scanner.getNextLineStart();
+        while (scanner.hasNextLine() && !scanner.peekStartsWithAny(RECORD_BOUNDARIES)) {
+            scanner.advance();
+        }
+        this.lazySql = scanner.trimmedLines(sqlStart, scanner.getNextLineStart());
+    }
+
+    /**
+     * Scan a query record from the memory-mapped file.
+     *
+     * @param line The first line of the query record, of the form "query <type-string> <sort-mode> <label>".
+     */
+    private void scanRecordQuery(String line) {
+        this.kind = TraceRecord.Kind.QUERY;
+        parseQueryArgs(line);
+
+        /* Find the end of the SQL query, which is either the "----" terminator or the start of the next record. */
+        int sqlStart = scanner.getNextLineStart();
+        int sqlEnd = sqlStart;
+        while (scanner.hasNextLine() && !scanner.peekStartsWithAny(RECORD_BOUNDARIES)) {
+            scanner.advance();
+            if (scanner.startsWith(SEPARATION_BYTES)) {
+                break;
+            }
+            sqlEnd = scanner.getNextLineStart();
+        }
+        this.lazySql = scanner.trimmedLines(sqlStart, sqlEnd);
+
+        /* Find the SQL query results, only decoding them right away if there is just one line, i.e., maybe a hash. */
+        queryResults.clear();
+        int resultsStart = scanner.getNextLineStart();
+        int numResults = 0;
+        while (scanner.hasNextLine() && !scanner.peekStartsWithAny(RECORD_BOUNDARIES)) {
+            scanner.advance();
+            if (!scanner.isEmptyLine() && 1 == ++numResults) {
+                queryResults.add(scanner.lineString());
+            }
+        }
+        if (numResults > 1) {
+            this.lazyResults = scanner.nonEmptyLines(resultsStart, scanner.getNextLineStart());
+        }
+    }
+
+    /**
+     * Read a line with the BufferedReader, keeping track of the line number.
+     *
+     * @return The line read, or null if the end of the file was reached.
+     * @throws IOException If reading the file fails.
+     */
+    private String readLine() throws IOException {
+        String line = this.br.readLine();
+        if (null != line) {
+            ++this.lineCounter;
+        }
+        return line;
+    }
+
+    private void mark() throws IOException {
+        this.br.mark(RECORD_READAHEAD_LIMIT);
+        this.markedLineCounter = this.lineCounter;
+    }
+
+    private void reset() throws IOException {
+        this.br.reset();
+        this.lineCounter = this.markedLineCounter;
+    }
+
+    private static byte[][] toBytes(String... prefixes) {
+        byte[][] bytes = new byte[prefixes.length][];
+        for (int i = 0; i < prefixes.length; ++i) {
+            bytes[i] = prefixes[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+
     private boolean isNextRecord(String line) {
         return null == line
                 || line.startsWith(Constants.QUERY)
@@ -394,7 +1144,8 @@ public class MogSqlite {
                 || line.startsWith(Constants.STATEMENT_ERROR)
                 || line.startsWith(Constants.HASHTAG)
                 || line.startsWith(Constants.SKIPIF)
-                || line.startsWith(Constants.ONLYIF);
+                || line.startsWith(Constants.ONLYIF)
+                || line.startsWith(Constants.BENCH);
     }
 
 }
@@ -0,0 +1,47 @@
+package moglib;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that MogSqlite.check() leaves the connection to the test database as it found it, against fake databases.
+ */
+public class MogSqliteCheckTest {
+    private static final String CREATE = "CREATE TABLE foo (a INT)";
+
+    @Test
+    public void testCachedQueryThenStatement() throws IOException, SQLException {
+        MogDb mogDb = new MogDb(FakeDriver.create("test"), "", "");
+        mogDb.setDbRef(FakeDriver.create("ref"), "", "");
+        try (ReferenceCache refCache = new ReferenceCache(null, mogDb.getDbRef())) {
+            mogDb.setRefCache(refCache);
+            Connection conn = mogDb.getDbTest().newConn();
+
+            /* The query is streamed, which turns autocommit off until it is done. */
+            assertTrue(MogSqlite.check(query("SELECT 1"), mogDb));
+            assertTrue(conn.getAutoCommit());
+            assertTrue(MogSqlite.check(statement(CREATE), mogDb));
+
+            /* Returning the connection to the pool would lose the statement, had it not been committed. */
+            mogDb.getDbTest().newConn();
+            assertEquals(List.of(CREATE), FakeDriver.getCommitted("test"));
+            assertEquals(List.of(CREATE), FakeDriver.getCommitted("ref"));
+        }
+    }
+
+    private static TraceRecord query(String sql) {
+        return new TraceRecord(1, TraceRecord.Kind.QUERY, "query I nosort", sql, "I", "nosort", "", List.of(),
+                List.of("1"));
+    }
+
+    private static TraceRecord statement(String sql) {
+        return new TraceRecord(1, TraceRecord.Kind.STATEMENT_OK, "statement ok", sql, List.of());
+    }
+}
@@ -0,0 +1,94 @@
+package moglib;
+
+import org.junit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the BufferedReader-based parser, the memory-mapped parser and compiled traces read the same records from
+ * the trace files in traces/.
+ */
+public class MogSqliteTest {
+    private static final File TRACES = new File("traces");
+
+    private File compiledFile;
+
+    @Before
+    public void setUp() throws IOException {
+        compiledFile = File.createTempFile("mogsqlite-test", Constants.COMPILED_TRACE_SUFFIX);
+    }
+
+    @After
+    public void tearDown() {
+        compiledFile.delete();
+    }
+
+    @Test
+    public void testParsersAgree() throws IOException {
+        File[] traceFiles = TRACES.listFiles((dir, name) -> name.endsWith(Constants.TRACE_SUFFIX));
+        Assume.assumeTrue("No trace files in " + TRACES.getAbsolutePath(), null != traceFiles && traceFiles.length > 0);
+        for (File traceFile : traceFiles) {
+            List<String> buffered = readAll(new MogSqlite(traceFile, false, false));
+            List<String> mapped = readAll(new MogSqlite(traceFile, true, false));
+            TraceCompiler.compile(traceFile, compiledFile);
+            CompiledTrace compiled = new CompiledTrace(compiledFile);
+            List<String> fromCompiled = new ArrayList<>();
+            for (int i = 0; i < compiled.getRecordCount(); ++i) {
+                fromCompiled.add(describe(compiled.getRecord(i)));
+            }
+
+            assertTrue(traceFile.getName(), buffered.size() > 0);
+            assertEquals(traceFile.getName(), buffered, mapped);
+            assertEquals(traceFile.getName(), buffered, fromCompiled);
+        }
+    }
+
+    @Test
+    public void testLongLines() throws IOException {
+        /* Longer than the read-ahead of the BufferedReader-based parser, which the default parser does not have. */
+        String sql = "SELECT '" + String.join("", Collections.nCopies(2000, "x")) + "'";
+        String comment = "# " + String.join("", Collections.nCopies(2000, "-"));
+        File traceFile = File.createTempFile("mogsqlite-test", Constants.TRACE_SUFFIX);
+        try {
+            Files.write(traceFile.toPath(), ("query T nosort\n" + sql + "\n----\nx\n\n" + comment
+                    + "\nstatement ok\nSELECT 2\n").getBytes());
+            MogSqlite mog = new MogSqlite(traceFile);
+            TraceRecord query = mog.nextRecord();
+            assertEquals(sql + "\n", query.getSql());
+            assertEquals(List.of("x"), query.getExpectedResults());
+            TraceRecord statement = mog.nextRecord();
+            assertEquals("SELECT 2\n", statement.getSql());
+            assertNull(mog.nextRecord());
+        } finally {
+            traceFile.delete();
+        }
+    }
+
+    private static List<String> readAll(MogSqlite mog) throws IOException {
+        List<String> records = new ArrayList<>();
+        TraceRecord record;
+        while (null != (record = mog.nextRecord())) {
+            records.add(describe(record));
+        }
+        return records;
+    }
+
+    /**
+     * @return Everything a parser reads into a record, as one string that assertEquals() shows on a mismatch.
+     */
+    private static String describe(TraceRecord record) {
+        return String.join(" | ", record.toString(), record.getKind().toString(), record.getSql(),
+                record.getTypeString(), record.getSortMode(), record.getLabel(),
+                record.getConditions().toString(), record.getExpectedResults().toString(),
+                record.isBenched() ? record.getBenchDirective() : "");
+    }
+}
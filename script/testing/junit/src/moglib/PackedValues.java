@@ -0,0 +1,298 @@
+package moglib;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * PackedValues stores values back to back as UTF-8 in a single growable byte arena.
+ * <p>
+ * Each value is addressed by an offset and a length into the arena, and NULL values are marked in a bitmap. No object
+ * is allocated per value, and clear() keeps the arrays for reuse. Values compare as unsigned bytes, which is the
+ * strcmp() order that sqllogictest uses for valuesort; sort() orders an index array by any comparison of values rather
+ * than moving values around. ResultBuffer lays rows out over it.
+ */
+public class PackedValues {
+    private static final int INITIAL_VALUES = 64;
+    private static final int INITIAL_ARENA = 1024;
+
+    /**
+     * Comparison of two values, or of two things made up of values, by index.
+     */
+    public interface IndexComparator {
+        int compare(int i, int j);
+    }
+
+    private byte[] arena = new byte[INITIAL_ARENA];
+    private int arenaSize;
+    private int[] offsets = new int[INITIAL_VALUES];
+    private int[] lengths = new int[INITIAL_VALUES];
+    private long[] nulls = new long[INITIAL_VALUES / Long.SIZE];
+    private int numValues;
+
+    /**
+     * Forget all values, keeping the arrays for reuse.
+     */
+    public void clear() {
+        Arrays.fill(nulls, 0, (numValues + Long.SIZE - 1) / Long.SIZE, 0);
+        numValues = 0;
+        arenaSize = 0;
+    }
+
+    /**
+     * @return The number of values.
+     */
+    public int size() {
+        return numValues;
+    }
+
+    /**
+     * @return The approximate number of bytes taken by the values, i.e., their bytes plus their offset and length.
+     */
+    public long getMemoryUsage() {
+        return arenaSize + 2L * Integer.BYTES * numValues;
+    }
+
+    /**
+     * Append a value.
+     *
+     * @param value The value, or null for NULL.
+     */
+    public void add(String value) {
+        int index = newValue();
+        if (null == value) {
+            nulls[index >>> 6] |= 1L << index;
+            return;
+        }
+        int length = value.length();
+        ensureArena(length);
+        int pos = arenaSize;
+        for (int i = 0; i < length; ++i) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                /* Not ASCII, let the JDK do the encoding. */
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                ensureArena(bytes.length);
+                System.arraycopy(bytes, 0, arena, arenaSize, bytes.length);
+                pos = arenaSize + bytes.length;
+                break;
+            }
+            arena[pos++] = (byte) c;
+        }
+        lengths[index] = pos - arenaSize;
+        arenaSize = pos;
+    }
+
+    /**
+     * Append a value read as UTF-8 bytes.
+     *
+     * @param in     The input to read from.
+     * @param length The number of bytes of the value, or -1 for NULL.
+     * @throws IOException If reading fails.
+     */
+    public void read(DataInput in, int length) throws IOException {
+        int index = newValue();
+        if (length < 0) {
+            nulls[index >>> 6] |= 1L << index;
+            return;
+        }
+        ensureArena(length);
+        in.readFully(arena, arenaSize, length);
+        lengths[index] = length;
+        arenaSize += length;
+    }
+
+    /**
+     * @param i The index of the value.
+     * @return True if the value is NULL.
+     */
+    public boolean isNull(int i) {
+        return 0 != (nulls[i >>> 6] & (1L << i));
+    }
+
+    /**
+     * Decode a value.
+     *
+     * @param i The index of the value.
+     * @return The value, or null for NULL.
+     */
+    public String get(int i) {
+        if (isNull(i)) {
+            return null;
+        }
+        return new String(arena, offsets[i], lengths[i], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The arena holding the bytes of all values; only valid until the next value is added.
+     */
+    byte[] getArena() {
+        return arena;
+    }
+
+    /**
+     * @param i The index of the value.
+     * @return The offset of the value's bytes in the arena.
+     */
+    int getOffset(int i) {
+        return offsets[i];
+    }
+
+    /**
+     * @param i The index of the value.
+     * @return The number of bytes of the value; 0 for NULL.
+     */
+    int getLength(int i) {
+        return lengths[i];
+    }
+
+    /**
+     * Compare two values in unsigned UTF-8 byte order. NULL compares as the empty string.
+     *
+     * @param i The index of the first value.
+     * @param j The index of the second value.
+     * @return A negative number, zero, or a positive number if the first value sorts before, with, or after the second.
+     */
+    public int compare(int i, int j) {
+        return Arrays.compareUnsigned(arena, offsets[i], offsets[i] + lengths[i],
+                arena, offsets[j], offsets[j] + lengths[j]);
+    }
+
+    /**
+     * Compare a value with a string without decoding it. NULL equals the empty string.
+     *
+     * @param i     The index of the value.
+     * @param value The string.
+     * @return True if the value is the UTF-8 encoding of the string, as by String.getBytes().
+     */
+    public boolean matches(int i, String value) {
+        int pos = offsets[i];
+        int end = pos + lengths[i];
+        for (int k = 0; k < value.length(); ++k) {
+            int cp = value.charAt(k);
+            if (cp < 0x80) {
+                if (pos == end || arena[pos++] != cp) {
+                    return false;
+                }
+                continue;
+            }
+            if (Character.isHighSurrogate((char) cp) && k + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(k + 1))) {
+                cp = Character.toCodePoint((char) cp, value.charAt(++k));
+            } else if (Character.isSurrogate((char) cp)) {
+                /* String.getBytes() encodes unpaired surrogates as '?'. */
+                if (pos == end || arena[pos++] != '?') {
+                    return false;
+                }
+                continue;
+            }
+            int numBytes = cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+            if (end - pos < numBytes) {
+                return false;
+            }
+            int shift = 6 * (numBytes - 1);
+            if ((arena[pos++] & 0xFF) != ((0xF00 >> numBytes) & 0xFF | (cp >> shift))) {
+                return false;
+            }
+            for (shift -= 6; shift >= 0; shift -= 6) {
+                if ((arena[pos++] & 0xFF) != (0x80 | ((cp >> shift) & 0x3F))) {
+                    return false;
+                }
+            }
+        }
+        return pos == end;
+    }
+
+    /**
+     * Compare values of two PackedValues for equality. NULL equals the empty string.
+     *
+     * @param a The first PackedValues.
+     * @param i The index of the value in the first.
+     * @param b The second PackedValues.
+     * @param j The index of the value in the second.
+     * @return True if both values have the same bytes.
+     */
+    public static boolean sameValue(PackedValues a, int i, PackedValues b, int j) {
+        return Arrays.equals(a.arena, a.offsets[i], a.offsets[i] + a.lengths[i],
+                b.arena, b.offsets[j], b.offsets[j] + b.lengths[j]);
+    }
+
+    /**
+     * Feed a value into a hasher. NULL is hashed as the empty string.
+     *
+     * @param i      The index of the value.
+     * @param hasher The hasher.
+     */
+    public void feed(int i, ResultHasher hasher) {
+        hasher.addUtf8(arena, offsets[i], lengths[i]);
+    }
+
+    /**
+     * Stably sort the indexes [0, n) by a comparison.
+     *
+     * @param n          The number of indexes.
+     * @param scratch    Scratch space of at least n ints.
+     * @param comparator The comparison.
+     * @return The sorted indexes.
+     */
+    public static int[] sort(int n, int[] scratch, IndexComparator comparator) {
+        int[] indexes = new int[n];
+        for (int i = 0; i < n; ++i) {
+            indexes[i] = i;
+        }
+        mergeSort(indexes, scratch, 0, n, comparator);
+        return indexes;
+    }
+
+    /**
+     * Add an empty value at the end of the arena and return its index.
+     */
+    private int newValue() {
+        if (numValues == offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * numValues);
+            lengths = Arrays.copyOf(lengths, 2 * numValues);
+            nulls = Arrays.copyOf(nulls, 2 * nulls.length);
+        }
+        int index = numValues++;
+        offsets[index] = arenaSize;
+        lengths[index] = 0;
+        return index;
+    }
+
+    private void ensureArena(int extra) {
+        if (arenaSize + extra <= arena.length) {
+            return;
+        }
+        long capacity = Math.max(2L * arena.length, (long) arenaSize + extra);
+        if (capacity > Integer.MAX_VALUE - 8) {
+            throw new OutOfMemoryError("Values exceed 2GB");
+        }
+        arena = Arrays.copyOf(arena, (int) capacity);
+    }
+
+    /**
+     * Top-down merge sort of indexes[from, to), using tmp as scratch space.
+     */
+    private static void mergeSort(int[] indexes, int[] tmp, int from, int to, IndexComparator comparator) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(indexes, tmp, from, mid, comparator);
+        mergeSort(indexes, tmp, mid, to, comparator);
+        if (comparator.compare(indexes[mid - 1], indexes[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(indexes, from, tmp, from, to - from);
+        int left = from;
+        int right = mid;
+        for (int k = from; k < to; ++k) {
+            if (right >= to || (left < mid && comparator.compare(tmp[left], tmp[right]) <= 0)) {
+                indexes[k] = tmp[left++];
+            } else {
+                indexes[k] = tmp[right++];
+            }
+        }
+    }
+}
@@ -0,0 +1,597 @@
+package moglib;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * PipelinedClient is a minimal non-blocking Postgres wire protocol client that pipelines statements.
+ * <p>
+ * pgjdbc waits for ReadyForQuery after every statement, so the server never has more than one message outstanding.
+ * This client instead sends Parse/Bind/Describe/Execute for many statements back-to-back and reads the responses as
+ * they arrive, matching them to statements in order. Writing and reading are interleaved through a Selector, so a
+ * pipeline may be larger than the socket buffers.
+ * <p>
+ * execute() ends a pipeline with a single Sync. As in Postgres, the statements then run in one implicit transaction
+ * (unless the statements manage transactions themselves) and once a statement fails, the server skips everything up to
+ * the Sync: the failed statement's result is ERROR and the results of the statements after it are SKIPPED.
+ * executeEach() sends a Sync after every statement instead, which still keeps the pipeline full but runs each
+ * statement in a transaction of its own, so that a failure only affects that statement.
+ * <p>
+ * Only trust, cleartext and MD5 authentication are supported. Values are returned in text format. A PipelinedClient is
+ * not thread-safe.
+ * <p>
+ * Usage: PipelinedClient TRACE_FILE [HOST PORT USER DATABASE [DEPTH]]
+ * runs the records of a trace file in pipelines of DEPTH records, checks that each one succeeds or fails as expected,
+ * and reports the throughput. Query results are not checked.
+ */
+public class PipelinedClient implements AutoCloseable {
+    /**
+     * Outcome of a pipelined statement.
+     */
+    public enum Status {OK, ERROR, SKIPPED}
+
+    /**
+     * The result of a pipelined statement.
+     */
+    public static final class Result {
+        private Status status = Status.SKIPPED;
+        private int numColumns = -1;
+        private final List<String[]> rows = new ArrayList<>();
+        private String commandTag;
+        private String sqlState;
+        private String message;
+
+        /**
+         * @return The outcome of the statement.
+         */
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return The number of result columns, or -1 if the statement returns no rows.
+         */
+        public int getNumColumns() {
+            return numColumns;
+        }
+
+        /**
+         * @return The rows returned, with NULL values as null.
+         */
+        public List<String[]> getRows() {
+            return Collections.unmodifiableList(rows);
+        }
+
+        /**
+         * @return The command tag, e.g., "INSERT 0 1", or null if the statement did not succeed.
+         */
+        public String getCommandTag() {
+            return commandTag;
+        }
+
+        /**
+         * @return The SQLSTATE of the error, or null if the statement did not fail.
+         */
+        public String getSqlState() {
+            return sqlState;
+        }
+
+        /**
+         * @return The error message, or null if the statement did not fail.
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            switch (status) {
+                case OK:
+                    return null == commandTag ? "OK" : commandTag;
+                case ERROR:
+                    return "ERROR " + sqlState + ": " + message;
+                default:
+                    return "SKIPPED";
+            }
+        }
+    }
+
+    /**
+     * Version 3.0 of the protocol.
+     */
+    private static final int PROTOCOL_VERSION = 196608;
+    /**
+     * Encode more statements once fewer than this many bytes are waiting to be sent.
+     */
+    private static final int LOW_WATER_MARK = 1 << 16;
+    private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+    /**
+     * How long to wait for the server to accept input or send output before giving up.
+     */
+    private static final long IO_TIMEOUT_MS = 60000;
+
+    private final SocketChannel channel;
+    private final Selector selector;
+    /**
+     * Bytes waiting to be sent, in write mode.
+     */
+    private ByteBuffer out = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    /**
+     * Bytes received but not yet handled, in write mode.
+     */
+    private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    /* State of the pipeline being run. */
+    private List<Result> results;
+    private int numCompleted;
+    private int numReady;
+
+    /**
+     * Connect and authenticate.
+     *
+     * @param host     The server host.
+     * @param port     The server port.
+     * @param user     The user name.
+     * @param password The password, or null if the server does not ask for one.
+     * @param database The database.
+     * @throws IOException  If the server cannot be reached.
+     * @throws SQLException If the server rejects the connection.
+     */
+    public PipelinedClient(String host, int port, String user, String password, String database)
+            throws IOException, SQLException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        try {
+            startup(user, password, database);
+        } catch (IOException | SQLException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Run statements as a single pipeline that ends with one Sync.
+     *
+     * @param sqls The statements.
+     * @return The result of each statement, in order.
+     * @throws IOException If the connection fails.
+     */
+    public List<Result> execute(List<String> sqls) throws IOException {
+        return run(sqls, false);
+    }
+
+    /**
+     * Run statements as a single pipeline with a Sync after each statement.
+     *
+     * @param sqls The statements.
+     * @return The result of each statement, in order.
+     * @throws IOException If the connection fails.
+     */
+    public List<Result> executeEach(List<String> sqls) throws IOException {
+        return run(sqls, true);
+    }
+
+    /**
+     * Send Terminate and close the connection.
+     */
+    @Override
+    public void close() {
+        try {
+            if (channel.isConnected()) {
+                out.clear();
+                out.put((byte) 'X').putInt(4);
+                flush();
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Pipelining
+    // ------------------------------------------------------------------------
+
+    private List<Result> run(List<String> sqls, boolean syncEach) throws IOException {
+        if (sqls.isEmpty()) {
+            return new ArrayList<>();
+        }
+        results = new ArrayList<>(sqls.size());
+        for (int i = 0; i < sqls.size(); ++i) {
+            results.add(new Result());
+        }
+        numCompleted = 0;
+        numReady = 0;
+        final int numSyncs = syncEach ? sqls.size() : 1;
+        int numEncoded = 0;
+
+        while (numReady < numSyncs) {
+            /* Encode lazily so that large pipelines do not have to be buffered in full. */
+            while (numEncoded < sqls.size() && out.position() < LOW_WATER_MARK) {
+                encodeStatement(sqls.get(numEncoded++));
+                if (syncEach || numEncoded == sqls.size()) {
+                    sync();
+                }
+            }
+            pump();
+            handleMessages(this::handlePipelineMessage);
+        }
+        List<Result> done = results;
+        results = null;
+        return done;
+    }
+
+    private void handlePipelineMessage(byte type, ByteBuffer body) {
+        switch (type) {
+            case 'T': // RowDescription
+                current().numColumns = body.getShort() & 0xFFFF;
+                break;
+            case 'D': { // DataRow
+                int numValues = body.getShort() & 0xFFFF;
+                String[] row = new String[numValues];
+                for (int i = 0; i < numValues; ++i) {
+                    int length = body.getInt();
+                    if (length >= 0) {
+                        row[i] = new String(body.array(), body.arrayOffset() + body.position(), length,
+                                StandardCharsets.UTF_8);
+                        body.position(body.position() + length);
+                    }
+                }
+                current().rows.add(row);
+                break;
+            }
+            case 'C': // CommandComplete
+                current().commandTag = readString(body);
+                complete(Status.OK);
+                break;
+            case 'I': // EmptyQueryResponse
+                complete(Status.OK);
+                break;
+            case 'E': { // ErrorResponse
+                Result result = current();
+                readError(body, result);
+                complete(Status.ERROR);
+                break;
+            }
+            case 'Z': // ReadyForQuery
+                ++numReady;
+                break;
+            default:
+                /* ParseComplete, BindComplete, NoData, NoticeResponse, ParameterStatus, ... */
+                break;
+        }
+    }
+
+    private Result current() {
+        if (numCompleted >= results.size()) {
+            throw new IllegalStateException("More responses than statements in the pipeline");
+        }
+        return results.get(numCompleted);
+    }
+
+    private void complete(Status status) {
+        current().status = status;
+        ++numCompleted;
+    }
+
+    private void encodeStatement(String sql) {
+        byte[] query = sql.getBytes(StandardCharsets.UTF_8);
+
+        // Parse: unnamed statement, no parameter types
+        int start = beginMessage('P');
+        out.put((byte) 0);
+        ensureCapacity(query.length + 3);
+        out.put(query).put((byte) 0);
+        out.putShort((short) 0);
+        endMessage(start);
+
+        // Bind: unnamed portal and statement, no parameters, text results
+        start = beginMessage('B');
+        out.put((byte) 0).put((byte) 0);
+        out.putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        endMessage(start);
+
+        // Describe the portal, so that queries returning no rows still report their columns
+        start = beginMessage('D');
+        out.put((byte) 'P').put((byte) 0);
+        endMessage(start);
+
+        // Execute: unnamed portal, all rows
+        start = beginMessage('E');
+        out.put((byte) 0).putInt(0);
+        endMessage(start);
+    }
+
+    private void sync() {
+        endMessage(beginMessage('S'));
+    }
+
+    // ------------------------------------------------------------------------
+    // Startup
+    // ------------------------------------------------------------------------
+
+    private void startup(String user, String password, String database) throws IOException, SQLException {
+        int start = out.position();
+        out.putInt(0).putInt(PROTOCOL_VERSION);
+        putString("user");
+        putString(user);
+        putString("database");
+        putString(database);
+        putString("client_encoding");
+        putString("UTF8");
+        out.put((byte) 0);
+        out.putInt(start, out.position() - start);
+
+        final boolean[] ready = new boolean[1];
+        final SQLException[] failure = new SQLException[1];
+        while (!ready[0] && null == failure[0]) {
+            pump();
+            handleMessages((type, body) -> {
+                switch (type) {
+                    case 'R':
+                        failure[0] = authenticate(body, user, password);
+                        break;
+                    case 'E': {
+                        Result result = new Result();
+                        readError(body, result);
+                        failure[0] = new SQLException(result.message, result.sqlState);
+                        break;
+                    }
+                    case 'Z':
+                        ready[0] = true;
+                        break;
+                    default:
+                        /* ParameterStatus, BackendKeyData, NoticeResponse */
+                        break;
+                }
+            });
+        }
+        if (null != failure[0]) {
+            throw failure[0];
+        }
+    }
+
+    private SQLException authenticate(ByteBuffer body, String user, String password) {
+        int method = body.getInt();
+        switch (method) {
+            case 0: // AuthenticationOk
+                return null;
+            case 3: // AuthenticationCleartextPassword
+                if (null == password) {
+                    return new SQLException("The server requested a password but none was given");
+                }
+                sendPassword(password);
+                return null;
+            case 5: { // AuthenticationMD5Password
+                if (null == password) {
+                    return new SQLException("The server requested a password but none was given");
+                }
+                byte[] salt = new byte[4];
+                body.get(salt);
+                String inner = md5Hex(password.getBytes(StandardCharsets.UTF_8), user.getBytes(StandardCharsets.UTF_8));
+                sendPassword("md5" + md5Hex(inner.getBytes(StandardCharsets.UTF_8), salt));
+                return null;
+            }
+            default:
+                return new SQLException("Unsupported authentication method " + method);
+        }
+    }
+
+    private void sendPassword(String password) {
+        int start = beginMessage('p');
+        putString(password);
+        endMessage(start);
+    }
+
+    private static String md5Hex(byte[] first, byte[] second) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(first);
+            md.update(second);
+            return MogUtil.bytesToHex(md.digest()).toLowerCase();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // I/O
+    // ------------------------------------------------------------------------
+
+    /**
+     * Handler of a single backend message. The body excludes the type and length.
+     */
+    private interface MessageHandler {
+        void handle(byte type, ByteBuffer body);
+    }
+
+    /**
+     * Wait until the channel can make progress, then send what can be sent and receive what has arrived.
+     */
+    private void pump() throws IOException {
+        SelectionKey key = channel.keyFor(selector);
+        key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        if (0 == selector.select(IO_TIMEOUT_MS)) {
+            throw new IOException("Timed out waiting for the server");
+        }
+        selector.selectedKeys().clear();
+        if (key.isWritable()) {
+            flushOnce();
+        }
+        if (key.isReadable()) {
+            if (!in.hasRemaining()) {
+                in = grow(in, in.capacity());
+            }
+            if (channel.read(in) < 0) {
+                throw new IOException("Connection closed by the server");
+            }
+        }
+    }
+
+    /**
+     * Handle all complete messages received so far.
+     */
+    private void handleMessages(MessageHandler handler) {
+        in.flip();
+        while (in.remaining() >= 5) {
+            int length = in.getInt(in.position() + 1);
+            if (in.remaining() < 1 + length) {
+                if (in.capacity() < 1 + length) {
+                    in.compact();
+                    in = grow(in, 1 + length);
+                    in.flip();
+                }
+                break;
+            }
+            byte type = in.get();
+            in.getInt();
+            ByteBuffer body = in.slice();
+            body.limit(length - 4);
+            in.position(in.position() + length - 4);
+            handler.handle(type, body);
+        }
+        in.compact();
+    }
+
+    private void flushOnce() throws IOException {
+        out.flip();
+        channel.write(out);
+        out.compact();
+    }
+
+    /**
+     * Send everything that is pending, blocking until it is sent.
+     */
+    private void flush() throws IOException {
+        while (out.position() > 0) {
+            SelectionKey key = channel.keyFor(selector);
+            key.interestOps(SelectionKey.OP_WRITE);
+            if (0 == selector.select(IO_TIMEOUT_MS)) {
+                throw new IOException("Timed out waiting for the server");
+            }
+            selector.selectedKeys().clear();
+            flushOnce();
+        }
+    }
+
+    private int beginMessage(char type) {
+        ensureCapacity(5);
+        out.put((byte) type);
+        int start = out.position();
+        out.putInt(0);
+        return start;
+    }
+
+    private void endMessage(int start) {
+        out.putInt(start, out.position() - start);
+    }
+
+    private void putString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(bytes.length + 1);
+        out.put(bytes).put((byte) 0);
+    }
+
+    private void ensureCapacity(int needed) {
+        /* Leave room for the fixed-size fields that follow, too. */
+        if (out.remaining() < needed + 16) {
+            out = grow(out, out.position() + needed + 16);
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minCapacity));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    private static String readString(ByteBuffer body) {
+        int start = body.position();
+        int end = start;
+        while (end < body.limit() && 0 != body.get(end)) {
+            ++end;
+        }
+        body.position(Math.min(end + 1, body.limit()));
+        return new String(body.array(), body.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private static void readError(ByteBuffer body, Result result) {
+        while (body.hasRemaining()) {
+            byte field = body.get();
+            if (0 == field) {
+                break;
+            }
+            String value = readString(body);
+            if ('C' == field) {
+                result.sqlState = value;
+            } else if ('M' == field) {
+                result.message = value;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Trace replay
+    // ------------------------------------------------------------------------
+
+    public static void main(String[] args) throws IOException, SQLException {
+        if (args.length < 1) {
+            System.err.println("Usage: PipelinedClient TRACE_FILE [HOST PORT USER DATABASE [DEPTH]]");
+            System.exit(1);
+        }
+        File file = new File(args[0]);
+        String host = args.length > 1 ? args[1] : "localhost";
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 15721;
+        String user = args.length > 3 ? args[3] : "noisepage";
+        String database = args.length > 4 ? args[4] : "";
+        int depth = args.length > 5 ? Integer.parseInt(args[5]) : 100;
+
+        List<TraceRecord> records;
+        try (Stream<TraceRecord> stream = new MogSqlite(file, true).stream()) {
+            records = stream.collect(Collectors.toList());
+        }
+
+        int numMismatches = 0;
+        long start = System.nanoTime();
+        try (PipelinedClient client = new PipelinedClient(host, port, user, null, database)) {
+            for (int i = 0; i < records.size(); i += depth) {
+                List<TraceRecord> batch = records.subList(i, Math.min(i + depth, records.size()));
+                List<Result> results = client.executeEach(
+                        batch.stream().map(record -> record.getSql().trim()).collect(Collectors.toList()));
+                for (int j = 0; j < batch.size(); ++j) {
+                    boolean expectError = batch.get(j).getKind() == TraceRecord.Kind.STATEMENT_ERROR;
+                    if (expectError != (results.get(j).getStatus() == Status.ERROR)) {
+                        ++numMismatches;
+                        System.out.printf("Line %d: %s\n", batch.get(j).getLineNumber(), results.get(j));
+                    }
+                }
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Ran %d records in %.3f s (%.0f records/s) with depth %d, %d unexpected outcomes\n",
+                records.size(), seconds, records.size() / seconds, depth, numMismatches);
+    }
+}
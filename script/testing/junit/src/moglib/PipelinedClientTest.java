@@ -0,0 +1,370 @@
+package moglib;
+
+import org.junit.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks how PipelinedClient matches responses to pipelined statements, against a fake server that speaks just enough
+ * of the Postgres wire protocol: "SELECT v1, v2, ..." returns a single row of the given values (NULL for "NULL"), SQL
+ * starting with "FAIL" fails, and any other SQL succeeds with its first word as the command tag.
+ */
+public class PipelinedClientTest {
+    private static final String USER = "noisepage";
+    private static final String PASSWORD = "secret";
+
+    private FakeServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void testExecute() throws IOException, SQLException {
+        try (PipelinedClient client = connect(null)) {
+            List<PipelinedClient.Result> results = client.execute(List.of("SELECT 1, x", "CREATE TABLE foo (a INT)",
+                    "SELECT NULL"));
+            assertEquals(3, results.size());
+
+            assertEquals(PipelinedClient.Status.OK, results.get(0).getStatus());
+            assertEquals(2, results.get(0).getNumColumns());
+            assertEquals(1, results.get(0).getRows().size());
+            assertArrayEquals(new String[]{"1", "x"}, results.get(0).getRows().get(0));
+            assertEquals("SELECT 1", results.get(0).getCommandTag());
+
+            assertEquals(PipelinedClient.Status.OK, results.get(1).getStatus());
+            assertEquals(-1, results.get(1).getNumColumns());
+            assertEquals("CREATE", results.get(1).getCommandTag());
+
+            assertArrayEquals(new String[]{null}, results.get(2).getRows().get(0));
+        }
+    }
+
+    @Test
+    public void testFailureSkipsToSync() throws IOException, SQLException {
+        List<String> sqls = List.of("INSERT INTO foo VALUES (1)", "FAIL here", "INSERT INTO foo VALUES (2)");
+        try (PipelinedClient client = connect(null)) {
+            List<PipelinedClient.Result> results = client.execute(sqls);
+            assertEquals(List.of("INSERT", "ERROR 42601: Failed: FAIL here", "SKIPPED"), describe(results));
+            assertNull(results.get(1).getCommandTag());
+
+            /* With a Sync after every statement, a failure only affects its own statement. */
+            assertEquals(List.of("INSERT", "ERROR 42601: Failed: FAIL here", "INSERT"),
+                    describe(client.executeEach(sqls)));
+
+            /* The connection is still usable. */
+            assertEquals(List.of("SELECT 1"), describe(client.execute(List.of("SELECT 1"))));
+            assertEquals(List.of(), client.execute(List.of()));
+        }
+    }
+
+    @Test
+    public void testLargePipeline() throws IOException, SQLException {
+        /* Larger than the socket buffers in both directions, so writing and reading have to be interleaved. */
+        String value = String.join("", Collections.nCopies(1000, "v"));
+        List<String> sqls = Collections.nCopies(5000, "SELECT " + value);
+        try (PipelinedClient client = connect(null)) {
+            for (List<PipelinedClient.Result> results : List.of(client.execute(sqls), client.executeEach(sqls))) {
+                assertEquals(sqls.size(), results.size());
+                for (PipelinedClient.Result result : results) {
+                    assertEquals(PipelinedClient.Status.OK, result.getStatus());
+                    assertArrayEquals(new String[]{value}, result.getRows().get(0));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMd5Authentication() throws IOException, SQLException {
+        server.requirePassword();
+        try (PipelinedClient client = connect(PASSWORD)) {
+            assertEquals(List.of("SELECT 1"), describe(client.execute(List.of("SELECT 1"))));
+        }
+        try {
+            connect("wrong").close();
+            fail("Connected with the wrong password");
+        } catch (SQLException e) {
+            assertEquals("28P01", e.getSQLState());
+        }
+        try {
+            connect(null).close();
+            fail("Connected without a password");
+        } catch (SQLException e) {
+            assertEquals("The server requested a password but none was given", e.getMessage());
+        }
+    }
+
+    private PipelinedClient connect(String password) throws IOException, SQLException {
+        return new PipelinedClient(InetAddress.getLoopbackAddress().getHostAddress(), server.getPort(), USER, password,
+                "test");
+    }
+
+    private static List<String> describe(List<PipelinedClient.Result> results) {
+        return results.stream().map(PipelinedClient.Result::toString).collect(Collectors.toList());
+    }
+
+    private static String md5Hex(byte[] first, byte[] second) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(first);
+            md.update(second);
+            return MogUtil.bytesToHex(md.digest()).toLowerCase();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Serves one connection at a time on a thread of its own.
+     */
+    private static class FakeServer implements AutoCloseable {
+        private static final byte[] SALT = {1, 2, 3, 4};
+
+        private final ServerSocket serverSocket;
+        private final Thread thread;
+        private volatile boolean passwordRequired = false;
+
+        FakeServer() throws IOException {
+            serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            thread = new Thread(this::serve, "fake-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        void requirePassword() {
+            passwordRequired = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+
+        private void serve() {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    if (startup(in, out)) {
+                        session(in, out);
+                    }
+                } catch (IOException e) {
+                    // The client went away or the server was closed
+                }
+            }
+        }
+
+        private boolean startup(DataInputStream in, DataOutputStream out) throws IOException {
+            byte[] startup = new byte[in.readInt() - 4];
+            in.readFully(startup);
+            if (passwordRequired) {
+                send(out, 'R', body -> body.writeInt(5).write(SALT));
+                out.flush();
+                if ('p' != in.readByte()) {
+                    return false;
+                }
+                byte[] password = new byte[in.readInt() - 4];
+                in.readFully(password);
+                String inner = md5Hex(PASSWORD.getBytes(StandardCharsets.UTF_8), USER.getBytes(StandardCharsets.UTF_8));
+                String expected = "md5" + md5Hex(inner.getBytes(StandardCharsets.UTF_8), SALT);
+                if (!expected.equals(new String(password, 0, password.length - 1, StandardCharsets.UTF_8))) {
+                    sendError(out, "28P01", "password authentication failed");
+                    out.flush();
+                    return false;
+                }
+            }
+            send(out, 'R', body -> body.writeInt(0));
+            send(out, 'S', body -> body.writeString("server_version").writeString("9.6"));
+            sendReady(out);
+            out.flush();
+            return true;
+        }
+
+        private void session(DataInputStream in, DataOutputStream out) throws IOException {
+            String sql = null;
+            boolean failed = false;
+            while (true) {
+                byte type = in.readByte();
+                byte[] message = new byte[in.readInt() - 4];
+                in.readFully(message);
+                switch (type) {
+                    case 'P':
+                        /* The statement name is empty, so the SQL starts right after it. */
+                        sql = new String(message, 1, indexOf(message, 1) - 1, StandardCharsets.UTF_8);
+                        if (!failed) {
+                            send(out, '1', body -> { });
+                        }
+                        break;
+                    case 'B':
+                        if (!failed) {
+                            send(out, '2', body -> { });
+                        }
+                        break;
+                    case 'D':
+                        if (!failed) {
+                            describe(out, sql);
+                        }
+                        break;
+                    case 'E':
+                        if (!failed) {
+                            failed = execute(out, sql);
+                        }
+                        break;
+                    case 'S':
+                        failed = false;
+                        sendReady(out);
+                        out.flush();
+                        break;
+                    case 'X':
+                        return;
+                    default:
+                        throw new IOException("Unexpected message " + (char) type);
+                }
+            }
+        }
+
+        private static void describe(DataOutputStream out, String sql) throws IOException {
+            if (!sql.startsWith("SELECT")) {
+                send(out, 'n', body -> { });
+                return;
+            }
+            List<String> values = values(sql);
+            send(out, 'T', body -> {
+                body.writeShort(values.size());
+                for (int i = 0; i < values.size(); ++i) {
+                    body.writeString("c" + i).writeInt(0).writeShort(0).writeInt(25).writeShort(-1).writeInt(-1)
+                            .writeShort(0);
+                }
+            });
+        }
+
+        /**
+         * @return True if the statement failed.
+         */
+        private static boolean execute(DataOutputStream out, String sql) throws IOException {
+            if (sql.startsWith("FAIL")) {
+                sendError(out, "42601", "Failed: " + sql);
+                return true;
+            }
+            if (sql.startsWith("SELECT")) {
+                List<String> values = values(sql);
+                send(out, 'D', body -> {
+                    body.writeShort(values.size());
+                    for (String value : values) {
+                        if (value.equals("NULL")) {
+                            body.writeInt(-1);
+                        } else {
+                            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                            body.writeInt(bytes.length).write(bytes);
+                        }
+                    }
+                });
+                send(out, 'C', body -> body.writeString("SELECT 1"));
+            } else {
+                send(out, 'C', body -> body.writeString(sql.split(" ")[0]));
+            }
+            return false;
+        }
+
+        private static List<String> values(String sql) {
+            return Arrays.asList(sql.substring("SELECT".length()).trim().split("\\s*,\\s*"));
+        }
+
+        private static void sendError(DataOutputStream out, String sqlState, String message) throws IOException {
+            send(out, 'E', body -> body.writeByte('S').writeString("ERROR").writeByte('C').writeString(sqlState)
+                    .writeByte('M').writeString(message).writeByte(0));
+        }
+
+        private static void sendReady(DataOutputStream out) throws IOException {
+            send(out, 'Z', body -> body.writeByte('I'));
+        }
+
+        private static int indexOf(byte[] bytes, int from) {
+            int i = from;
+            while (0 != bytes[i]) {
+                ++i;
+            }
+            return i;
+        }
+
+        /**
+         * Writes the body of a message.
+         */
+        private interface BodyWriter {
+            void write(MessageBody body) throws IOException;
+        }
+
+        private static void send(DataOutputStream out, char type, BodyWriter writer) throws IOException {
+            MessageBody body = new MessageBody();
+            writer.write(body);
+            out.writeByte(type);
+            out.writeInt(4 + body.bytes.size());
+            body.bytes.writeTo(out);
+        }
+    }
+
+    /**
+     * The body of a backend message, built up with chained writes.
+     */
+    private static class MessageBody {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream data = new DataOutputStream(bytes);
+
+        MessageBody writeByte(int value) throws IOException {
+            data.writeByte(value);
+            return this;
+        }
+
+        MessageBody writeShort(int value) throws IOException {
+            data.writeShort(value);
+            return this;
+        }
+
+        MessageBody writeInt(int value) throws IOException {
+            data.writeInt(value);
+            return this;
+        }
+
+        MessageBody write(byte[] value) throws IOException {
+            data.write(value);
+            return this;
+        }
+
+        MessageBody writeString(String value) throws IOException {
+            data.write(value.getBytes(StandardCharsets.UTF_8));
+            data.writeByte(0);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,562 @@
+package moglib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * QueryGenerator generates random SELECT queries over a schema, for differential fuzzing (see MogFuzz).
+ * <p>
+ * Queries join up to three tables, filter them with nested predicates, and either project columns and arithmetic or
+ * group and aggregate them; some read from a CTE that is itself a random query. Literals are mostly drawn from sampled
+ * values of the columns they are compared with, so that predicates are selective rather than always false.
+ * <p>
+ * Only SQL that PostgreSQL, NoisePage and the embedded reference databases should agree on is generated: text is only
+ * compared for equality and never aggregated by MIN or MAX, since collations differ, there is no division, and there
+ * is no ORDER BY or LIMIT, since results are compared as sorted rows.
+ */
+public class QueryGenerator {
+    /**
+     * The name of the CTE, when a query has one.
+     */
+    private static final String CTE_NAME = "cte";
+
+    private static final String[] COMPARISONS = {"=", "<>", "<", "<=", ">", ">="};
+    private static final String[] WORDS = {"a", "b", "Alice", "Bob", "x y", "it's", ""};
+
+    /**
+     * A table, or the CTE, with the columns that queries may use and sampled values of each.
+     */
+    public static final class Table {
+        private final String name;
+        private final List<String> columns = new ArrayList<>();
+        private final List<MogDb.DbColumnType> types = new ArrayList<>();
+        private final List<List<String>> samples = new ArrayList<>();
+
+        /**
+         * @param name The name of the table.
+         */
+        public Table(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Add a column.
+         *
+         * @param column The name of the column.
+         * @param type   The type of the column; anything but INTEGER, FLOAT and TEXT is not supported.
+         * @return The index of the column.
+         */
+        public int addColumn(String column, MogDb.DbColumnType type) {
+            columns.add(column);
+            types.add(type);
+            samples.add(new ArrayList<>());
+            return columns.size() - 1;
+        }
+
+        /**
+         * Add a sampled value of a column, to be used in literals.
+         *
+         * @param column The index of the column.
+         * @param value  The value, not NULL.
+         */
+        public void addSample(int column, String value) {
+            samples.get(column).add(value);
+        }
+
+        /**
+         * @return The name of the table.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The number of columns.
+         */
+        public int getNumColumns() {
+            return columns.size();
+        }
+    }
+
+    /**
+     * A typed expression, with the sampled values it may take, if known.
+     */
+    private static final class Expr {
+        private final String sql;
+        private final MogDb.DbColumnType type;
+        private final List<String> samples;
+
+        Expr(String sql, MogDb.DbColumnType type, List<String> samples) {
+            this.sql = sql;
+            this.type = type;
+            this.samples = samples;
+        }
+
+        boolean isNumeric() {
+            return MogDb.DbColumnType.INTEGER == type || MogDb.DbColumnType.FLOAT == type;
+        }
+    }
+
+    /**
+     * A predicate, with the simpler predicates it may be replaced with while minimizing, e.g., each side of an OR.
+     */
+    private static final class Predicate {
+        private final String sql;
+        private final List<Predicate> parts;
+
+        Predicate(String sql, List<Predicate> parts) {
+            this.sql = sql;
+            this.parts = parts;
+        }
+    }
+
+    /**
+     * An entry of a FROM clause: the first one has no join, later ones are joined by CROSS JOIN, JOIN or LEFT JOIN.
+     */
+    private static final class FromItem {
+        private final String table;
+        private final String alias;
+        private final String join;
+        private final Predicate on;
+
+        FromItem(String table, String alias, String join, Predicate on) {
+            this.table = table;
+            this.alias = alias;
+            this.join = join;
+            this.on = on;
+        }
+    }
+
+    /**
+     * A generated query. Queries are immutable; simplifications() returns simplified copies.
+     */
+    public static final class Query {
+        private Query cte;
+        private boolean distinct;
+        private List<Expr> select = new ArrayList<>();
+        private List<FromItem> from = new ArrayList<>();
+        private List<Predicate> where = new ArrayList<>();
+        private List<Expr> groupBy = new ArrayList<>();
+        private List<Predicate> having = new ArrayList<>();
+
+        private Query copy() {
+            Query query = new Query();
+            query.cte = cte;
+            query.distinct = distinct;
+            query.select = new ArrayList<>(select);
+            query.from = new ArrayList<>(from);
+            query.where = new ArrayList<>(where);
+            query.groupBy = new ArrayList<>(groupBy);
+            query.having = new ArrayList<>(having);
+            return query;
+        }
+
+        /**
+         * @return The query as SQL.
+         */
+        public String toSql() {
+            return null == cte
+                    ? body(false)
+                    : "WITH " + CTE_NAME + " AS (" + cte.body(true) + ") " + body(false);
+        }
+
+        @Override
+        public String toString() {
+            return toSql();
+        }
+
+        /**
+         * @param named True to name the selected columns c0, c1 and so on, as the columns of the CTE are referred to.
+         */
+        private String body(boolean named) {
+            StringBuilder builder = new StringBuilder("SELECT ");
+            if (distinct) {
+                builder.append("DISTINCT ");
+            }
+            for (int i = 0; i < select.size(); ++i) {
+                builder.append(i > 0 ? ", " : "").append(select.get(i).sql);
+                if (named) {
+                    builder.append(" AS c").append(i);
+                }
+            }
+            builder.append(" FROM ");
+            for (FromItem item : from) {
+                if (!item.join.isEmpty()) {
+                    builder.append(' ').append(item.join).append(' ');
+                }
+                builder.append(item.table).append(' ').append(item.alias);
+                if (null != item.on) {
+                    builder.append(" ON ").append(item.on.sql);
+                }
+            }
+            appendPredicates(builder, " WHERE ", where);
+            if (!groupBy.isEmpty()) {
+                builder.append(" GROUP BY ");
+                for (int i = 0; i < groupBy.size(); ++i) {
+                    builder.append(i > 0 ? ", " : "").append(groupBy.get(i).sql);
+                }
+            }
+            appendPredicates(builder, " HAVING ", having);
+            return builder.toString();
+        }
+
+        private static void appendPredicates(StringBuilder builder, String clause, List<Predicate> predicates) {
+            for (int i = 0; i < predicates.size(); ++i) {
+                builder.append(i > 0 ? " AND " : clause).append(predicates.get(i).sql);
+            }
+        }
+
+        /**
+         * Get the queries that are one step simpler than this one, for minimizing a query that exposes a bug: without
+         * DISTINCT, a predicate, a selected column, a grouping column that is not selected, the last joined table or
+         * the CTE, with a predicate replaced by one of its parts, or with a LEFT JOIN turned into a JOIN.
+         *
+         * @return The simpler queries, roughly the most simplifying first.
+         */
+        public List<Query> simplifications() {
+            return simplifications(false);
+        }
+
+        /**
+         * @param isCte True if this is the body of the CTE, whose selected columns must all stay.
+         */
+        private List<Query> simplifications(boolean isCte) {
+            List<Query> queries = new ArrayList<>();
+            if (null != cte) {
+                boolean cteUsed = from.stream().anyMatch(item -> item.table.equals(CTE_NAME));
+                if (!cteUsed) {
+                    Query query = copy();
+                    query.cte = null;
+                    queries.add(query);
+                } else {
+                    for (Query simpler : cte.simplifications(true)) {
+                        Query query = copy();
+                        query.cte = simpler;
+                        queries.add(query);
+                    }
+                }
+            }
+            for (int i = from.size() - 1; i > 0; --i) {
+                FromItem item = from.get(i);
+                if (i == from.size() - 1 && !isReferenced(item.alias)) {
+                    Query query = copy();
+                    query.from.remove(i);
+                    queries.add(query);
+                }
+                if (item.join.equals("LEFT JOIN")) {
+                    Query query = copy();
+                    query.from.set(i, new FromItem(item.table, item.alias, "JOIN", item.on));
+                    queries.add(query);
+                }
+            }
+            addPredicateSimplifications(queries, false);
+            addPredicateSimplifications(queries, true);
+            if (!isCte && select.size() > 1) {
+                for (int i = 0; i < select.size(); ++i) {
+                    Query query = copy();
+                    query.select.remove(i);
+                    queries.add(query);
+                }
+            }
+            for (int i = 0; i < groupBy.size(); ++i) {
+                if (!select.contains(groupBy.get(i))) {
+                    Query query = copy();
+                    query.groupBy.remove(i);
+                    queries.add(query);
+                }
+            }
+            if (distinct) {
+                Query query = copy();
+                query.distinct = false;
+                queries.add(query);
+            }
+            return queries;
+        }
+
+        private void addPredicateSimplifications(List<Query> queries, boolean isHaving) {
+            List<Predicate> predicates = isHaving ? having : where;
+            for (int i = 0; i < predicates.size(); ++i) {
+                Query query = copy();
+                (isHaving ? query.having : query.where).remove(i);
+                queries.add(query);
+                for (Predicate part : predicates.get(i).parts) {
+                    query = copy();
+                    (isHaving ? query.having : query.where).set(i, part);
+                    queries.add(query);
+                }
+            }
+        }
+
+        /**
+         * @return True if a table alias is used anywhere but in its own FROM entry.
+         */
+        private boolean isReferenced(String alias) {
+            String prefix = alias + ".";
+            for (Expr expr : select) {
+                if (expr.sql.contains(prefix)) {
+                    return true;
+                }
+            }
+            for (Expr expr : groupBy) {
+                if (expr.sql.contains(prefix)) {
+                    return true;
+                }
+            }
+            for (Predicate predicate : where) {
+                if (predicate.sql.contains(prefix)) {
+                    return true;
+                }
+            }
+            for (Predicate predicate : having) {
+                if (predicate.sql.contains(prefix)) {
+                    return true;
+                }
+            }
+            for (FromItem item : from) {
+                if (!item.alias.equals(alias) && null != item.on && item.on.sql.contains(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final List<Table> tables;
+    private final Random random;
+
+    /**
+     * Create a new generator.
+     *
+     * @param tables The tables to query, each with at least one column.
+     * @param random The source of randomness; the queries are deterministic for a given seed.
+     */
+    public QueryGenerator(List<Table> tables, Random random) {
+        this.tables = tables;
+        this.random = random;
+    }
+
+    /**
+     * @return A new random query.
+     */
+    public Query next() {
+        if (random.nextInt(10) >= 3) {
+            return generateBody(tables, 3);
+        }
+        Query cte = generateBody(tables, 2);
+        Table cteTable = new Table(CTE_NAME);
+        for (int i = 0; i < cte.select.size(); ++i) {
+            Expr expr = cte.select.get(i);
+            int column = cteTable.addColumn("c" + i, expr.type);
+            expr.samples.forEach(sample -> cteTable.addSample(column, sample));
+        }
+        List<Table> available = new ArrayList<>(tables);
+        available.add(cteTable);
+        Query query;
+        do {
+            query = generateBody(available, 3);
+        } while (query.from.stream().noneMatch(item -> item.table.equals(CTE_NAME)));
+        query.cte = cte;
+        return query;
+    }
+
+    private Query generateBody(List<Table> available, int maxFrom) {
+        Query query = new Query();
+        List<Expr> columns = new ArrayList<>();
+        int numFrom = 1 + random.nextInt(maxFrom);
+        for (int i = 0; i < numFrom; ++i) {
+            Table table = pick(available);
+            String alias = "t" + i;
+            List<Expr> tableColumns = new ArrayList<>();
+            for (int j = 0; j < table.getNumColumns(); ++j) {
+                tableColumns.add(new Expr(alias + "." + table.columns.get(j), table.types.get(j),
+                        table.samples.get(j)));
+            }
+            if (0 == i) {
+                query.from.add(new FromItem(table.name, alias, "", null));
+            } else {
+                List<Expr[]> pairs = new ArrayList<>();
+                for (Expr left : columns) {
+                    for (Expr right : tableColumns) {
+                        if (left.type == right.type) {
+                            pairs.add(new Expr[]{left, right});
+                        }
+                    }
+                }
+                if (pairs.isEmpty() || random.nextInt(10) < 2) {
+                    query.from.add(new FromItem(table.name, alias, "CROSS JOIN", null));
+                } else {
+                    Expr[] pair = pick(pairs);
+                    Predicate on = new Predicate(pair[0].sql + " = " + pair[1].sql, Collections.emptyList());
+                    query.from.add(new FromItem(table.name, alias, random.nextBoolean() ? "JOIN" : "LEFT JOIN", on));
+                }
+            }
+            columns.addAll(tableColumns);
+        }
+
+        if (random.nextInt(10) < 4) {
+            /* Group and aggregate. */
+            int numGroups = random.nextInt(3);
+            for (int i = 0; i < numGroups; ++i) {
+                Expr column = pick(columns);
+                if (!query.groupBy.contains(column)) {
+                    query.groupBy.add(column);
+                    query.select.add(column);
+                }
+            }
+            int numAggregates = 1 + random.nextInt(3);
+            for (int i = 0; i < numAggregates; ++i) {
+                query.select.add(aggregate(columns));
+            }
+            if (random.nextInt(10) < 3) {
+                Expr aggregate = aggregate(columns);
+                query.having.add(new Predicate(aggregate.sql + " " + pick(COMPARISONS) + " " + literal(aggregate),
+                        Collections.emptyList()));
+            }
+        } else {
+            int numSelect = 1 + random.nextInt(4);
+            for (int i = 0; i < numSelect; ++i) {
+                query.select.add(scalar(columns));
+            }
+            query.distinct = random.nextInt(10) < 2;
+        }
+
+        int numPredicates = random.nextInt(4);
+        for (int i = 0; i < numPredicates; ++i) {
+            query.where.add(predicate(columns, 0));
+        }
+        return query;
+    }
+
+    private Expr scalar(List<Expr> columns) {
+        Expr column = pick(columns);
+        if (!column.isNumeric() || random.nextInt(10) < 7) {
+            return column;
+        }
+        String op = random.nextBoolean() ? " + " : random.nextBoolean() ? " - " : " * ";
+        Expr other = pick(columns);
+        if (!other.isNumeric() || random.nextBoolean()) {
+            return new Expr("(" + column.sql + op + literal(column) + ")", column.type, Collections.emptyList());
+        }
+        MogDb.DbColumnType type = MogDb.DbColumnType.INTEGER == column.type && MogDb.DbColumnType.INTEGER == other.type
+                ? MogDb.DbColumnType.INTEGER : MogDb.DbColumnType.FLOAT;
+        return new Expr("(" + column.sql + op + other.sql + ")", type, Collections.emptyList());
+    }
+
+    private Expr aggregate(List<Expr> columns) {
+        List<Expr> numeric = new ArrayList<>();
+        for (Expr column : columns) {
+            if (column.isNumeric()) {
+                numeric.add(column);
+            }
+        }
+        int kind = random.nextInt(5);
+        if (numeric.isEmpty() && kind >= 2) {
+            kind = random.nextInt(2);
+        }
+        switch (kind) {
+            case 0:
+                return new Expr("COUNT(*)", MogDb.DbColumnType.INTEGER, Collections.emptyList());
+            case 1:
+                return new Expr("COUNT(" + pick(columns).sql + ")", MogDb.DbColumnType.INTEGER,
+                        Collections.emptyList());
+            case 2:
+            case 3: {
+                Expr column = pick(numeric);
+                return new Expr((2 == kind ? "MIN(" : "MAX(") + column.sql + ")", column.type, column.samples);
+            }
+            default: {
+                Expr column = pick(numeric);
+                return new Expr("SUM(" + column.sql + ")", column.type, Collections.emptyList());
+            }
+        }
+    }
+
+    private Predicate predicate(List<Expr> columns, int depth) {
+        int kind = random.nextInt(12);
+        if (depth < 2 && 0 == kind) {
+            Predicate left = predicate(columns, depth + 1);
+            Predicate right = predicate(columns, depth + 1);
+            return new Predicate("(" + left.sql + " OR " + right.sql + ")", List.of(left, right));
+        } else if (depth < 2 && 1 == kind) {
+            Predicate inner = predicate(columns, depth + 1);
+            return new Predicate("NOT (" + inner.sql + ")", List.of(inner));
+        }
+        Expr column = pick(columns);
+        switch (kind) {
+            case 2:
+                return atom(column.sql + (random.nextBoolean() ? " IS NULL" : " IS NOT NULL"));
+            case 3:
+                if (column.isNumeric()) {
+                    String low = literal(column);
+                    String high = literal(column);
+                    if (Double.parseDouble(unwrap(low)) > Double.parseDouble(unwrap(high))) {
+                        String swap = low;
+                        low = high;
+                        high = swap;
+                    }
+                    return atom(column.sql + " BETWEEN " + low + " AND " + high);
+                }
+                break;
+            case 4:
+                return atom(column.sql + " IN (" + literal(column) + ", " + literal(column) + ", "
+                        + literal(column) + ")");
+            case 5: {
+                List<Expr> others = new ArrayList<>();
+                for (Expr other : columns) {
+                    if (other.type == column.type && other != column) {
+                        others.add(other);
+                    }
+                }
+                if (!others.isEmpty()) {
+                    String op = column.isNumeric() ? pick(COMPARISONS) : random.nextBoolean() ? "=" : "<>";
+                    return atom(column.sql + " " + op + " " + pick(others).sql);
+                }
+                break;
+            }
+            default:
+                break;
+        }
+        String op = column.isNumeric() ? pick(COMPARISONS) : random.nextBoolean() ? "=" : "<>";
+        return atom(column.sql + " " + op + " " + literal(column));
+    }
+
+    private static Predicate atom(String sql) {
+        return new Predicate(sql, Collections.emptyList());
+    }
+
+    /**
+     * @return A literal of the type of an expression, mostly one of its sampled values. Negative numbers are put in
+     * parentheses, so that they cannot form a "--" comment with a preceding minus.
+     */
+    private String literal(Expr expr) {
+        String value;
+        if (!expr.samples.isEmpty() && random.nextInt(10) < 8) {
+            value = pick(expr.samples);
+        } else if (MogDb.DbColumnType.INTEGER == expr.type) {
+            value = Integer.toString(random.nextInt(201) - 100);
+        } else if (MogDb.DbColumnType.FLOAT == expr.type) {
+            value = String.format(Locale.ROOT, "%.2f", random.nextDouble() * 200 - 100);
+        } else {
+            value = pick(WORDS);
+        }
+        if (!expr.isNumeric()) {
+            return "'" + value.replace("'", "''") + "'";
+        }
+        return value.startsWith("-") ? "(" + value + ")" : value;
+    }
+
+    private static String unwrap(String literal) {
+        return literal.startsWith("(") ? literal.substring(1, literal.length() - 1) : literal;
+    }
+
+    private <T> T pick(List<T> list) {
+        return list.get(random.nextInt(list.size()));
+    }
+
+    private <T> T pick(T[] array) {
+        return array[random.nextInt(array.length)];
+    }
+}
@@ -0,0 +1,486 @@
+package moglib;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * QueryTemplate normalizes SQL statements into templates, so that statements that only differ in their literals can be
+ * grouped together, e.g., for reporting per-query statistics.
+ * <p>
+ * String and numeric literals are replaced by "?", comments are dropped, runs of whitespace are collapsed into a single
+ * space and a trailing semicolon is removed. Quoted identifiers and the case of keywords and identifiers are kept.
+ * <p>
+ * parameterize() instead turns a statement into a template for a PreparedStatement along with the literals to bind to
+ * it, so that statements that only differ in their literals can share a prepared statement.
+ */
+public class QueryTemplate {
+    /**
+     * Placeholder for a literal.
+     */
+    public static final char PLACEHOLDER = '?';
+
+    /**
+     * The types of literals, as PostgreSQL types them: quoted strings are of unknown type until the context decides,
+     * numbers are integer if they fit, bigint if they fit that, and numeric otherwise.
+     */
+    public enum LiteralType {STRING, INTEGER, BIGINT, NUMERIC}
+
+    /**
+     * A literal lifted out of a statement by parameterize().
+     */
+    public static final class Literal {
+        private final LiteralType type;
+        private final String value;
+
+        Literal(LiteralType type, String value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        public LiteralType getType() {
+            return type;
+        }
+
+        /**
+         * @return The value of the literal, e.g., "it's" for 'it''s'.
+         */
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return LiteralType.STRING == type ? "'" + value.replace("'", "''") + "'" : value;
+        }
+    }
+
+    /**
+     * Statements that take parameters. Other statements, in particular DDL, are left as they are.
+     */
+    private static final Set<String> PARAMETERIZABLE_STATEMENTS = Set.of("SELECT", "INSERT", "UPDATE", "DELETE",
+            "WITH");
+    /**
+     * Keywords after which an expression starts, so that a literal following them is a value.
+     */
+    private static final Set<String> EXPRESSION_KEYWORDS = Set.of("SELECT", "WHERE", "AND", "OR", "NOT", "VALUES",
+            "SET", "WHEN", "THEN", "ELSE", "IN", "LIKE", "ILIKE", "BETWEEN", "HAVING", "LIMIT", "OFFSET", "ON",
+            "DISTINCT", "ALL", "ANY", "SOME", "RETURNING");
+    /**
+     * Keywords that end the select list or ORDER BY / GROUP BY list they appear after.
+     */
+    private static final Set<String> CLAUSE_KEYWORDS = Set.of("FROM", "WHERE", "GROUP", "HAVING", "ORDER", "LIMIT",
+            "OFFSET", "UNION", "INTERSECT", "EXCEPT", "WINDOW", "FETCH", "FOR", "RETURNING", "INTO");
+    /**
+     * Statements that only read, unless they contain one of WRITING_KEYWORDS.
+     */
+    private static final Set<String> READING_STATEMENTS = Set.of("SELECT", "VALUES", "TABLE", "WITH");
+    /**
+     * Keywords of data-modifying statements, including SELECT INTO, which creates a table, and FOR UPDATE, which
+     * locks rows.
+     */
+    private static final Set<String> WRITING_KEYWORDS = Set.of("INSERT", "UPDATE", "DELETE", "MERGE", "INTO");
+    /**
+     * Operators and punctuation after which an expression starts.
+     */
+    private static final String EXPRESSION_PUNCTUATION = "(,=<>+-*/%|[!^&~";
+
+    private final String sql;
+    private final List<Literal> literals;
+
+    private QueryTemplate(String sql, List<Literal> literals) {
+        this.sql = sql;
+        this.literals = Collections.unmodifiableList(literals);
+    }
+
+    /**
+     * @return The statement with its literals replaced by "?".
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return The literals that were replaced, in order.
+     */
+    public List<Literal> getLiterals() {
+        return literals;
+    }
+
+    /**
+     * Bind the literals to a statement prepared from getSql(). Strings are bound without a type, so that the server
+     * infers it from the context like it would for the literal; numbers are bound with the type of the literal.
+     *
+     * @param statement The prepared statement.
+     * @throws SQLException If binding fails.
+     */
+    public void bind(PreparedStatement statement) throws SQLException {
+        for (int i = 0; i < literals.size(); ++i) {
+            Literal literal = literals.get(i);
+            switch (literal.type) {
+                case STRING:
+                    statement.setObject(i + 1, literal.value, Types.OTHER);
+                    break;
+                case INTEGER:
+                    statement.setInt(i + 1, Integer.parseInt(literal.value));
+                    break;
+                case BIGINT:
+                    statement.setLong(i + 1, Long.parseLong(literal.value));
+                    break;
+                default:
+                    statement.setBigDecimal(i + 1, new BigDecimal(literal.value));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Normalize a SQL statement.
+     *
+     * @param sql The SQL statement.
+     * @return The template of the statement.
+     */
+    public static String normalize(String sql) {
+        StringBuilder template = new StringBuilder(sql.length());
+        final int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                while (i < length && Character.isWhitespace(sql.charAt(i))) {
+                    ++i;
+                }
+                appendSpace(template);
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                while (i < length && sql.charAt(i) != '\n') {
+                    ++i;
+                }
+                appendSpace(template);
+            } else if (c == '\'') {
+                i = skipQuoted(sql, i, '\'');
+                template.append(PLACEHOLDER);
+            } else if (c == '"') {
+                int end = skipQuoted(sql, i, '"');
+                template.append(sql, i, end);
+                i = end;
+            } else if (isNumberStart(sql, i) && !isIdentifierPart(template)) {
+                i = skipNumber(sql, i);
+                template.append(PLACEHOLDER);
+            } else {
+                template.append(c);
+                ++i;
+            }
+        }
+        int end = template.length();
+        while (end > 0 && (template.charAt(end - 1) == ' ' || template.charAt(end - 1) == ';')) {
+            --end;
+        }
+        int start = 0 < end && template.charAt(0) == ' ' ? 1 : 0;
+        return template.substring(start, end);
+    }
+
+    /**
+     * Lift the literals out of a statement so that it can be run as a prepared statement.
+     * <p>
+     * Only literals that stand for a value are lifted, i.e., those that follow an operator, a comma, an opening
+     * parenthesis or a keyword that starts an expression. Literals that PostgreSQL does not accept as parameters, or
+     * whose meaning would change, are kept: those of typed literals such as DATE '2020-01-01', type modifiers such as
+     * VARCHAR(10), column positions in ORDER BY and GROUP BY, and strings in select lists, whose type would be
+     * unknown. Statements other than SELECT, INSERT, UPDATE, DELETE and WITH, and strings of several statements, are
+     * not parameterized at all. Unlike normalize(), whitespace and comments are kept.
+     *
+     * @param sql The SQL statement.
+     * @return The template, with no literals if nothing was lifted.
+     */
+    public static QueryTemplate parameterize(String sql) {
+        String statement = sql.trim();
+        while (statement.endsWith(";")) {
+            statement = statement.substring(0, statement.length() - 1).trim();
+        }
+        List<Literal> literals = new ArrayList<>();
+        if (!isParameterizable(statement)) {
+            return new QueryTemplate(statement, literals);
+        }
+
+        StringBuilder template = new StringBuilder(statement.length());
+        /* The last two tokens, uppercase if they are words, and "?" if they are literals. */
+        String last = "";
+        String beforeLast = "";
+        int depth = 0;
+        /* Depths of the select lists and ORDER BY / GROUP BY lists that are open, innermost first. */
+        Deque<Integer> selectLists = new ArrayDeque<>();
+        Deque<Integer> byLists = new ArrayDeque<>();
+        /* Depth outside of the type modifier being read, or -1. */
+        int typeModifier = -1;
+
+        final int length = statement.length();
+        int i = 0;
+        while (i < length) {
+            char c = statement.charAt(i);
+            int end;
+            String token;
+            if (Character.isWhitespace(c)) {
+                template.append(c);
+                ++i;
+                continue;
+            } else if (c == '-' && i + 1 < length && statement.charAt(i + 1) == '-') {
+                end = statement.indexOf('\n', i);
+                end = end < 0 ? length : end;
+                template.append(statement, i, end);
+                i = end;
+                continue;
+            } else if (c == '\'' || (isNumberStart(statement, i) && !isIdentifierPart(template))) {
+                boolean string = c == '\'';
+                end = string ? skipQuoted(statement, i, '\'') : skipNumber(statement, i);
+                boolean lift = typeModifier < 0
+                        && !isInnermost(byLists, depth)
+                        && !(string && isInnermost(selectLists, depth))
+                        && startsExpression(last);
+                String text = statement.substring(i, end);
+                if (lift) {
+                    literals.add(string
+                            ? new Literal(LiteralType.STRING, text.substring(1, text.length() - 1).replace("''", "'"))
+                            : new Literal(numberType(text), text));
+                    template.append(PLACEHOLDER);
+                } else {
+                    template.append(text);
+                }
+                token = "?";
+            } else if (c == '"') {
+                end = skipQuoted(statement, i, '"');
+                token = statement.substring(i, end);
+                template.append(token);
+            } else if (Character.isLetter(c) || c == '_') {
+                end = i + 1;
+                while (end < length && isWordPart(statement.charAt(end))) {
+                    ++end;
+                }
+                template.append(statement, i, end);
+                token = statement.substring(i, end).toUpperCase(Locale.ROOT);
+                if (token.equals("SELECT")) {
+                    selectLists.push(depth);
+                } else if (token.equals("BY") && (last.equals("ORDER") || last.equals("GROUP"))) {
+                    byLists.push(depth);
+                } else if (CLAUSE_KEYWORDS.contains(token)) {
+                    closeList(selectLists, depth);
+                    closeList(byLists, depth);
+                }
+            } else if (c == ':' && i + 1 < length && statement.charAt(i + 1) == ':') {
+                end = i + 2;
+                token = "::";
+                template.append(token);
+            } else {
+                end = i + 1;
+                if (c == '(') {
+                    /* A parenthesis right after "AS type" or "::type" opens a type modifier. */
+                    boolean afterType = !last.isEmpty() && isWordPart(last.charAt(0))
+                            && (beforeLast.equals("AS") || beforeLast.equals("::"));
+                    if (typeModifier < 0 && afterType) {
+                        typeModifier = depth;
+                    }
+                    ++depth;
+                } else if (c == ')') {
+                    --depth;
+                    if (typeModifier == depth) {
+                        typeModifier = -1;
+                    }
+                    closeList(selectLists, depth + 1);
+                    closeList(byLists, depth + 1);
+                }
+                token = String.valueOf(c);
+                template.append(c);
+            }
+            beforeLast = last;
+            last = token;
+            i = end;
+        }
+        return new QueryTemplate(template.toString(), literals);
+    }
+
+    /**
+     * Check whether SQL is a single statement that only reads, i.e., a SELECT, VALUES, TABLE or WITH statement without
+     * INSERT, UPDATE, DELETE, MERGE or INTO outside of quotes and comments. Such a statement can be rolled back or run
+     * repeatedly without changing the database, unless it calls functions with side effects, which is not checked.
+     *
+     * @param sql The SQL.
+     * @return True if the SQL only reads.
+     */
+    public static boolean isReadOnly(String sql) {
+        String statement = sql.trim();
+        while (statement.endsWith(";")) {
+            statement = statement.substring(0, statement.length() - 1).trim();
+        }
+        boolean first = true;
+        final int length = statement.length();
+        int i = 0;
+        while (i < length) {
+            char c = statement.charAt(i);
+            if (c == ';') {
+                return false;
+            } else if (c == '-' && i + 1 < length && statement.charAt(i + 1) == '-') {
+                int end = statement.indexOf('\n', i);
+                i = end < 0 ? length : end;
+            } else if (c == '\'' || c == '"') {
+                i = skipQuoted(statement, i, c);
+            } else if (Character.isLetter(c) || c == '_') {
+                int end = i + 1;
+                while (end < length && isWordPart(statement.charAt(end))) {
+                    ++end;
+                }
+                String word = statement.substring(i, end).toUpperCase(Locale.ROOT);
+                if (first ? !READING_STATEMENTS.contains(word) : WRITING_KEYWORDS.contains(word)) {
+                    return false;
+                }
+                first = false;
+                i = end;
+            } else {
+                if (first && c != '(' && !Character.isWhitespace(c)) {
+                    return false;
+                }
+                ++i;
+            }
+        }
+        return !first;
+    }
+
+    /**
+     * @return True if the statement is a single SELECT, INSERT, UPDATE, DELETE or WITH statement.
+     */
+    private static boolean isParameterizable(String statement) {
+        int i = 0;
+        while (i < statement.length() && (statement.charAt(i) == '(' || Character.isWhitespace(statement.charAt(i)))) {
+            ++i;
+        }
+        int end = i;
+        while (end < statement.length() && isWordPart(statement.charAt(end))) {
+            ++end;
+        }
+        if (!PARAMETERIZABLE_STATEMENTS.contains(statement.substring(i, end).toUpperCase(Locale.ROOT))) {
+            return false;
+        }
+        while (end < statement.length()) {
+            char c = statement.charAt(end);
+            if (c == ';') {
+                return false;
+            }
+            end = c == '\'' || c == '"' ? skipQuoted(statement, end, c) : end + 1;
+        }
+        return true;
+    }
+
+    /**
+     * @return True if an expression starts after the given token.
+     */
+    private static boolean startsExpression(String token) {
+        return EXPRESSION_KEYWORDS.contains(token)
+                || (1 == token.length() && EXPRESSION_PUNCTUATION.indexOf(token.charAt(0)) >= 0);
+    }
+
+    /**
+     * @return True if the innermost open list is at the given depth.
+     */
+    private static boolean isInnermost(Deque<Integer> lists, int depth) {
+        return !lists.isEmpty() && lists.peek() == depth;
+    }
+
+    /**
+     * Close the open lists at or below the given depth.
+     */
+    private static void closeList(Deque<Integer> lists, int depth) {
+        while (!lists.isEmpty() && lists.peek() >= depth) {
+            lists.pop();
+        }
+    }
+
+    /**
+     * @return The type PostgreSQL gives a numeric literal.
+     */
+    private static LiteralType numberType(String text) {
+        if (text.indexOf('.') >= 0 || text.indexOf('e') >= 0 || text.indexOf('E') >= 0) {
+            return LiteralType.NUMERIC;
+        }
+        try {
+            long value = Long.parseLong(text);
+            return value <= Integer.MAX_VALUE ? LiteralType.INTEGER : LiteralType.BIGINT;
+        } catch (NumberFormatException e) {
+            return LiteralType.NUMERIC;
+        }
+    }
+
+    private static boolean isWordPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    private static void appendSpace(StringBuilder template) {
+        if (template.length() > 0 && template.charAt(template.length() - 1) != ' ') {
+            template.append(' ');
+        }
+    }
+
+    /**
+     * @return The index just past the closing quote; a doubled quote does not close the quoted text.
+     */
+    static int skipQuoted(String sql, int start, char quote) {
+        int i = start + 1;
+        while (i < sql.length()) {
+            if (sql.charAt(i) == quote) {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            ++i;
+        }
+        return i;
+    }
+
+    static boolean isNumberStart(String sql, int i) {
+        char c = sql.charAt(i);
+        return Character.isDigit(c)
+                || (c == '.' && i + 1 < sql.length() && Character.isDigit(sql.charAt(i + 1)));
+    }
+
+    /**
+     * @return The index just past a numeric literal, including any fraction and exponent.
+     */
+    static int skipNumber(String sql, int start) {
+        int i = start;
+        final int length = sql.length();
+        while (i < length && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+            ++i;
+        }
+        if (i < length && (sql.charAt(i) == 'e' || sql.charAt(i) == 'E')) {
+            int j = i + 1;
+            if (j < length && (sql.charAt(j) == '+' || sql.charAt(j) == '-')) {
+                ++j;
+            }
+            if (j < length && Character.isDigit(sql.charAt(j))) {
+                i = j;
+                while (i < length && Character.isDigit(sql.charAt(i))) {
+                    ++i;
+                }
+            }
+        }
+        return i;
+    }
+
+    /**
+     * @return True if the text so far ends in the middle of an identifier, e.g., the "t" of "t1".
+     */
+    private static boolean isIdentifierPart(CharSequence text) {
+        if (0 == text.length()) {
+            return false;
+        }
+        char last = text.charAt(text.length() - 1);
+        return Character.isLetterOrDigit(last) || last == '_' || last == '$';
+    }
+}
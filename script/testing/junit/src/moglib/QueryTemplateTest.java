@@ -0,0 +1,116 @@
+package moglib;
+
+import org.junit.*;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which literals QueryTemplate lifts out of statements and which it has to keep.
+ */
+public class QueryTemplateTest {
+
+    @Test
+    public void testNormalize() {
+        assertEquals("SELECT * FROM foo WHERE a = ? AND b = ?",
+                QueryTemplate.normalize("SELECT *  FROM foo -- comment\n WHERE a = 'x''y' AND b = 1.5;"));
+        assertEquals("SELECT \"col 1\" FROM t2 WHERE c = ?",
+                QueryTemplate.normalize("SELECT \"col 1\" FROM t2 WHERE c = 3"));
+    }
+
+    @Test
+    public void testLiftsValues() {
+        QueryTemplate template = QueryTemplate.parameterize(
+                "SELECT a FROM foo WHERE a = 1 AND b < 3000000000 AND c = 1.5 AND d LIKE 'x%';");
+        assertEquals("SELECT a FROM foo WHERE a = ? AND b < ? AND c = ? AND d LIKE ?", template.getSql());
+        assertEquals(List.of("INTEGER 1", "BIGINT 3000000000", "NUMERIC 1.5", "STRING x%"),
+                describe(template));
+
+        template = QueryTemplate.parameterize("INSERT INTO foo VALUES (1, 'a'), (2, 'b')");
+        assertEquals("INSERT INTO foo VALUES (?, ?), (?, ?)", template.getSql());
+        assertEquals(List.of("INTEGER 1", "STRING a", "INTEGER 2", "STRING b"), describe(template));
+    }
+
+    @Test
+    public void testUnescapesQuotes() {
+        QueryTemplate template = QueryTemplate.parameterize("UPDATE foo SET s = 'it''s' WHERE t = ''''");
+        assertEquals("UPDATE foo SET s = ? WHERE t = ?", template.getSql());
+        assertEquals(List.of("STRING it's", "STRING '"), describe(template));
+    }
+
+    @Test
+    public void testKeepsTypeModifiers() {
+        QueryTemplate template = QueryTemplate.parameterize(
+                "SELECT CAST(a AS VARCHAR(10)), b::NUMERIC(10, 2) FROM foo WHERE c = 5");
+        assertEquals("SELECT CAST(a AS VARCHAR(10)), b::NUMERIC(10, 2) FROM foo WHERE c = ?", template.getSql());
+        assertEquals(List.of("INTEGER 5"), describe(template));
+    }
+
+    @Test
+    public void testKeepsPositions() {
+        QueryTemplate template = QueryTemplate.parameterize(
+                "SELECT a, b FROM foo WHERE a > 1 GROUP BY 1, 2 ORDER BY 2 DESC, 1 LIMIT 10");
+        assertEquals("SELECT a, b FROM foo WHERE a > ? GROUP BY 1, 2 ORDER BY 2 DESC, 1 LIMIT ?", template.getSql());
+        assertEquals(List.of("INTEGER 1", "INTEGER 10"), describe(template));
+
+        /* The ORDER BY of a subquery ends with it. */
+        template = QueryTemplate.parameterize("SELECT * FROM (SELECT a FROM foo ORDER BY 1) s WHERE a = 7");
+        assertEquals("SELECT * FROM (SELECT a FROM foo ORDER BY 1) s WHERE a = ?", template.getSql());
+        assertEquals(List.of("INTEGER 7"), describe(template));
+    }
+
+    @Test
+    public void testKeepsSelectListStrings() {
+        QueryTemplate template = QueryTemplate.parameterize("SELECT 'x', 1 + 2 FROM foo WHERE b = 'y'");
+        assertEquals("SELECT 'x', ? + ? FROM foo WHERE b = ?", template.getSql());
+        assertEquals(List.of("INTEGER 1", "INTEGER 2", "STRING y"), describe(template));
+    }
+
+    @Test
+    public void testKeepsTypedLiterals() {
+        QueryTemplate template = QueryTemplate.parameterize("SELECT * FROM foo WHERE d > DATE '2020-01-01'");
+        assertEquals("SELECT * FROM foo WHERE d > DATE '2020-01-01'", template.getSql());
+        assertEquals(List.of(), describe(template));
+    }
+
+    @Test
+    public void testLeavesOtherStatements() {
+        String multi = "SELECT 1 FROM foo WHERE a = 2; SELECT 3";
+        assertEquals(multi, QueryTemplate.parameterize(multi).getSql());
+        assertEquals(List.of(), describe(QueryTemplate.parameterize(multi)));
+
+        /* A semicolon within a string does not separate statements. */
+        QueryTemplate template = QueryTemplate.parameterize("SELECT a FROM foo WHERE s = 'a;b';");
+        assertEquals("SELECT a FROM foo WHERE s = ?", template.getSql());
+        assertEquals(List.of("STRING a;b"), describe(template));
+
+        String ddl = "CREATE TABLE foo (a VARCHAR(10) DEFAULT 'x', b INT DEFAULT 1)";
+        assertEquals(ddl, QueryTemplate.parameterize(ddl).getSql());
+        assertEquals(List.of(), describe(QueryTemplate.parameterize(ddl)));
+    }
+
+    @Test
+    public void testIsReadOnly() {
+        assertTrue(QueryTemplate.isReadOnly("SELECT a FROM foo WHERE s = 'INSERT'"));
+        assertTrue(QueryTemplate.isReadOnly("  (SELECT 1) UNION (SELECT 2);"));
+        assertTrue(QueryTemplate.isReadOnly("VALUES (1), (2)"));
+        assertTrue(QueryTemplate.isReadOnly("WITH t AS (SELECT 1 AS \"update\") SELECT * FROM t -- delete\n"));
+        assertFalse(QueryTemplate.isReadOnly("INSERT INTO foo VALUES (1) RETURNING a"));
+        assertFalse(QueryTemplate.isReadOnly("WITH d AS (DELETE FROM foo RETURNING a) SELECT * FROM d"));
+        assertFalse(QueryTemplate.isReadOnly("SELECT * INTO bar FROM foo"));
+        assertFalse(QueryTemplate.isReadOnly("SELECT * FROM foo FOR UPDATE"));
+        assertFalse(QueryTemplate.isReadOnly("SELECT 1; DELETE FROM foo"));
+        assertFalse(QueryTemplate.isReadOnly("CREATE TABLE foo (a INT)"));
+        assertFalse(QueryTemplate.isReadOnly(""));
+    }
+
+    private static List<String> describe(QueryTemplate template) {
+        return template.getLiterals().stream()
+                .map(literal -> literal.getType() + " " + literal.getValue())
+                .collect(Collectors.toList());
+    }
+}
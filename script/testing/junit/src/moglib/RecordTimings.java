@@ -0,0 +1,176 @@
+package moglib;
+
+import java.io.PrintWriter;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * RecordTimings collects the time spent on the records of a trace, per record kind and per phase, in
+ * LatencyHistograms.
+ * <p>
+ * The phases separate the time spent in the server from the time spent in the harness:
+ * EXECUTE is the time until the server has answered the statement, FIRST_ROW the time until the first row of a query
+ * result was read, FETCH the time to read the remaining rows, and PROCESS the time spent locally sorting, hashing and
+ * checking results. TOTAL is the sum of all phases.
+ * <p>
+ * RecordTimings is not thread-safe; merge the timings of concurrent runners with add().
+ */
+public class RecordTimings {
+    /**
+     * Phases of running a record.
+     */
+    public enum Phase {EXECUTE, FIRST_ROW, FETCH, PROCESS, TOTAL}
+
+    private static final double NANOS_PER_MICRO = 1e3;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final Map<TraceRecord.Kind, Map<Phase, LatencyHistogram>> histograms =
+            new EnumMap<>(TraceRecord.Kind.class);
+
+    public RecordTimings() {
+        for (TraceRecord.Kind kind : TraceRecord.Kind.values()) {
+            Map<Phase, LatencyHistogram> phases = new EnumMap<>(Phase.class);
+            for (Phase phase : Phase.values()) {
+                phases.put(phase, new LatencyHistogram());
+            }
+            histograms.put(kind, phases);
+        }
+    }
+
+    /**
+     * Record the timings of a record.
+     *
+     * @param kind          The kind of the record.
+     * @param executeNanos  The time spent executing the statement.
+     * @param firstRowNanos The time spent waiting for the first row; 0 for statements.
+     * @param fetchNanos    The time spent fetching the remaining rows; 0 for statements.
+     * @param processNanos  The time spent sorting, hashing and checking the results.
+     */
+    public void record(TraceRecord.Kind kind, long executeNanos, long firstRowNanos, long fetchNanos,
+                       long processNanos) {
+        Map<Phase, LatencyHistogram> phases = histograms.get(kind);
+        phases.get(Phase.EXECUTE).record(executeNanos);
+        phases.get(Phase.FIRST_ROW).record(firstRowNanos);
+        phases.get(Phase.FETCH).record(fetchNanos);
+        phases.get(Phase.PROCESS).record(processNanos);
+        phases.get(Phase.TOTAL).record(executeNanos + firstRowNanos + fetchNanos + processNanos);
+    }
+
+    /**
+     * Add the timings of another RecordTimings to these.
+     *
+     * @param other The other timings.
+     */
+    public void add(RecordTimings other) {
+        histograms.forEach((kind, phases) ->
+                phases.forEach((phase, histogram) -> histogram.add(other.get(kind, phase))));
+    }
+
+    /**
+     * @param kind  The record kind.
+     * @param phase The phase.
+     * @return The histogram of the phase of records of the kind.
+     */
+    public LatencyHistogram get(TraceRecord.Kind kind, Phase phase) {
+        return histograms.get(kind).get(phase);
+    }
+
+    /**
+     * Get the histogram of a phase over all record kinds.
+     *
+     * @param phase The phase.
+     * @return A new histogram with the values of all record kinds.
+     */
+    public LatencyHistogram getAll(Phase phase) {
+        LatencyHistogram all = new LatencyHistogram();
+        histograms.values().forEach(phases -> all.add(phases.get(phase)));
+        return all;
+    }
+
+    /**
+     * Write timings as CSV, one line per trace, record kind and phase; microseconds throughout.
+     *
+     * @param writer  The writer.
+     * @param names   The names of the traces.
+     * @param timings The timings of the traces, in the same order.
+     */
+    public static void writeCsv(PrintWriter writer, List<String> names, List<RecordTimings> timings) {
+        writer.print("trace,kind,phase,count,total_us,mean_us");
+        for (double percentile : PERCENTILES) {
+            writer.print(",p" + formatPercentile(percentile) + "_us");
+        }
+        writer.println(",max_us");
+        for (int i = 0; i < names.size(); ++i) {
+            for (Map.Entry<TraceRecord.Kind, Map<Phase, LatencyHistogram>> kind : timings.get(i).histograms.entrySet()) {
+                for (Map.Entry<Phase, LatencyHistogram> phase : kind.getValue().entrySet()) {
+                    LatencyHistogram histogram = phase.getValue();
+                    if (0 == histogram.getCount()) {
+                        continue;
+                    }
+                    writer.printf(Locale.ROOT, "%s,%s,%s,%d,%.1f,%.1f", names.get(i), kind.getKey(), phase.getKey(),
+                            histogram.getCount(), histogram.getMean() * histogram.getCount() / NANOS_PER_MICRO,
+                            histogram.getMean() / NANOS_PER_MICRO);
+                    for (double percentile : PERCENTILES) {
+                        writer.printf(Locale.ROOT, ",%.1f", histogram.getPercentile(percentile) / NANOS_PER_MICRO);
+                    }
+                    writer.printf(Locale.ROOT, ",%.1f%n", histogram.getMax() / NANOS_PER_MICRO);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write timings as a JSON object that maps each trace to its record kinds, each record kind to its phases, and
+     * each phase to its statistics; microseconds throughout.
+     *
+     * @param writer  The writer.
+     * @param names   The names of the traces.
+     * @param timings The timings of the traces, in the same order.
+     */
+    public static void writeJson(PrintWriter writer, List<String> names, List<RecordTimings> timings) {
+        writer.println("{");
+        for (int i = 0; i < names.size(); ++i) {
+            writer.printf("  \"%s\": {", escapeJson(names.get(i)));
+            String kindSeparator = "\n";
+            for (Map.Entry<TraceRecord.Kind, Map<Phase, LatencyHistogram>> kind : timings.get(i).histograms.entrySet()) {
+                if (0 == kind.getValue().get(Phase.TOTAL).getCount()) {
+                    continue;
+                }
+                writer.printf("%s    \"%s\": {", kindSeparator, kind.getKey());
+                kindSeparator = ",\n";
+                String phaseSeparator = "\n";
+                for (Map.Entry<Phase, LatencyHistogram> phase : kind.getValue().entrySet()) {
+                    LatencyHistogram histogram = phase.getValue();
+                    writer.printf(Locale.ROOT, "%s      \"%s\": {\"count\": %d, \"total_us\": %.1f, \"mean_us\": %.1f",
+                            phaseSeparator, phase.getKey(), histogram.getCount(),
+                            histogram.getMean() * histogram.getCount() / NANOS_PER_MICRO,
+                            histogram.getMean() / NANOS_PER_MICRO);
+                    phaseSeparator = ",\n";
+                    for (double percentile : PERCENTILES) {
+                        writer.printf(Locale.ROOT, ", \"p%s_us\": %.1f", formatPercentile(percentile),
+                                histogram.getPercentile(percentile) / NANOS_PER_MICRO);
+                    }
+                    writer.printf(Locale.ROOT, ", \"max_us\": %.1f}", histogram.getMax() / NANOS_PER_MICRO);
+                }
+                writer.print("\n    }");
+            }
+            writer.print(i + 1 < names.size() ? "\n  },\n" : "\n  }\n");
+        }
+        writer.println("}");
+    }
+
+    /**
+     * @return The percentile as used in field names, e.g., "99_9" for 99.9.
+     */
+    private static String formatPercentile(double percentile) {
+        return percentile == Math.rint(percentile)
+                ? Integer.toString((int) percentile)
+                : Double.toString(percentile).replace('.', '_');
+    }
+
+    private static String escapeJson(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
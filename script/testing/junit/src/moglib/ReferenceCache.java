@@ -0,0 +1,456 @@
+package moglib;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ReferenceCache remembers the outcome of SQL on a reference database, so that differential runs and trace generation
+ * only need the reference database for SQL they have not seen before.
+ * <p>
+ * An outcome is keyed by a SHA-256 hash of the statements run so far, the SQL and the sort mode. Statements are the
+ * SQL that returned no result set; queries are assumed to leave the database as it was, so they are not part of the
+ * key of later SQL. Call reset() before each trace, so that keys only depend on the statements of the trace.
+ * <p>
+ * The connection to the reference database is made on the first miss. Its tables are dropped (see
+ * MogDb.Database.clear()) and the statements run so far are replayed, so that the SQL sees the same database it would
+ * have seen without the cache. Later misses only replay the statements since the previous miss.
+ * <p>
+ * The cache file is an append-only log, read in full when the cache is opened. Fixed-size integers are big-endian.
+ * <pre>
+ *   header:  MAGIC, VERSION
+ *   entries: key (32 bytes), flags (byte), update count (long),
+ *            if not FLAG_OK: error message,
+ *            if FLAG_RESULT_SET: column count (int) followed by the column type names, value count (int), hash,
+ *            if FLAG_VALUES: the values
+ * </pre>
+ * Strings are stored as (byte length int, UTF-8 bytes). A later entry for a key replaces an earlier one. A truncated
+ * last entry, e.g., from a run that was killed, is dropped.
+ */
+public class ReferenceCache implements Closeable {
+    /**
+     * "MOGR" in ASCII.
+     */
+    static final int MAGIC = 0x4D4F4752;
+    /**
+     * Bumped on every incompatible change to the format.
+     */
+    static final int VERSION = 1;
+    /**
+     * Set if the SQL succeeded.
+     */
+    static final byte FLAG_OK = 0x1;
+    /**
+     * Set if the SQL returned a result set.
+     */
+    static final byte FLAG_RESULT_SET = 0x2;
+    /**
+     * Set if all values of the result set are stored.
+     */
+    static final byte FLAG_VALUES = 0x4;
+
+    private static final int KEY_SIZE = 32;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+    /**
+     * The outcome of SQL on the reference database.
+     */
+    public static final class Result {
+        private final boolean ok;
+        private final String error;
+        private final long updateCount;
+        private final List<String> columnTypes;
+        private final int numValues;
+        private final String hash;
+        private final List<String> values;
+
+        Result(boolean ok, String error, long updateCount, List<String> columnTypes, int numValues, String hash,
+               List<String> values) {
+            this.ok = ok;
+            this.error = error;
+            this.updateCount = updateCount;
+            this.columnTypes = columnTypes;
+            this.numValues = numValues;
+            this.hash = hash;
+            this.values = values;
+        }
+
+        /**
+         * @return True if the SQL succeeded.
+         */
+        public boolean isOk() {
+            return ok;
+        }
+
+        /**
+         * @return The error message if the SQL failed, null otherwise.
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return True if the SQL returned a result set.
+         */
+        public boolean hasResultSet() {
+            return null != columnTypes;
+        }
+
+        /**
+         * @return The update count of a statement, -1 if the SQL failed or returned a result set.
+         */
+        public long getUpdateCount() {
+            return updateCount;
+        }
+
+        /**
+         * @return The JDBC column type names of the result set, null if there is none.
+         */
+        public List<String> getColumnTypes() {
+            return columnTypes;
+        }
+
+        /**
+         * @return The number of values of the result set.
+         */
+        public int getNumValues() {
+            return numValues;
+        }
+
+        /**
+         * @return The hash of the values of the result set, sorted by the sort mode, as ResultHasher computes it.
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return The values of the result set, sorted by the sort mode, or null if they were not stored.
+         */
+        public List<String> getValues() {
+            return values;
+        }
+    }
+
+    private final File file;
+    private final MogDb.Database db;
+    private final Map<String, Result> entries = new HashMap<>();
+    private final MessageDigest digest;
+    /**
+     * The digest of the statements run so far, and the statements themselves, for replaying them on a miss.
+     */
+    private byte[] prefix = new byte[KEY_SIZE];
+    private final List<String> prefixSql = new ArrayList<>();
+    /**
+     * The connection to the reference database, null until the first miss, and the number of statements of the
+     * prefix that were run on it.
+     */
+    private Connection conn;
+    private int numApplied;
+    private DataOutputStream out;
+    private int numHits;
+    private int numMisses;
+
+    /**
+     * Open a reference cache, reading the entries of its file if it exists.
+     *
+     * @param file The cache file, or null to keep the entries in memory only.
+     * @param db   The reference database, connected to on the first miss.
+     * @throws IOException If the file exists but is not a reference cache of the current version.
+     */
+    public ReferenceCache(File file, MogDb.Database db) throws IOException {
+        this.file = file;
+        this.db = db;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 must be supported by every JVM.", e);
+        }
+        if (null != file && file.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * Start a new trace: forget the statements run so far, and start over on a clean reference database on the next
+     * miss.
+     */
+    public void reset() {
+        prefix = new byte[KEY_SIZE];
+        prefixSql.clear();
+        conn = null;
+        numApplied = 0;
+    }
+
+    /**
+     * @return The number of lookups that were answered from the cache.
+     */
+    public int getNumHits() {
+        return numHits;
+    }
+
+    /**
+     * @return The number of lookups that had to run on the reference database.
+     */
+    public int getNumMisses() {
+        return numMisses;
+    }
+
+    /**
+     * Get the outcome of SQL on the reference database, running it there if it is not cached.
+     *
+     * @param sql       The SQL.
+     * @param sortMode  The sort mode of the results, e.g., "rowsort"; null for a statement.
+     * @param allValues True if all values of the result set are needed. Otherwise, they are only stored if there are
+     *                  fewer than Constants.DISPLAY_RESULT_SIZE, and only the count and hash are guaranteed.
+     * @return The outcome of the SQL.
+     * @throws SQLException If the reference database cannot be reached.
+     */
+    public Result run(String sql, String sortMode, boolean allValues) throws SQLException {
+        String key = key(sql, sortMode);
+        Result result = entries.get(key);
+        boolean missed = null == result || (allValues && result.hasResultSet() && null == result.getValues());
+        if (missed) {
+            ++numMisses;
+            catchUp();
+            result = execute(sql, null == sortMode ? "nosort" : sortMode, allValues);
+            put(key, result);
+        } else {
+            ++numHits;
+        }
+        if (!result.hasResultSet()) {
+            digest.update(prefix);
+            digest.update(sql.getBytes(StandardCharsets.UTF_8));
+            prefix = digest.digest();
+            prefixSql.add(sql);
+            if (missed) {
+                numApplied = prefixSql.size();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Close the cache file and return the connection to the reference database, if one was made.
+     */
+    @Override
+    public void close() throws IOException {
+        if (null != conn) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                System.err.printf("Failed to close reference connection: %s\n", e.getMessage());
+            }
+            conn = null;
+        }
+        if (null != out) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * @return The key of SQL after the statements run so far.
+     */
+    private String key(String sql, String sortMode) {
+        digest.update(prefix);
+        digest.update(sql.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        if (null != sortMode) {
+            digest.update(sortMode.getBytes(StandardCharsets.UTF_8));
+        }
+        return MogUtil.bytesToHex(digest.digest());
+    }
+
+    /**
+     * Connect to the reference database if need be, and run the statements it has not seen yet. Failures of the
+     * statements are ignored, since they failed the first time around as well.
+     */
+    private void catchUp() throws SQLException {
+        if (null == conn) {
+            conn = db.newConn();
+            if (null == conn) {
+                throw new SQLException("Cannot connect to the reference database.");
+            }
+            db.clear();
+            numApplied = 0;
+        }
+        for (; numApplied < prefixSql.size(); ++numApplied) {
+            try (Statement statement = conn.createStatement()) {
+                statement.execute(prefixSql.get(numApplied));
+            } catch (SQLException e) {
+                // Failed before as well
+            }
+        }
+    }
+
+    private Result execute(String sql, String sortMode, boolean allValues) throws SQLException {
+        try (Statement statement = conn.createStatement()) {
+            try {
+                if (!statement.execute(sql)) {
+                    return new Result(true, null, statement.getUpdateCount(), null, 0, null, null);
+                }
+            } catch (SQLException e) {
+                if (conn.isClosed()) {
+                    throw e;
+                }
+                return new Result(false, String.valueOf(e.getMessage()), -1, null, 0, null, null);
+            }
+            ResultSet rs = statement.getResultSet();
+            ResultSetMetaData rsmd = rs.getMetaData();
+            List<String> columnTypes = new ArrayList<>(rsmd.getColumnCount());
+            for (int i = 1; i <= rsmd.getColumnCount(); ++i) {
+                columnTypes.add(rsmd.getColumnTypeName(i));
+            }
+            List<String> values = MogSqlite.processResults(rs, sortMode);
+            boolean keepValues = allValues || values.size() < Constants.DISPLAY_RESULT_SIZE;
+            return new Result(true, null, -1, Collections.unmodifiableList(columnTypes), values.size(),
+                    ResultHasher.hash(values), keepValues ? Collections.unmodifiableList(values) : null);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Persistence
+    // ------------------------------------------------------------------------
+
+    private void put(String key, Result result) {
+        entries.put(key, result);
+        if (null == file) {
+            return;
+        }
+        try {
+            if (null == out) {
+                boolean fresh = !file.exists() || 0 == file.length();
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+                if (fresh) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                }
+            }
+            writeEntry(out, key, result);
+            /* Entries must survive a run that is killed. */
+            out.flush();
+        } catch (IOException e) {
+            System.err.printf("Failed to write reference cache %s: %s\n", file, e.getMessage());
+        }
+    }
+
+    private void load() throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (bytes.length < HEADER_SIZE || MAGIC != in.readInt() || VERSION != in.readInt()) {
+            throw new IOException("Not a reference cache of version " + VERSION + ": " + file);
+        }
+        int validLength = HEADER_SIZE;
+        try {
+            while (in.available() > 0) {
+                readEntry(in);
+                validLength = bytes.length - in.available();
+            }
+        } catch (EOFException e) {
+            System.err.printf("Dropping truncated entry at the end of reference cache %s.\n", file);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+    }
+
+    private static void writeEntry(DataOutput out, String key, Result result) throws IOException {
+        out.write(hexToBytes(key));
+        byte flags = 0;
+        flags |= result.isOk() ? FLAG_OK : 0;
+        flags |= result.hasResultSet() ? FLAG_RESULT_SET : 0;
+        flags |= null != result.getValues() ? FLAG_VALUES : 0;
+        out.writeByte(flags);
+        out.writeLong(result.getUpdateCount());
+        if (!result.isOk()) {
+            writeString(out, result.getError());
+        }
+        if (result.hasResultSet()) {
+            out.writeInt(result.getColumnTypes().size());
+            for (String columnType : result.getColumnTypes()) {
+                writeString(out, columnType);
+            }
+            out.writeInt(result.getNumValues());
+            writeString(out, result.getHash());
+        }
+        if (null != result.getValues()) {
+            for (String value : result.getValues()) {
+                writeString(out, value);
+            }
+        }
+    }
+
+    private void readEntry(DataInput in) throws IOException {
+        byte[] key = new byte[KEY_SIZE];
+        in.readFully(key);
+        byte flags = in.readByte();
+        long updateCount = in.readLong();
+        String error = 0 == (flags & FLAG_OK) ? readString(in) : null;
+        List<String> columnTypes = null;
+        int numValues = 0;
+        String hash = null;
+        if (0 != (flags & FLAG_RESULT_SET)) {
+            int numCols = in.readInt();
+            columnTypes = new ArrayList<>(numCols);
+            for (int i = 0; i < numCols; ++i) {
+                columnTypes.add(readString(in));
+            }
+            numValues = in.readInt();
+            hash = readString(in);
+        }
+        List<String> values = null;
+        if (0 != (flags & FLAG_VALUES)) {
+            values = new ArrayList<>(numValues);
+            for (int i = 0; i < numValues; ++i) {
+                values.add(readString(in));
+            }
+        }
+        entries.put(MogUtil.bytesToHex(key), new Result(0 != (flags & FLAG_OK), error, updateCount,
+                null == columnTypes ? null : Collections.unmodifiableList(columnTypes), numValues, hash,
+                null == values ? null : Collections.unmodifiableList(values)));
+    }
+
+    private static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,147 @@
+package moglib;
+
+import org.junit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which lookups ReferenceCache answers without the reference database, and that its entries survive a round
+ * trip through the cache file, against a fake reference database.
+ */
+public class ReferenceCacheTest {
+    private static final String CREATE = "CREATE TABLE foo (a INT)";
+    private static final String INSERT = "INSERT INTO foo VALUES (1)";
+
+    private File cacheFile;
+    private MogDb.Database db;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheFile = File.createTempFile("reference-cache-test", ".cache");
+        cacheFile.delete();
+        db = new MogDb(FakeDriver.create("ref"), "", "").getDbTest();
+    }
+
+    @After
+    public void tearDown() {
+        cacheFile.delete();
+    }
+
+    @Test
+    public void testHitsAndMisses() throws IOException, SQLException {
+        try (ReferenceCache cache = new ReferenceCache(null, db)) {
+            runTrace(cache);
+            assertEquals(0, cache.getNumHits());
+            assertEquals(4, cache.getNumMisses());
+            assertEquals(1, FakeDriver.getNumConnections("ref"));
+
+            /* The same trace again is answered from the cache alone. */
+            cache.reset();
+            runTrace(cache);
+            assertEquals(4, cache.getNumHits());
+            assertEquals(4, cache.getNumMisses());
+            assertEquals(List.of(CREATE, INSERT), FakeDriver.getCommitted("ref"));
+
+            /* The same SQL after other statements is a different lookup. */
+            cache.reset();
+            cache.run(INSERT, null, false);
+            cache.run("SELECT 1, x", "nosort", false);
+            assertEquals(4, cache.getNumHits());
+            assertEquals(6, cache.getNumMisses());
+            /* A sort mode is part of the key, too. */
+            cache.run("SELECT 1, x", "rowsort", false);
+            assertEquals(7, cache.getNumMisses());
+        }
+    }
+
+    @Test
+    public void testReplaysStatementsOnMiss() throws IOException, SQLException {
+        try (ReferenceCache cache = new ReferenceCache(cacheFile, db)) {
+            runTrace(cache);
+        }
+        db = new MogDb(FakeDriver.create("ref"), "", "").getDbTest();
+        try (ReferenceCache cache = new ReferenceCache(cacheFile, db)) {
+            runTrace(cache);
+            assertEquals(0, FakeDriver.getNumConnections("ref"));
+
+            /* A new query has to see the statements that were cached, so they are run first. */
+            ReferenceCache.Result result = cache.run("SELECT 2", "nosort", false);
+            assertEquals(List.of("2"), result.getValues());
+            assertEquals(1, cache.getNumMisses());
+            assertEquals(List.of(CREATE, INSERT), FakeDriver.getCommitted("ref"));
+        }
+    }
+
+    @Test
+    public void testFileRoundTrip() throws IOException, SQLException {
+        try (ReferenceCache cache = new ReferenceCache(cacheFile, db)) {
+            runTrace(cache);
+        }
+        try (ReferenceCache cache = new ReferenceCache(cacheFile, db)) {
+            ReferenceCache.Result create = cache.run(CREATE, null, false);
+            assertTrue(create.isOk());
+            assertFalse(create.hasResultSet());
+            assertEquals(0, create.getUpdateCount());
+
+            ReferenceCache.Result failed = cache.run("FAIL here", null, false);
+            assertFalse(failed.isOk());
+            assertEquals("Failed: FAIL here", failed.getError());
+
+            cache.run(INSERT, null, false);
+            ReferenceCache.Result query = cache.run("SELECT 1, x", "nosort", false);
+            assertTrue(query.hasResultSet());
+            assertEquals(List.of("int4", "text"), query.getColumnTypes());
+            assertEquals(List.of("1", "x"), query.getValues());
+            assertEquals(2, query.getNumValues());
+            assertEquals(ResultHasher.hash(List.of("1", "x")), query.getHash());
+
+            assertEquals(4, cache.getNumHits());
+            assertEquals(0, cache.getNumMisses());
+        }
+    }
+
+    @Test
+    public void testDropsTruncatedEntry() throws IOException, SQLException {
+        try (ReferenceCache cache = new ReferenceCache(cacheFile, db)) {
+            runTrace(cache);
+        }
+        long length = cacheFile.length();
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw")) {
+            raf.setLength(length - 3);
+        }
+        try (ReferenceCache cache = new ReferenceCache(cacheFile, db)) {
+            runTrace(cache);
+            assertEquals(3, cache.getNumHits());
+            assertEquals(1, cache.getNumMisses());
+        }
+        /* The truncated entry was cut off and the query written again. */
+        assertEquals(length, cacheFile.length());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherFiles() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw")) {
+            raf.writeInt(ReferenceCache.MAGIC);
+            raf.writeInt(ReferenceCache.VERSION + 1);
+        }
+        new ReferenceCache(cacheFile, db).close();
+    }
+
+    /**
+     * Run a statement, a failing statement, another statement and a query.
+     */
+    private static void runTrace(ReferenceCache cache) throws SQLException {
+        cache.run(CREATE, null, false);
+        cache.run("FAIL here", null, false);
+        cache.run(INSERT, null, false);
+        cache.run("SELECT 1, x", "nosort", false);
+    }
+}
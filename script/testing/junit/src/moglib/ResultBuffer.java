@@ -0,0 +1,327 @@
+package moglib;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ResultBuffer holds the cells of a result set, row after row, as PackedValues, i.e., packed back to back as UTF-8 in a
+ * single growable byte arena.
+ * <p>
+ * A buffer is meant to be reset and reused for many result sets, so that once its arrays have grown to the size of the
+ * largest result, reading a row allocates nothing beyond the String returned by the JDBC driver for each cell.
+ * <p>
+ * Hashing, sorting and comparing work on the packed bytes directly. Sorting permutes an index array rather than
+ * moving cells around:
+ * <ul>
+ *   <li>rowsort orders rows column by column in String.compareTo order, which is what MogSqlite.processResults has
+ *   always used, so that existing expected hashes keep matching.</li>
+ *   <li>valuesort orders all cells in unsigned UTF-8 byte order, which is the strcmp() order of sqllogictest.</li>
+ * </ul>
+ * NULL cells read, hash and sort as empty strings, as in MogSqlite.processResults.
+ */
+public class ResultBuffer {
+    private final PackedValues cells = new PackedValues();
+    private int numCols;
+    /**
+     * The sort order, as row indexes after sortRows() or as cell indexes after sortValues(). Null if unsorted.
+     */
+    private int[] order;
+    private boolean cellOrder;
+    private int[] scratch = new int[0];
+
+    /**
+     * Forget all cells, keeping the arrays for reuse.
+     *
+     * @param numCols The number of cells per row of the next result.
+     */
+    public void reset(int numCols) {
+        cells.clear();
+        this.numCols = numCols;
+        this.order = null;
+    }
+
+    /**
+     * @return The number of cells per row.
+     */
+    public int getNumColumns() {
+        return numCols;
+    }
+
+    /**
+     * @return The number of complete rows.
+     */
+    public int getNumRows() {
+        return 0 == numCols ? 0 : cells.size() / numCols;
+    }
+
+    /**
+     * @return The number of cells.
+     */
+    public int getNumCells() {
+        return cells.size();
+    }
+
+    /**
+     * @return The approximate number of bytes taken by the cells, i.e., their bytes plus their offset and length.
+     */
+    public long getMemoryUsage() {
+        return cells.getMemoryUsage();
+    }
+
+    /**
+     * Read the next row of a result set, calling getString() once per cell.
+     *
+     * @param rs The result set, which must have getNumColumns() columns.
+     * @return False if the result set is exhausted.
+     * @throws SQLException If reading the result set fails.
+     */
+    public boolean addRow(ResultSet rs) throws SQLException {
+        if (!rs.next()) {
+            return false;
+        }
+        addCells(rs);
+        return true;
+    }
+
+    /**
+     * Read the current row of a result set, i.e., the row next() last moved to, calling getString() once per cell.
+     *
+     * @param rs The result set, which must have getNumColumns() columns.
+     * @throws SQLException If reading the result set fails.
+     */
+    public void addCells(ResultSet rs) throws SQLException {
+        for (int i = 1; i <= numCols; ++i) {
+            add(rs.getString(i));
+        }
+    }
+
+    /**
+     * Append a cell.
+     *
+     * @param value The value of the cell, or null for NULL.
+     */
+    public void add(String value) {
+        cells.add(value);
+        order = null;
+    }
+
+    /**
+     * @param cell The index of the cell, in insertion order.
+     * @return True if the cell is NULL.
+     */
+    public boolean isNull(int cell) {
+        return cells.isNull(cell);
+    }
+
+    /**
+     * Decode a cell.
+     *
+     * @param cell The index of the cell, in insertion order.
+     * @return The value of the cell, or null for NULL.
+     */
+    public String getString(int cell) {
+        return cells.get(cell);
+    }
+
+    /**
+     * Decode all cells, in sorted order if the buffer is sorted, e.g., for messages or to store them.
+     *
+     * @return The values of the cells. NULL values are returned as empty strings, as in MogSqlite.processResults.
+     */
+    public List<String> toList() {
+        List<String> values = new ArrayList<>(cells.size());
+        for (int i = 0; i < cells.size(); ++i) {
+            String value = cells.get(sortedCell(i));
+            values.add(null == value ? "" : value);
+        }
+        return values;
+    }
+
+    /**
+     * Compare a cell with a string without decoding the cell.
+     *
+     * @param i     The position of the cell in sorted order, or in insertion order if the buffer is not sorted.
+     * @param value The string.
+     * @return True if the cell has the value; NULL has the empty string.
+     */
+    public boolean matches(int i, String value) {
+        return cells.matches(sortedCell(i), value);
+    }
+
+    /**
+     * Compare cells of two buffers without decoding them.
+     *
+     * @param a The first buffer.
+     * @param i The position of the cell in the first buffer, in sorted order if it is sorted.
+     * @param b The second buffer.
+     * @param j The position of the cell in the second buffer, in sorted order if it is sorted.
+     * @return True if both cells have the same value; NULL has the same value as the empty string.
+     */
+    public static boolean sameCell(ResultBuffer a, int i, ResultBuffer b, int j) {
+        return PackedValues.sameValue(a.cells, a.sortedCell(i), b.cells, b.sortedCell(j));
+    }
+
+    /**
+     * Get the index of a cell in sorted order.
+     *
+     * @param i The position of the cell in sorted order, or in insertion order if the buffer is not sorted.
+     * @return The index of the cell, in insertion order.
+     */
+    public int sortedCell(int i) {
+        if (null == order) {
+            return i;
+        }
+        return cellOrder ? order[i] : order[i / numCols] * numCols + i % numCols;
+    }
+
+    /**
+     * Sort the rows column by column, in String.compareTo order. The sort is stable.
+     */
+    public void sortRows() {
+        sort(getNumRows(), false, (r1, r2) -> compareRows(this, r1, this, r2));
+    }
+
+    /**
+     * Sort all cells individually, in unsigned UTF-8 byte order. The sort is stable.
+     */
+    public void sortValues() {
+        sort(cells.size(), true, cells::compare);
+    }
+
+    /**
+     * Compare two rows column by column, in String.compareTo order.
+     *
+     * @param a    The buffer holding the first row.
+     * @param rowA The index of the first row, in insertion order.
+     * @param b    The buffer holding the second row, with the same number of columns.
+     * @param rowB The index of the second row, in insertion order.
+     * @return A negative number, zero, or a positive number if the first row sorts before, with, or after the second.
+     */
+    public static int compareRows(ResultBuffer a, int rowA, ResultBuffer b, int rowB) {
+        int cellA = rowA * a.numCols;
+        int cellB = rowB * b.numCols;
+        for (int i = 0; i < a.numCols; ++i, ++cellA, ++cellB) {
+            int c = compareUtf16(a.cells.getArena(), a.cells.getOffset(cellA), a.cells.getLength(cellA),
+                    b.cells.getArena(), b.cells.getOffset(cellB), b.cells.getLength(cellB));
+            if (0 != c) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Feed all cells into a hasher, in sorted order if the buffer is sorted and in insertion order otherwise.
+     *
+     * @param hasher The hasher.
+     */
+    public void feed(ResultHasher hasher) {
+        for (int i = 0; i < cells.size(); ++i) {
+            cells.feed(sortedCell(i), hasher);
+        }
+    }
+
+    /**
+     * Write all rows, in sorted order if the buffer is sorted, as an int byte length (-1 for NULL) followed by the
+     * UTF-8 bytes of each cell.
+     *
+     * @param out The output to write to.
+     * @throws IOException If writing fails.
+     */
+    public void writeRows(DataOutput out) throws IOException {
+        for (int i = 0; i < cells.size(); ++i) {
+            int cell = sortedCell(i);
+            if (cells.isNull(cell)) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(cells.getLength(cell));
+                out.write(cells.getArena(), cells.getOffset(cell), cells.getLength(cell));
+            }
+        }
+    }
+
+    /**
+     * Append a row written by writeRows().
+     *
+     * @param in The input to read from.
+     * @return False if the input is exhausted.
+     * @throws IOException If reading fails, or the input ends within a row.
+     */
+    public boolean readRow(DataInput in) throws IOException {
+        for (int i = 0; i < numCols; ++i) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                if (0 == i) {
+                    return false;
+                }
+                throw e;
+            }
+            cells.read(in, length);
+        }
+        order = null;
+        return true;
+    }
+
+    private void sort(int n, boolean byCell, PackedValues.IndexComparator comparator) {
+        if (scratch.length < n) {
+            scratch = new int[n];
+        }
+        order = PackedValues.sort(n, scratch, comparator);
+        cellOrder = byCell;
+    }
+
+    /**
+     * Compare two UTF-8 strings in the order String.compareTo would compare them after decoding, i.e., by UTF-16 code
+     * units. This is the same as unsigned byte order, except that characters from U+E000 to U+FFFF sort after the
+     * supplementary characters, whose surrogates are smaller.
+     */
+    private static int compareUtf16(byte[] a, int offA, int lenA, byte[] b, int offB, int lenB) {
+        int i = Arrays.mismatch(a, offA, offA + lenA, b, offB, offB + lenB);
+        if (i < 0) {
+            return 0;
+        }
+        if (i == lenA || i == lenB) {
+            return lenA - lenB;
+        }
+        int byteA = a[offA + i] & 0xFF;
+        int byteB = b[offB + i] & 0xFF;
+        /* Below 0xEE neither character can be at or above U+E000, so byte order matches UTF-16 order. */
+        if (byteA < 0xEE && byteB < 0xEE) {
+            return byteA - byteB;
+        }
+        /* Back up to the start of the character, which is the same in both strings. */
+        while (i > 0 && 0x80 == (a[offA + i] & 0xC0)) {
+            --i;
+        }
+        int cpA = decodeCodePoint(a, offA + i, offA + lenA);
+        int cpB = decodeCodePoint(b, offB + i, offB + lenB);
+        char unitA = Character.isSupplementaryCodePoint(cpA) ? Character.highSurrogate(cpA) : (char) cpA;
+        char unitB = Character.isSupplementaryCodePoint(cpB) ? Character.highSurrogate(cpB) : (char) cpB;
+        if (unitA != unitB) {
+            return unitA - unitB;
+        }
+        return Integer.compare(cpA, cpB);
+    }
+
+    private static int decodeCodePoint(byte[] buf, int pos, int end) {
+        int b0 = buf[pos] & 0xFF;
+        if (b0 < 0x80) {
+            return b0;
+        }
+        int numBytes = b0 >= 0xF0 ? 4 : b0 >= 0xE0 ? 3 : 2;
+        int cp = b0 & (0x3F >> (numBytes - 1));
+        for (int k = 1; k < numBytes && pos + k < end; ++k) {
+            cp = (cp << 6) | (buf[pos + k] & 0x3F);
+        }
+        return cp;
+    }
+}
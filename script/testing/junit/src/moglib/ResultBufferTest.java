@@ -0,0 +1,122 @@
+package moglib;
+
+import org.junit.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that ResultBuffer sorts, compares and stores its UTF-8 cells as the equivalent Strings would be.
+ */
+public class ResultBufferTest {
+    /**
+     * Characters from each UTF-8 length, including characters at or above U+E000, which sort after supplementary
+     * characters in UTF-16 but before them in UTF-8.
+     */
+    private static final String[] CHARS = {"a", "z", "\u00e9", "\u07ff", "\u0800", "\ud7ff", "\ue000", "\uffff",
+            "\ud800\udc00", "\ud83d\ude00", "\udbff\udfff"};
+
+    @Test
+    public void testSortRowsInStringOrder() {
+        Random random = new Random(42);
+        List<String> values = randomValues(random, 2000);
+        ResultBuffer buffer = new ResultBuffer();
+        buffer.reset(1);
+        values.forEach(buffer::add);
+        buffer.sortRows();
+
+        List<String> expected = new ArrayList<>(values);
+        expected.sort(Comparator.naturalOrder());
+        assertEquals(expected, buffer.toList());
+    }
+
+    @Test
+    public void testSortValuesInByteOrder() {
+        Random random = new Random(7);
+        List<String> values = randomValues(random, 2000);
+        ResultBuffer buffer = new ResultBuffer();
+        buffer.reset(4);
+        values.forEach(buffer::add);
+        buffer.sortValues();
+
+        List<String> expected = new ArrayList<>(values);
+        expected.sort((a, b) -> Arrays.compareUnsigned(a.getBytes(StandardCharsets.UTF_8),
+                b.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(expected, buffer.toList());
+    }
+
+    @Test
+    public void testMatches() {
+        String[] values = {"", "abc", "\u00e9t\u00e9", "\ud83d\ude00", "\uffff", "a\ud800b"};
+        ResultBuffer buffer = new ResultBuffer();
+        buffer.reset(1);
+        for (String value : values) {
+            buffer.add(value);
+        }
+        buffer.add(null);
+        for (int i = 0; i < values.length; ++i) {
+            for (int j = 0; j < values.length; ++j) {
+                boolean same = Arrays.equals(values[i].getBytes(StandardCharsets.UTF_8),
+                        values[j].getBytes(StandardCharsets.UTF_8));
+                assertEquals(values[i] + " ~ " + values[j], same, buffer.matches(i, values[j]));
+                assertEquals(values[i] + " ~ " + values[j], same, ResultBuffer.sameCell(buffer, i, buffer, j));
+            }
+        }
+        /* NULL matches the empty string, as it reads and hashes as one. */
+        assertTrue(buffer.matches(values.length, ""));
+        assertFalse(buffer.matches(values.length, "abc"));
+    }
+
+    @Test
+    public void testWriteAndReadRows() throws IOException {
+        ResultBuffer buffer = new ResultBuffer();
+        buffer.reset(2);
+        buffer.add("b");
+        buffer.add(null);
+        buffer.add("a");
+        buffer.add("\ud83d\ude00");
+        buffer.sortRows();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        buffer.writeRows(new DataOutputStream(bytes));
+
+        ResultBuffer read = new ResultBuffer();
+        read.reset(2);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        while (read.readRow(in)) {
+            // Keep reading
+        }
+        assertEquals(2, read.getNumRows());
+        assertArrayEquals(new String[]{"a", "\ud83d\ude00", "b", null},
+                new String[]{read.getString(0), read.getString(1), read.getString(2), read.getString(3)});
+        assertTrue(read.isNull(3));
+        assertNull(read.getString(3));
+    }
+
+    private static List<String> randomValues(Random random, int numValues) {
+        List<String> values = new ArrayList<>(numValues);
+        for (int i = 0; i < numValues; ++i) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(4);
+            for (int j = 0; j < length; ++j) {
+                sb.append(CHARS[random.nextInt(CHARS.length)]);
+            }
+            values.add(sb.toString());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,279 @@
+package moglib;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ResultHasher computes the sqllogictest hash of query results incrementally, one value at a time.
+ * <p>
+ * The hash is the MD5 of all values in order, each followed by "\n", i.e., the MD5 of
+ * String.join("\n", values) + "\n". No result is kept beyond the first Constants.DISPLAY_RESULT_SIZE values,
+ * which are only retained for failure messages, so nosort results are hashed in constant memory and rowsort results
+ * within the memory budget of an ExternalSorter.
+ * <p>
+ * Alongside the hash, a second hash is computed over the values with every number rounded to an integer, which
+ * callers may fall back to when results differ only by floating point precision.
+ * <p>
+ * A ResultHasher is meant to be reused for many queries by calling reset() in between. It is not thread-safe.
+ */
+public class ResultHasher {
+    private static final byte NEWLINE = '\n';
+
+    private final MessageDigest md;
+    private final MessageDigest roundedMd;
+    private final List<String> displayValues = new ArrayList<>();
+    private int numValues;
+    /**
+     * Holds the value or row being hashed, for results that are hashed as they arrive.
+     */
+    private final ResultBuffer scratch = new ResultBuffer();
+    private ExternalSorter sorter;
+    private ResultBuffer values;
+
+    /* Time spent in addResults() since the last reset(), in nanoseconds. */
+    private long firstRowNanos;
+    private long fetchNanos;
+    private long processNanos;
+
+    public ResultHasher() {
+        try {
+            this.md = MessageDigest.getInstance("MD5");
+            this.roundedMd = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Hash a list of values.
+     *
+     * @param values The values.
+     * @return The lowercase hex MD5 hash of the values.
+     */
+    public static String hash(List<String> values) {
+        ResultHasher hasher = new ResultHasher();
+        for (String value : values) {
+            hasher.add(value);
+        }
+        return hasher.getHash();
+    }
+
+    /**
+     * Forget all values added so far.
+     */
+    public void reset() {
+        md.reset();
+        roundedMd.reset();
+        displayValues.clear();
+        numValues = 0;
+        firstRowNanos = 0;
+        fetchNanos = 0;
+        processNanos = 0;
+    }
+
+    /**
+     * Add a value.
+     *
+     * @param value The value. NULL values are hashed as empty strings, as in MogSqlite.processResults.
+     */
+    public void add(String value) {
+        if (null == value) {
+            value = "";
+        }
+        scratch.reset(1);
+        scratch.add(value);
+        scratch.feed(this);
+    }
+
+    /**
+     * Add a value given as UTF-8 bytes, without decoding it unless it may be a number or is kept for display.
+     *
+     * @param buf    The buffer holding the value.
+     * @param offset The offset of the value in the buffer.
+     * @param length The length of the value in bytes.
+     */
+    public void addUtf8(byte[] buf, int offset, int length) {
+        md.update(buf, offset, length);
+        md.update(NEWLINE);
+
+        if (length > 0 && maybeNumber((char) (buf[offset] & 0xFF))) {
+            String value = new String(buf, offset, length, StandardCharsets.UTF_8);
+            roundedMd.update(round(value).getBytes(StandardCharsets.UTF_8));
+        } else {
+            roundedMd.update(buf, offset, length);
+        }
+        roundedMd.update(NEWLINE);
+
+        if (displayValues.size() < Constants.DISPLAY_RESULT_SIZE) {
+            displayValues.add(new String(buf, offset, length, StandardCharsets.UTF_8));
+        }
+        ++numValues;
+    }
+
+    /**
+     * Add all values of a result set, applying the given sort mode.
+     * nosort results are hashed as the rows arrive, without being retained. rowsort results are sorted by an
+     * ExternalSorter, which spills to disk once its memory budget is exceeded. valuesort results are read into a
+     * ResultBuffer and sorted there. The sorter and the buffer are reused across result sets.
+     * <p>
+     * The time spent is split into waiting for the first row, fetching the remaining rows, and processing, i.e.,
+     * sorting and hashing; see getFirstRowNanos(), getFetchNanos() and getProcessNanos().
+     *
+     * @param rs       The result set.
+     * @param sortMode The sort mode of the query record, e.g., "rowsort".
+     * @throws SQLException If reading the result set fails.
+     */
+    public void addResults(ResultSet rs, String sortMode) throws SQLException {
+        final long start = System.nanoTime();
+        final int numCols = rs.getMetaData().getColumnCount();
+        if (sortMode.equals("rowsort")) {
+            if (null == sorter) {
+                sorter = new ExternalSorter();
+            }
+            try {
+                sorter.begin(numCols);
+                boolean more = sorter.addRow(rs);
+                final long firstRow = System.nanoTime();
+                while (more) {
+                    more = sorter.addRow(rs);
+                }
+                final long fetched = System.nanoTime();
+                sorter.feed(this);
+                firstRowNanos += firstRow - start;
+                fetchNanos += fetched - firstRow - sorter.getSpillNanos();
+                processNanos += System.nanoTime() - fetched + sorter.getSpillNanos();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                sorter.close();
+            }
+            return;
+        }
+        if (sortMode.equals("valuesort")) {
+            if (null == values) {
+                values = new ResultBuffer();
+            }
+            values.reset(numCols);
+            boolean more = values.addRow(rs);
+            final long firstRow = System.nanoTime();
+            while (more) {
+                more = values.addRow(rs);
+            }
+            final long fetched = System.nanoTime();
+            values.sortValues();
+            values.feed(this);
+            firstRowNanos += firstRow - start;
+            fetchNanos += fetched - firstRow;
+            processNanos += System.nanoTime() - fetched;
+            return;
+        }
+        /* Rows are hashed as they arrive, so the hashing of each row is timed separately. */
+        long hashNanos = 0;
+        scratch.reset(numCols);
+        boolean more = scratch.addRow(rs);
+        final long firstRow = System.nanoTime();
+        while (more) {
+            final long hashStart = System.nanoTime();
+            scratch.feed(this);
+            scratch.reset(numCols);
+            hashNanos += System.nanoTime() - hashStart;
+            more = scratch.addRow(rs);
+        }
+        firstRowNanos += firstRow - start;
+        fetchNanos += System.nanoTime() - firstRow - hashNanos;
+        processNanos += hashNanos;
+    }
+
+    /**
+     * @return The time spent in addResults() waiting for the first row since the last reset(), in nanoseconds.
+     */
+    public long getFirstRowNanos() {
+        return firstRowNanos;
+    }
+
+    /**
+     * @return The time spent in addResults() fetching rows after the first since the last reset(), in nanoseconds.
+     */
+    public long getFetchNanos() {
+        return fetchNanos;
+    }
+
+    /**
+     * @return The time spent in addResults() sorting and hashing since the last reset(), in nanoseconds.
+     */
+    public long getProcessNanos() {
+        return processNanos;
+    }
+
+    /**
+     * @return The number of values added.
+     */
+    public int getNumValues() {
+        return numValues;
+    }
+
+    /**
+     * @return The first Constants.DISPLAY_RESULT_SIZE values added, for failure messages.
+     */
+    public List<String> getDisplayValues() {
+        return Collections.unmodifiableList(displayValues);
+    }
+
+    /**
+     * Compute the hash of the values added so far. May only be called once until the next reset().
+     *
+     * @return The lowercase hex MD5 hash of the values.
+     */
+    public String getHash() {
+        return digest(md);
+    }
+
+    /**
+     * Compute the hash of the values added so far, with every number rounded to an integer. May only be called once
+     * until the next reset().
+     *
+     * @return The lowercase hex MD5 hash of the rounded values.
+     */
+    public String getRoundedHash() {
+        return digest(roundedMd);
+    }
+
+    private String digest(MessageDigest digest) {
+        /* The hash of no values is the hash of "\n", since String.join of nothing is "". */
+        if (0 == numValues) {
+            digest.update(NEWLINE);
+        }
+        return MogUtil.bytesToHex(digest.digest()).toLowerCase();
+    }
+
+    /**
+     * Round a value to an integer if it is a number.
+     *
+     * @param value The value.
+     * @return The value rounded to an integer, or the value itself if it is not a number.
+     */
+    private static String round(String value) {
+        /* Skip the exception for values that Double.parseDouble is bound to reject. */
+        if (value.isEmpty() || !maybeNumber(value.charAt(0))) {
+            return value;
+        }
+        try {
+            return Integer.toString((int) Math.round(Double.parseDouble(value)));
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    private static boolean maybeNumber(char first) {
+        return (first >= '0' && first <= '9') || first == '-' || first == '+' || first == '.'
+                || first == 'N' || first == 'I' || first <= ' ';
+    }
+}
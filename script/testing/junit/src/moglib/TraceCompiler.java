@@ -0,0 +1,215 @@
+package moglib;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * TraceCompiler turns trace files into the binary form read by CompiledTrace.
+ * Compiled traces are written next to the trace file and picked up by MogSqlite whenever they are newer than the
+ * trace file, which saves re-parsing the text and gives random access to records.
+ * <p>
+ * Usage: TraceCompiler [-f] FILE_OR_DIRECTORY...
+ * Directories are searched (non-recursively) for trace files. Up-to-date compiled traces are skipped unless -f is given.
+ */
+public class TraceCompiler {
+
+    public static void main(String[] args) throws IOException {
+        boolean force = false;
+        for (String arg : args) {
+            if (arg.equals("-f")) {
+                force = true;
+                continue;
+            }
+            File file = new File(arg);
+            File[] files = file.isDirectory() ? Objects.requireNonNull(file.listFiles()) : new File[]{file};
+            Arrays.sort(files);
+            for (File traceFile : files) {
+                if (!traceFile.getName().endsWith(Constants.TRACE_SUFFIX)) {
+                    continue;
+                }
+                if (!force && isUpToDate(traceFile)) {
+                    System.out.printf("Up to date: %s\n", traceFile);
+                    continue;
+                }
+                File compiledFile = CompiledTrace.compiledFileFor(traceFile);
+                int numRecords = compile(traceFile, compiledFile);
+                System.out.printf("Compiled: %s -> %s [%d records]\n", traceFile, compiledFile, numRecords);
+            }
+        }
+    }
+
+    /**
+     * @param traceFile The trace file.
+     * @return True if the trace file has a compiled trace that is at least as new as it.
+     */
+    public static boolean isUpToDate(File traceFile) {
+        return null != CompiledTrace.openIfFresh(traceFile);
+    }
+
+    /**
+     * Compile a trace file.
+     * The compiled trace is written to a temporary file first and then moved into place, so concurrent readers either
+     * see the old compiled trace or the new one.
+     *
+     * @param traceFile    The trace file.
+     * @param compiledFile The compiled trace file to write.
+     * @return The number of records compiled.
+     * @throws IOException If reading the trace file or writing the compiled trace fails.
+     */
+    public static int compile(File traceFile, File compiledFile) throws IOException {
+        File parent = compiledFile.getAbsoluteFile().getParentFile();
+        File tmpFile = File.createTempFile(compiledFile.getName(), ".tmp", parent);
+        try {
+            int numRecords = write(traceFile, tmpFile);
+            Files.move(tmpFile.toPath(), compiledFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return numRecords;
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    private static int write(File traceFile, File out) throws IOException {
+        Map<String, Integer> stringIds = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        List<Integer> recordOffsets = new ArrayList<>();
+
+        MogSqlite mog = new MogSqlite(traceFile, true, false);
+        int indexOffset;
+        int stringIndexOffset;
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)))) {
+            /* Header placeholder, patched at the end once all the offsets are known. */
+            for (int i = 0; i < CompiledTrace.HEADER_SIZE; ++i) {
+                dos.writeByte(0);
+            }
+
+            /* Records. */
+            TraceRecord record;
+            while (null != (record = mog.nextRecord())) {
+                recordOffsets.add(dos.size());
+                boolean hashed = record.isQuery() && record.isHashed();
+
+                writeVarInt(dos, record.getLineNumber());
+                dos.writeByte(record.getKind().ordinal());
+                dos.writeByte(sortModeId(record.getSortMode()));
+                dos.writeByte((hashed ? CompiledTrace.FLAG_HASHED : 0)
+                        | (record.isBenched() ? CompiledTrace.FLAG_BENCHED : 0));
+                writeVarInt(dos, intern(record.getFirstLine(), stringIds, strings));
+                writeVarInt(dos, intern(record.getSql(), stringIds, strings));
+                writeVarInt(dos, intern(record.getTypeString(), stringIds, strings));
+                writeVarInt(dos, intern(record.getLabel(), stringIds, strings));
+                writeVarInt(dos, record.getConditions().size());
+                for (String condition : record.getConditions()) {
+                    writeVarInt(dos, intern(condition, stringIds, strings));
+                }
+                if (!record.isQuery()) {
+                    continue;
+                }
+                if (record.isBenched()) {
+                    writeVarInt(dos, record.getBenchWarmup());
+                    writeVarInt(dos, record.getBenchIterations());
+                }
+                if (hashed) {
+                    writeVarInt(dos, record.getExpectedValueCount());
+                    dos.write(hexToBytes(record.getExpectedHash()));
+                } else {
+                    writeVarInt(dos, record.getExpectedResults().size());
+                    for (String result : record.getExpectedResults()) {
+                        writeVarInt(dos, intern(result, stringIds, strings));
+                    }
+                }
+            }
+
+            /* Record index. */
+            indexOffset = dos.size();
+            for (int offset : recordOffsets) {
+                dos.writeInt(offset);
+            }
+
+            /* String index, followed by the strings themselves. */
+            stringIndexOffset = dos.size();
+            int stringOffset = stringIndexOffset + strings.size() * Integer.BYTES;
+            List<byte[]> encoded = new ArrayList<>(strings.size());
+            for (String s : strings) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                encoded.add(bytes);
+                dos.writeInt(stringOffset);
+                stringOffset += varIntSize(bytes.length) + bytes.length;
+            }
+            for (byte[] bytes : encoded) {
+                writeVarInt(dos, bytes.length);
+                dos.write(bytes);
+            }
+            if (Integer.MAX_VALUE == dos.size()) {
+                throw new IOException("Trace file too large to compile: " + traceFile);
+            }
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(out, "rw")) {
+            raf.writeInt(CompiledTrace.MAGIC);
+            raf.writeInt(CompiledTrace.VERSION);
+            raf.writeInt(recordOffsets.size());
+            raf.writeInt(strings.size());
+            raf.writeInt(indexOffset);
+            raf.writeInt(stringIndexOffset);
+        }
+        return recordOffsets.size();
+    }
+
+    private static int intern(String s, Map<String, Integer> stringIds, List<String> strings) {
+        Integer id = stringIds.get(s);
+        if (null == id) {
+            id = strings.size();
+            stringIds.put(s, id);
+            strings.add(s);
+        }
+        return id;
+    }
+
+    private static void writeVarInt(DataOutputStream dos, int value) throws IOException {
+        while (0 != (value & ~0x7F)) {
+            dos.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dos.writeByte(value);
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while (0 != (value & ~0x7F)) {
+            ++size;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    private static int sortModeId(String sortMode) {
+        for (int i = 0; i < CompiledTrace.SORT_MODES.length; ++i) {
+            if (CompiledTrace.SORT_MODES[i].equals(sortMode)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown sort mode: " + sortMode);
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
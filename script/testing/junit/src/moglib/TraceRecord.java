@@ -0,0 +1,426 @@
+package moglib;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * TraceRecord is an immutable statement or query record parsed from a trace file.
+ * Records do not share any state with the MogSqlite instance that produced them, so they may be handed to other threads.
+ * The SQL and expected results of records read from a memory-mapped or compiled trace are only decoded when they are
+ * first asked for, so that records which are skipped or filtered out never materialize their strings.
+ */
+public final class TraceRecord {
+
+    /**
+     * The kind of record.
+     */
+    public enum Kind {STATEMENT_OK, STATEMENT_ERROR, QUERY}
+
+    /**
+     * Expected results of the form "NUM_VALUES values hashing to MD5_HASH", as written by sqllogictest.
+     */
+    private static final Pattern HASH_LINE = Pattern.compile("^(\\d+) values hashing to ([0-9a-f]{32})$");
+
+    /**
+     * Runs of a benched query before measuring, if the bench directive does not say.
+     */
+    public static final int DEFAULT_BENCH_WARMUP = 5;
+    /**
+     * Measured runs of a benched query, if the bench directive does not say.
+     */
+    public static final int DEFAULT_BENCH_ITERATIONS = 50;
+
+    /**
+     * 1-based line number of the first line of the record.
+     */
+    private final int lineNumber;
+    /**
+     * The kind of record.
+     */
+    private final Kind kind;
+    /**
+     * The first line of the record, trimmed, e.g., "statement error 42601" or "query II rowsort".
+     */
+    private final String firstLine;
+    /**
+     * The SQL of the record. Each line is trimmed and terminated by "\n".
+     */
+    private final Lazy<String> sql;
+    /**
+     * Query records only: the type string, e.g., "IIT". Empty if not specified.
+     */
+    private final String typeString;
+    /**
+     * Query records only: the sort mode, one of "nosort", "rowsort" or "valuesort".
+     */
+    private final String sortMode;
+    /**
+     * Query records only: the label. Empty if not specified.
+     */
+    private final String label;
+    /**
+     * The skipif and onlyif lines that appeared between the previous record and this record.
+     */
+    private final List<String> conditions;
+    /**
+     * Query records only: the non-empty lines following "----", either individual values or a hash line.
+     */
+    private final Lazy<List<String>> expectedResults;
+    /**
+     * Query records only: the number of values hashed, or -1 if the expected results are not a hash line.
+     */
+    private final int expectedValueCount;
+    /**
+     * Query records only: the lowercase hex MD5 hash of the expected values, or null if the expected results are not a
+     * hash line.
+     */
+    private final String expectedHash;
+    /**
+     * Query records only: the runs of the query before measuring, as given by the preceding bench directive.
+     */
+    private final int benchWarmup;
+    /**
+     * Query records only: the measured runs of the query, as given by the preceding bench directive; 0 if the record
+     * is not benched.
+     */
+    private final int benchIterations;
+
+    /**
+     * Create a new statement record.
+     *
+     * @param lineNumber 1-based line number of the first line of the record.
+     * @param kind       Either STATEMENT_OK or STATEMENT_ERROR.
+     * @param firstLine  The first line of the record, trimmed.
+     * @param sql        The SQL of the record.
+     * @param conditions The skipif and onlyif lines preceding the record.
+     */
+    TraceRecord(int lineNumber, Kind kind, String firstLine, String sql, List<String> conditions) {
+        this(lineNumber, kind, firstLine, () -> sql, conditions);
+    }
+
+    /**
+     * Create a new statement record whose SQL is decoded on first access.
+     *
+     * @param lineNumber 1-based line number of the first line of the record.
+     * @param kind       Either STATEMENT_OK or STATEMENT_ERROR.
+     * @param firstLine  The first line of the record, trimmed.
+     * @param sql        Decodes the SQL of the record; called at most once, possibly from another thread.
+     * @param conditions The skipif and onlyif lines preceding the record.
+     */
+    TraceRecord(int lineNumber, Kind kind, String firstLine, Supplier<String> sql, List<String> conditions) {
+        this(lineNumber, kind, firstLine, sql, "", "nosort", "", conditions, Collections::emptyList);
+    }
+
+    /**
+     * Create a new record.
+     *
+     * @param lineNumber      1-based line number of the first line of the record.
+     * @param kind            The kind of record.
+     * @param firstLine       The first line of the record, trimmed.
+     * @param sql             The SQL of the record.
+     * @param typeString      The type string.
+     * @param sortMode        The sort mode.
+     * @param label           The label.
+     * @param conditions      The skipif and onlyif lines preceding the record.
+     * @param expectedResults The expected results.
+     */
+    TraceRecord(int lineNumber, Kind kind, String firstLine, String sql, String typeString, String sortMode,
+                String label, List<String> conditions, List<String> expectedResults) {
+        this(lineNumber, kind, firstLine, () -> sql, typeString, sortMode, label, conditions, expectedResults);
+    }
+
+    /**
+     * Create a new record whose SQL is decoded on first access.
+     *
+     * @param lineNumber      1-based line number of the first line of the record.
+     * @param kind            The kind of record.
+     * @param firstLine       The first line of the record, trimmed.
+     * @param sql             Decodes the SQL of the record; called at most once, possibly from another thread.
+     * @param typeString      The type string.
+     * @param sortMode        The sort mode.
+     * @param label           The label.
+     * @param conditions      The skipif and onlyif lines preceding the record.
+     * @param expectedResults The expected results.
+     */
+    TraceRecord(int lineNumber, Kind kind, String firstLine, Supplier<String> sql, String typeString, String sortMode,
+                String label, List<String> conditions, List<String> expectedResults) {
+        this.lineNumber = lineNumber;
+        this.kind = kind;
+        this.firstLine = firstLine;
+        this.sql = new Lazy<>(sql);
+        this.typeString = typeString;
+        this.sortMode = sortMode;
+        this.label = label;
+        this.conditions = Collections.unmodifiableList(conditions);
+        List<String> results = Collections.unmodifiableList(expectedResults);
+        this.expectedResults = new Lazy<>(() -> results);
+
+        Matcher m = 1 == expectedResults.size() ? HASH_LINE.matcher(expectedResults.get(0)) : null;
+        if (null != m && m.matches()) {
+            this.expectedValueCount = Integer.parseInt(m.group(1));
+            this.expectedHash = m.group(2);
+        } else {
+            this.expectedValueCount = -1;
+            this.expectedHash = null;
+        }
+        this.benchWarmup = 0;
+        this.benchIterations = 0;
+    }
+
+    /**
+     * Create a new record whose SQL and expected results are decoded on first access. The expected results must not
+     * be a hash line, see the constructor taking the hash for those.
+     *
+     * @param lineNumber      1-based line number of the first line of the record.
+     * @param kind            The kind of record.
+     * @param firstLine       The first line of the record, trimmed.
+     * @param sql             Decodes the SQL of the record; called at most once, possibly from another thread.
+     * @param typeString      The type string.
+     * @param sortMode        The sort mode.
+     * @param label           The label.
+     * @param conditions      The skipif and onlyif lines preceding the record.
+     * @param expectedResults Decodes the expected results; called at most once, possibly from another thread.
+     */
+    TraceRecord(int lineNumber, Kind kind, String firstLine, Supplier<String> sql, String typeString, String sortMode,
+                String label, List<String> conditions, Supplier<List<String>> expectedResults) {
+        this.lineNumber = lineNumber;
+        this.kind = kind;
+        this.firstLine = firstLine;
+        this.sql = new Lazy<>(sql);
+        this.typeString = typeString;
+        this.sortMode = sortMode;
+        this.label = label;
+        this.conditions = Collections.unmodifiableList(conditions);
+        this.expectedResults = new Lazy<>(() -> Collections.unmodifiableList(expectedResults.get()));
+        this.expectedValueCount = -1;
+        this.expectedHash = null;
+        this.benchWarmup = 0;
+        this.benchIterations = 0;
+    }
+
+    /**
+     * Create a new query record whose expected results are a hash line.
+     *
+     * @param lineNumber         1-based line number of the first line of the record.
+     * @param firstLine          The first line of the record, trimmed.
+     * @param sql                Decodes the SQL of the record; called at most once, possibly from another thread.
+     * @param typeString         The type string.
+     * @param sortMode           The sort mode.
+     * @param label              The label.
+     * @param conditions         The skipif and onlyif lines preceding the record.
+     * @param expectedValueCount The number of values hashed.
+     * @param expectedHash       The lowercase hex MD5 hash of the expected values.
+     */
+    TraceRecord(int lineNumber, String firstLine, Supplier<String> sql, String typeString, String sortMode,
+                String label, List<String> conditions, int expectedValueCount, String expectedHash) {
+        this.lineNumber = lineNumber;
+        this.kind = Kind.QUERY;
+        this.firstLine = firstLine;
+        this.sql = new Lazy<>(sql);
+        this.typeString = typeString;
+        this.sortMode = sortMode;
+        this.label = label;
+        this.conditions = Collections.unmodifiableList(conditions);
+        this.expectedResults = new Lazy<>(
+                () -> Collections.singletonList(expectedValueCount + " values hashing to " + expectedHash));
+        this.expectedValueCount = expectedValueCount;
+        this.expectedHash = expectedHash;
+        this.benchWarmup = 0;
+        this.benchIterations = 0;
+    }
+
+    /**
+     * Create a copy of a record with a bench directive.
+     *
+     * @param other           The record to copy.
+     * @param benchWarmup     The runs of the query before measuring.
+     * @param benchIterations The measured runs of the query.
+     */
+    private TraceRecord(TraceRecord other, int benchWarmup, int benchIterations) {
+        this.lineNumber = other.lineNumber;
+        this.kind = other.kind;
+        this.firstLine = other.firstLine;
+        this.sql = other.sql;
+        this.typeString = other.typeString;
+        this.sortMode = other.sortMode;
+        this.label = other.label;
+        this.conditions = other.conditions;
+        this.expectedResults = other.expectedResults;
+        this.expectedValueCount = other.expectedValueCount;
+        this.expectedHash = other.expectedHash;
+        this.benchWarmup = benchWarmup;
+        this.benchIterations = benchIterations;
+    }
+
+    /**
+     * @param benchWarmup     The runs of the query before measuring.
+     * @param benchIterations The measured runs of the query, at least 1.
+     * @return A copy of this query record that is benched as given.
+     */
+    TraceRecord withBench(int benchWarmup, int benchIterations) {
+        return new TraceRecord(this, benchWarmup, benchIterations);
+    }
+
+    /**
+     * @return 1-based line number of the first line of the record.
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * @return The kind of record.
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return True if this is a statement record, i.e., either "statement ok" or "statement error".
+     */
+    public boolean isStatement() {
+        return Kind.STATEMENT_OK == kind || Kind.STATEMENT_ERROR == kind;
+    }
+
+    /**
+     * @return True if this is a query record.
+     */
+    public boolean isQuery() {
+        return Kind.QUERY == kind;
+    }
+
+    /**
+     * @return The first line of the record, trimmed.
+     */
+    public String getFirstLine() {
+        return firstLine;
+    }
+
+    /**
+     * @return The SQL of the record. Each line is trimmed and terminated by "\n".
+     */
+    public String getSql() {
+        return sql.get();
+    }
+
+    /**
+     * @return The type string of a query record.
+     */
+    public String getTypeString() {
+        return typeString;
+    }
+
+    /**
+     * @return The sort mode of a query record.
+     */
+    public String getSortMode() {
+        return sortMode;
+    }
+
+    /**
+     * @return The label of a query record.
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return The skipif and onlyif lines preceding the record.
+     */
+    public List<String> getConditions() {
+        return conditions;
+    }
+
+    /**
+     * @return The expected results of a query record.
+     */
+    public List<String> getExpectedResults() {
+        return expectedResults.get();
+    }
+
+    /**
+     * @return True if the expected results are a single "NUM_VALUES values hashing to MD5_HASH" line.
+     */
+    public boolean isHashed() {
+        return null != expectedHash;
+    }
+
+    /**
+     * @return The number of values hashed, or -1 if the expected results are not a hash line.
+     */
+    public int getExpectedValueCount() {
+        return expectedValueCount;
+    }
+
+    /**
+     * @return The lowercase hex MD5 hash of the expected values, or null if the expected results are not a hash line.
+     */
+    public String getExpectedHash() {
+        return expectedHash;
+    }
+
+    /**
+     * @return True if a bench directive precedes this query record, i.e., it is to be run repeatedly to measure its
+     * latency.
+     */
+    public boolean isBenched() {
+        return benchIterations > 0;
+    }
+
+    /**
+     * @return The runs of a benched query before measuring.
+     */
+    public int getBenchWarmup() {
+        return benchWarmup;
+    }
+
+    /**
+     * @return The measured runs of a benched query, or 0 if the record is not benched.
+     */
+    public int getBenchIterations() {
+        return benchIterations;
+    }
+
+    /**
+     * @return The bench directive of a benched query, e.g., "bench warmup=5 iterations=50".
+     */
+    public String getBenchDirective() {
+        return Constants.BENCH + " warmup=" + benchWarmup + " iterations=" + benchIterations;
+    }
+
+    @Override
+    public String toString() {
+        return lineNumber + ": " + firstLine;
+    }
+
+    /**
+     * A value that is decoded on first access and then kept. The decoder is dropped once it has run, so that it does
+     * not keep what it decodes from alive.
+     */
+    private static final class Lazy<T> {
+        private Supplier<T> source;
+        private volatile T value;
+
+        Lazy(Supplier<T> source) {
+            this.source = source;
+        }
+
+        T get() {
+            T v = value;
+            if (null == v) {
+                synchronized (this) {
+                    v = value;
+                    if (null == v) {
+                        v = source.get();
+                        value = v;
+                        source = null;
+                    }
+                }
+            }
+            return v;
+        }
+    }
+}